@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.jar.JarArchiveInputStream;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The archive formats Archie can stream, as plain single-threaded
+ * commons-compress streams.  Tar entries use the same POSIX long name
+ * mode as the Transformations, but none of their tuning applies here:
+ * no parallel gzip or bzip2, no read-ahead or write-behind and no
+ * {@link TarGzIndex}.
+ */
+public enum ArchiveFormat {
+    ZIP {
+        @Override
+        public ArchiveInputStream read(final InputStream in) {
+            return new ZipArchiveInputStream(in);
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) {
+            return new ZipArchiveOutputStream(out);
+        }
+    },
+    JAR {
+        @Override
+        public ArchiveInputStream read(final InputStream in) {
+            return new JarArchiveInputStream(in);
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) {
+            return new JarArchiveOutputStream(out);
+        }
+    },
+    TAR {
+        @Override
+        public ArchiveInputStream read(final InputStream in) {
+            return new TarArchiveInputStream(in);
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) {
+            final TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            return tar;
+        }
+    },
+    TAR_GZ {
+        @Override
+        public ArchiveInputStream read(final InputStream in) throws IOException {
+            return new TarArchiveInputStream(new GzipCompressorInputStream(in));
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) throws IOException {
+            final TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(out));
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            return tar;
+        }
+    },
+    TAR_BZ2 {
+        @Override
+        public ArchiveInputStream read(final InputStream in) throws IOException {
+            return new TarArchiveInputStream(new BZip2CompressorInputStream(in, true));
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) throws IOException {
+            final TarArchiveOutputStream tar = new TarArchiveOutputStream(new BZip2CompressorOutputStream(out));
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            return tar;
+        }
+    },
+    TAR_LZ4 {
+        @Override
+        public ArchiveInputStream read(final InputStream in) throws IOException {
+            return new TarArchiveInputStream(new FramedLZ4CompressorInputStream(in, true));
+        }
+
+        @Override
+        public ArchiveOutputStream write(final OutputStream out) throws IOException {
+            final TarArchiveOutputStream tar = new TarArchiveOutputStream(new FramedLZ4CompressorOutputStream(out));
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            return tar;
+        }
+    };
+
+    public abstract ArchiveInputStream read(final InputStream in) throws IOException;
+
+    public abstract ArchiveOutputStream write(final OutputStream out) throws IOException;
+
+    public boolean isTar() {
+        return this == TAR || this == TAR_GZ || this == TAR_BZ2 || this == TAR_LZ4;
+    }
+}
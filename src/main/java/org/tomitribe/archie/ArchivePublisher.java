@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Publishes the entries of an archive to a {@link Flow.Subscriber}.
+ *
+ * Entries are decoded only when the subscriber has outstanding demand, so
+ * a slow subscriber throttles decompression rather than letting buffers
+ * grow.  The archive is never read more than one entry ahead.
+ *
+ * The publisher is cold: each subscriber gets its own pass over the archive,
+ * opened from the source supplier on the executor.
+ *
+ * Content of an {@link Item} is streamed straight from the archive and is
+ * only readable until {@code onNext} returns.  Subscribers that hand items
+ * off to other threads must read the content first.
+ */
+public class ArchivePublisher implements Flow.Publisher<ArchivePublisher.Item> {
+
+    private final ArchiveFormat format;
+    private final Supplier<InputStream> source;
+    private final Executor executor;
+
+    public ArchivePublisher(final ArchiveFormat format, final Supplier<InputStream> source, final Executor executor) {
+        this.format = Objects.requireNonNull(format, "format is required.");
+        this.source = Objects.requireNonNull(source, "source is required.");
+        this.executor = Objects.requireNonNull(executor, "executor is required.");
+    }
+
+    public ArchivePublisher(final ArchiveFormat format, final File file, final Executor executor) {
+        this(format, () -> read(file), executor);
+    }
+
+    private static InputStream read(final File file) {
+        try {
+            return IO.read(file);
+        } catch (FileNotFoundException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super Item> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber is required.");
+        subscriber.onSubscribe(new EntrySubscription(subscriber));
+    }
+
+    public static class Item {
+        private final ArchiveEntry entry;
+        private final InputStream content;
+
+        Item(final ArchiveEntry entry, final InputStream content) {
+            this.entry = entry;
+            this.content = content;
+        }
+
+        public String getName() {
+            return entry.getName();
+        }
+
+        /**
+         * The entry as read from the archive.  Cast to TarArchiveEntry
+         * or ZipArchiveEntry for format specific metadata.
+         */
+        public ArchiveEntry getEntry() {
+            return entry;
+        }
+
+        /**
+         * Only readable until onNext returns
+         */
+        public InputStream getContent() {
+            return content;
+        }
+
+        public byte[] readBytes() throws IOException {
+            return IO.readBytes(content);
+        }
+    }
+
+    private class EntrySubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super Item> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        /**
+         * Only touched by the drain loop, which never runs concurrently with itself
+         */
+        private ArchiveInputStream in;
+        private boolean done;
+
+        EntrySubscription(final Flow.Subscriber<? super Item> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(final long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested items must be positive: " + n);
+                cancelled = true;
+                schedule();
+                return;
+            }
+
+            demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() != 0) return;
+
+            try {
+                executor.execute(this);
+            } catch (final RuntimeException e) {
+                cancelled = true;
+                close();
+                subscriber.onError(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) return;
+
+            if (cancelled) {
+                close();
+                if (error != null) subscriber.onError(error);
+                return;
+            }
+
+            try {
+                if (in == null) in = format.read(source.get());
+
+                while (demand.get() > 0 && !cancelled) {
+                    final ArchiveEntry entry = in.getNextEntry();
+
+                    if (entry == null) {
+                        close();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    demand.decrementAndGet();
+                    subscriber.onNext(new Item(entry, new UnclosableInputStream(in)));
+                }
+
+            } catch (final Throwable t) {
+                close();
+                subscriber.onError(t);
+            }
+        }
+
+        private void close() {
+            done = true;
+            if (in == null) return;
+            try {
+                in.close();
+            } catch (final IOException e) {
+                // nothing left to tell the subscriber
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Backs {@link Transformer#transformAsync}.
+ *
+ * The transformer's own {@link Transformer#transform(File, File)} is used,
+ * so engines that read or write files in a better way than through streams
+ * keep doing so.  Transformers that only implement the stream variant get
+ * streams that check for cancellation on every read and write, so those
+ * that swallow interrupts still stop.
+ *
+ * CompletableFuture.cancel does not interrupt anything on its own, so we
+ * remember the thread running the transformation and interrupt it ourselves.
+ */
+class AsyncTransformation implements Runnable {
+
+    private final Transformer transformer;
+    private final File source;
+    private final File destination;
+    private final CompletableFuture<TransformationResult> future = new CompletableFuture<>();
+
+    /**
+     * Guarded by this
+     */
+    private Thread runner;
+
+    AsyncTransformation(final Transformer transformer, final File source, final File destination) {
+        this.transformer = transformer;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    public CompletableFuture<TransformationResult> submit(final Executor executor) {
+        future.whenComplete((result, throwable) -> {
+            if (future.isCancelled()) interrupt();
+        });
+
+        try {
+            executor.execute(this);
+        } catch (final RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    @Override
+    public void run() {
+        if (!started()) return;
+
+        final long start = System.nanoTime();
+        try {
+            final TransformationResult result;
+            if (isFileAware()) {
+                transformer.transform(source, destination);
+                checkCancelled();
+
+                result = new TransformationResult(source.toPath(), destination.toPath(),
+                        source.length(), destination.length(), Duration.ofNanos(System.nanoTime() - start));
+            } else {
+                try (final CancellableInputStream in = new CancellableInputStream(Files.newInputStream(source.toPath()));
+                     final CancellableOutputStream out = new CancellableOutputStream(destination instanceof Binary
+                             ? ((Binary) destination).write()
+                             : Files.newOutputStream(destination.toPath()))) {
+
+                    transformer.transform(in, out);
+
+                    result = new TransformationResult(source.toPath(), destination.toPath(),
+                            in.getCount(), out.getCount(), Duration.ofNanos(System.nanoTime() - start));
+                }
+            }
+
+            future.complete(result);
+
+        } catch (final Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            finished();
+        }
+
+        if (future.isCancelled()) {
+            try {
+                Files.deleteIfExists(destination.toPath());
+            } catch (final IOException e) {
+                // best effort, the caller already has their answer
+            }
+        }
+    }
+
+    /**
+     * @return true if the transformer overrides transform(File, File) rather
+     * than relying on the default, which only opens streams
+     */
+    private boolean isFileAware() {
+        try {
+            return !transformer.getClass().getMethod("transform", File.class, File.class).isDefault();
+        } catch (final NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private synchronized boolean started() {
+        if (future.isDone()) return false;
+        runner = Thread.currentThread();
+        return true;
+    }
+
+    private void finished() {
+        synchronized (this) {
+            runner = null;
+        }
+
+        /*
+         * We may have interrupted this thread when cancelled.  It
+         * is usually a pooled thread, so don't leave that behind
+         * for the next task.
+         */
+        if (future.isCancelled()) Thread.interrupted();
+    }
+
+    private synchronized void interrupt() {
+        if (runner != null) runner.interrupt();
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (future.isCancelled()) {
+            throw new InterruptedIOException("Transformation cancelled: " + source);
+        }
+    }
+
+    private class CancellableInputStream extends FilterInputStream {
+        private long count;
+
+        CancellableInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            final int read = super.read();
+            if (read != -1) count++;
+            return read;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            checkCancelled();
+            final int read = super.read(b, off, len);
+            if (read > 0) count += read;
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            checkCancelled();
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+
+    private class CancellableOutputStream extends FilterOutputStream {
+        private long count;
+
+        CancellableOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            checkCancelled();
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            checkCancelled();
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
+        }
+    }
+}
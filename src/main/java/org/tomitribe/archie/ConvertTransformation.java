@@ -0,0 +1,436 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an archive in one format and writes it in another, applying
+ * Transformations in the same pass.  Nothing is written to disk but
+ * the output.
+ *
+ * Entry modes, times and symbolic links are carried across formats.
+ * Zip has no hard links, so tar hard links become relative symbolic
+ * links when converting to zip or jar.  Device and fifo entries have no
+ * zip equivalent and are dropped.
+ *
+ * Zip stores unix modes and symbolic links only in the central directory,
+ * so converting a zip or jar file with {@link #transform(File, File)} keeps
+ * them while converting from a plain InputStream cannot.
+ */
+public class ConvertTransformation implements Transformer, Function<byte[], byte[]> {
+
+    private final ArchiveFormat from;
+    private final ArchiveFormat to;
+    private final Transformations transformations;
+
+    public ConvertTransformation(final ArchiveFormat from, final ArchiveFormat to, final Transformations transformations) {
+        this.from = Objects.requireNonNull(from, "from is required.");
+        this.to = Objects.requireNonNull(to, "to is required.");
+        this.transformations = Objects.requireNonNull(transformations, "transformations is required.");
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public byte[] apply(final byte[] bytes) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        try {
+            transform(in, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void transform(final InputStream source, final OutputStream destination) throws IOException {
+        try (final ArchiveInputStream in = from.read(new UnclosableInputStream(source))) {
+            convert(in::getNextEntry, entry -> new UnclosableInputStream(in), destination);
+        }
+    }
+
+    @Override
+    public void transform(final File src, final File dest) throws IOException {
+        if (from.isTar()) {
+            Transformer.super.transform(src, dest);
+            return;
+        }
+
+        try (final ZipFile zip = new ZipFile(src);
+             final OutputStream out = dest instanceof Binary ? ((Binary) dest).write() : IO.write(dest)) {
+
+            final Iterator<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder()).iterator();
+            convert(() -> entries.hasNext() ? entries.next() : null,
+                    entry -> zip.getInputStream((ZipArchiveEntry) entry),
+                    out);
+        }
+    }
+
+    private void convert(final Entries entries, final Content content, final OutputStream destination) throws IOException {
+        try (final ArchiveOutputStream out = to.write(new UnclosableOutputStream(destination))) {
+
+            transformations.beforeArchive(out);
+
+            ArchiveEntry entry;
+            while ((entry = entries.next()) != null) {
+                Interruption.check();
+
+                final String name = entry.getName();
+                if (transformations.skip(name) || isSpecial(entry)) continue;
+
+                transformations.beforeEntry(name, out);
+
+                if (entry.isDirectory()) {
+                    putDirectory(entry, out);
+                } else if (isSymbolicLink(entry)) {
+                    putSymbolicLink(entry, readLinkName(entry, content), out);
+                } else if (entry instanceof TarArchiveEntry && ((TarArchiveEntry) entry).isLink()) {
+                    putHardLink((TarArchiveEntry) entry, out);
+                } else if (transformations.applies(name) || !isStreamable(entry)) {
+                    final byte[] bytes;
+                    try (final InputStream in = content.open(entry)) {
+                        bytes = transformations.apply(name, IO.readBytes(in));
+                    }
+                    putFile(entry, bytes.length, crc(bytes), new ByteArrayInputStream(bytes), out);
+                } else {
+                    try (final InputStream in = content.open(entry)) {
+                        putFile(entry, size(entry), crc(entry), in, out);
+                    }
+                }
+
+                transformations.afterEntry(name, out);
+            }
+
+            transformations.afterArchive(out);
+        }
+    }
+
+    private void putDirectory(final ArchiveEntry source, final ArchiveOutputStream out) throws IOException {
+        final int mode = UnixStat.DIR_FLAG | permissions(source, UnixStat.DEFAULT_DIR_PERM);
+
+        if (to.isTar()) {
+            final TarArchiveEntry dir = new TarArchiveEntry(source.getName());
+            dir.setMode(mode);
+            times(source, dir);
+            out.putArchiveEntry(dir);
+        } else {
+            final ZipArchiveEntry dir = zipEntry(source.getName());
+            dir.setUnixMode(mode);
+            times(source, dir);
+            out.putArchiveEntry(dir);
+        }
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * @param crc the crc of the content or -1 when not known, only stored
+     * zip entries need it before their content is written
+     */
+    private void putFile(final ArchiveEntry source, final long size, final long crc, final InputStream content, final ArchiveOutputStream out) throws IOException {
+        final int mode = UnixStat.FILE_FLAG | permissions(source, UnixStat.DEFAULT_FILE_PERM);
+
+        if (to.isTar()) {
+            final TarArchiveEntry file = new TarArchiveEntry(source.getName());
+            file.setSize(size);
+            file.setMode(mode);
+            times(source, file);
+            out.putArchiveEntry(file);
+        } else {
+            final ZipArchiveEntry file = zipEntry(source.getName());
+            if (source instanceof ZipArchiveEntry) file.setMethod(((ZipArchiveEntry) source).getMethod());
+            file.setSize(size);
+            if (crc != -1) file.setCrc(crc);
+            file.setUnixMode(mode);
+            times(source, file);
+            out.putArchiveEntry(file);
+        }
+
+        final byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = content.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * Entries no rule applies to are streamed to the output when their
+     * size is known up front, and their crc too when they stay stored.
+     * Zip entries read from a stream with a data descriptor are not.
+     */
+    private boolean isStreamable(final ArchiveEntry entry) {
+        if (size(entry) == ArchiveEntry.SIZE_UNKNOWN) return false;
+        if (to.isTar() || !(entry instanceof ZipArchiveEntry)) return true;
+
+        final ZipArchiveEntry zip = (ZipArchiveEntry) entry;
+        return zip.getMethod() != ZipMethod.STORED.getCode() || zip.getCrc() != -1;
+    }
+
+    /**
+     * The size of the content as read, sparse tar entries are read expanded
+     */
+    private static long size(final ArchiveEntry entry) {
+        if (entry instanceof TarArchiveEntry) return ((TarArchiveEntry) entry).getRealSize();
+        return entry.getSize();
+    }
+
+    private static long crc(final ArchiveEntry entry) {
+        return entry instanceof ZipArchiveEntry ? ((ZipArchiveEntry) entry).getCrc() : -1;
+    }
+
+    private void putSymbolicLink(final ArchiveEntry source, final String linkName, final ArchiveOutputStream out) throws IOException {
+        final int mode = UnixStat.LINK_FLAG | UnixStat.DEFAULT_LINK_PERM;
+
+        if (to.isTar()) {
+            final TarArchiveEntry link = new TarArchiveEntry(source.getName(), TarConstants.LF_SYMLINK);
+            link.setLinkName(linkName);
+            link.setMode(mode);
+            times(source, link);
+            out.putArchiveEntry(link);
+            out.closeArchiveEntry();
+        } else {
+            /*
+             * Zip keeps the link target as the entry content
+             */
+            final byte[] bytes = linkName.getBytes(StandardCharsets.UTF_8);
+            final ZipArchiveEntry link = zipEntry(source.getName());
+            link.setSize(bytes.length);
+            link.setCrc(crc(bytes));
+            link.setUnixMode(mode);
+            times(source, link);
+            out.putArchiveEntry(link);
+            out.write(bytes);
+            out.closeArchiveEntry();
+        }
+    }
+
+    private void putHardLink(final TarArchiveEntry source, final ArchiveOutputStream out) throws IOException {
+        if (!to.isTar()) {
+            putSymbolicLink(source, relativize(source.getName(), source.getLinkName()), out);
+            return;
+        }
+
+        final TarArchiveEntry link = new TarArchiveEntry(source.getName(), TarConstants.LF_LINK);
+        link.setLinkName(source.getLinkName());
+        link.setMode(source.getMode());
+        times(source, link);
+        out.putArchiveEntry(link);
+        out.closeArchiveEntry();
+    }
+
+    private ZipArchiveEntry zipEntry(final String name) {
+        return to == ArchiveFormat.JAR ? new JarArchiveEntry(name) : new ZipArchiveEntry(name);
+    }
+
+    /**
+     * Hard link targets are relative to the archive root, symbolic
+     * link targets are relative to the directory holding the link
+     */
+    static String relativize(final String name, final String target) {
+        final Path parent = Paths.get(name).getParent();
+        final Path path = Paths.get(target);
+        final Path relative = parent == null ? path : parent.relativize(path);
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private static boolean isSpecial(final ArchiveEntry entry) {
+        if (!(entry instanceof TarArchiveEntry)) return false;
+
+        final TarArchiveEntry tar = (TarArchiveEntry) entry;
+        return tar.isCharacterDevice() || tar.isBlockDevice() || tar.isFIFO();
+    }
+
+    private static boolean isSymbolicLink(final ArchiveEntry entry) {
+        if (entry instanceof TarArchiveEntry) return ((TarArchiveEntry) entry).isSymbolicLink();
+        if (entry instanceof ZipArchiveEntry) return ((ZipArchiveEntry) entry).isUnixSymlink();
+        return false;
+    }
+
+    private static String readLinkName(final ArchiveEntry entry, final Content content) throws IOException {
+        if (entry instanceof TarArchiveEntry) return ((TarArchiveEntry) entry).getLinkName();
+        try (final InputStream in = content.open(entry)) {
+            return new String(IO.readBytes(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int permissions(final ArchiveEntry entry, final int defaultPermissions) {
+        if (entry instanceof TarArchiveEntry) {
+            return ((TarArchiveEntry) entry).getMode() & UnixStat.PERM_MASK;
+        }
+
+        if (entry instanceof ZipArchiveEntry) {
+            final ZipArchiveEntry zip = (ZipArchiveEntry) entry;
+            if (zip.getPlatform() == ZipArchiveEntry.PLATFORM_UNIX) {
+                return zip.getUnixMode() & UnixStat.PERM_MASK;
+            }
+        }
+
+        return defaultPermissions;
+    }
+
+    private static void times(final ArchiveEntry source, final TarArchiveEntry target) {
+        target.setModTime(source.getLastModifiedDate());
+
+        if (source instanceof TarArchiveEntry) {
+            final TarArchiveEntry tar = (TarArchiveEntry) source;
+            if (tar.getCreationTime() != null) target.setCreationTime(tar.getCreationTime());
+            if (tar.getLastAccessTime() != null) target.setLastAccessTime(tar.getLastAccessTime());
+        } else if (source instanceof ZipArchiveEntry) {
+            final ZipArchiveEntry zip = (ZipArchiveEntry) source;
+            if (zip.getCreationTime() != null) target.setCreationTime(zip.getCreationTime());
+            if (zip.getLastAccessTime() != null) target.setLastAccessTime(zip.getLastAccessTime());
+        }
+    }
+
+    private static void times(final ArchiveEntry source, final ZipArchiveEntry target) {
+        target.setTime(source.getLastModifiedDate().getTime());
+
+        if (source instanceof TarArchiveEntry) {
+            final TarArchiveEntry tar = (TarArchiveEntry) source;
+            if (tar.getCreationTime() != null) target.setCreationTime(tar.getCreationTime());
+            if (tar.getLastAccessTime() != null) target.setLastAccessTime(tar.getLastAccessTime());
+        } else if (source instanceof ZipArchiveEntry) {
+            final ZipArchiveEntry zip = (ZipArchiveEntry) source;
+            if (zip.getCreationTime() != null) target.setCreationTime(zip.getCreationTime());
+            if (zip.getLastAccessTime() != null) target.setLastAccessTime(zip.getLastAccessTime());
+        }
+    }
+
+    private static long crc(final byte[] bytes) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private interface Entries {
+        ArchiveEntry next() throws IOException;
+    }
+
+    private interface Content {
+        InputStream open(ArchiveEntry entry) throws IOException;
+    }
+
+    public static class Builder {
+
+        private ArchiveFormat from;
+        private ArchiveFormat to;
+        private Transformations.Builder builder = new Transformations.Builder();
+
+        public Builder from(final ArchiveFormat from) {
+            this.from = from;
+            return this;
+        }
+
+        public Builder to(final ArchiveFormat to) {
+            this.to = to;
+            return this;
+        }
+
+        public Builder enhance(final String entryName, final Function<byte[], byte[]> transformer) {
+            builder.enhance(entryName, transformer);
+            return this;
+        }
+
+        public Builder enhance(final Predicate<String> entryPredicate, final Function<byte[], byte[]> transformer) {
+            builder.enhance(entryPredicate, transformer);
+            return this;
+        }
+
+        public Builder prepend(final String entryName, final String contents) {
+            builder.prepend(entryName, contents);
+            return this;
+        }
+
+        public Builder prepend(final Predicate<String> entryPredicate, final String contents) {
+            builder.prepend(entryPredicate, contents);
+            return this;
+        }
+
+        public Builder before(final Consumer<ArchiveOutputStream> consumer) {
+            builder.before(consumer);
+            return this;
+        }
+
+        public Builder after(final Consumer<ArchiveOutputStream> consumer) {
+            builder.after(consumer);
+            return this;
+        }
+
+        public Builder beforeEntry(final String entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.beforeEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder beforeEntry(final Predicate<String> entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.beforeEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder afterEntry(final String entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.afterEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder afterEntry(final Predicate<String> entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.afterEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder and(final Consumer<Transformations.Builder> consumer) {
+            builder.and(consumer);
+            return this;
+        }
+
+        public Builder skip(final Predicate<String> predicate) {
+            builder.skip(predicate);
+            return this;
+        }
+
+        public ConvertTransformation build() {
+            return new ConvertTransformation(from, to, builder.build());
+        }
+    }
+}
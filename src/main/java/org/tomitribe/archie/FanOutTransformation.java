@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveStructSparse;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Produces several variants of the same tar.gz in a single pass over the source.
+ *
+ * Each source entry is decompressed once and every variant copies it the
+ * way {@link TarGzTransformation} does: replaced entries are not read,
+ * sparse entries stay sparse and entries no rule applies to keep their
+ * original header.  When only one variant reads an entry it streams it
+ * straight from the source.  When several do, small entries are read into
+ * memory once and larger ones are spooled to a temporary file, so memory
+ * use does not grow with the size of the entries.
+ */
+public class FanOutTransformation {
+
+    /**
+     * Entries read by several variants up to this size are kept in memory
+     */
+    private static final int IN_MEMORY = 1024 * 1024;
+
+    private final List<Transformations> variants = new ArrayList<>();
+    private final int gzipThreads;
+
+    public FanOutTransformation(final List<Transformations> variants) {
+        this(variants, 1);
+    }
+
+    public FanOutTransformation(final List<Transformations> variants, final int gzipThreads) {
+        if (variants.isEmpty()) throw new IllegalArgumentException("At least one variant is required");
+        this.variants.addAll(variants);
+        this.gzipThreads = gzipThreads;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int getVariants() {
+        return variants.size();
+    }
+
+    /**
+     * @param destinations one output per variant, in the order the variants were added
+     */
+    public void transform(final File source, final List<File> destinations) throws IOException {
+        checkDestinations(destinations.size());
+
+        try (final InputStream in = IO.read(source); final Outputs<OutputStream> outputs = new Outputs<>()) {
+            for (final File destination : destinations) {
+                outputs.add(destination instanceof Binary ? ((Binary) destination).write() : IO.write(destination));
+            }
+            transform(in, outputs);
+        }
+    }
+
+    /**
+     * @param destinations one output per variant, in the order the variants were added
+     */
+    public void transform(final InputStream source, final List<OutputStream> destinations) throws IOException {
+        checkDestinations(destinations.size());
+
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(new UnclosableInputStream(source)));
+             final Outputs<TarArchiveOutputStream> outs = new Outputs<>();
+             final Spool spool = new Spool()) {
+
+            for (final OutputStream destination : destinations) {
+                outs.add(TarGzTransformation.write(destination, gzipThreads));
+            }
+
+            for (int i = 0; i < variants.size(); i++) {
+                variants.get(i).beforeArchive(outs.get(i));
+            }
+
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+
+                if (readers(entry) <= 1) {
+                    for (int i = 0; i < variants.size(); i++) {
+                        TarGzTransformation.copy(variants.get(i), entry, in, outs.get(i));
+                    }
+                } else if (!entry.isSparse() && entry.getSize() <= IN_MEMORY) {
+                    final byte[] content = IO.readBytes(in);
+                    for (int i = 0; i < variants.size(); i++) {
+                        TarGzTransformation.copy(variants.get(i), entry, new ByteArrayInputStream(content), outs.get(i));
+                    }
+                } else {
+                    spool.write(entry, in);
+                    for (int i = 0; i < variants.size(); i++) {
+                        try (final InputStream content = spool.read()) {
+                            TarGzTransformation.copy(variants.get(i), entry, content, outs.get(i));
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < variants.size(); i++) {
+                variants.get(i).afterArchive(outs.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return how many variants read the content of the entry, the others
+     * replace it or it has none
+     */
+    private int readers(final TarArchiveEntry entry) {
+        if (!TarGzTransformation.hasContent(entry)) return 0;
+
+        int readers = 0;
+        for (final Transformations variant : variants) {
+            if (variant.replacement(entry.getName()) == null) readers++;
+        }
+        return readers;
+    }
+
+    private void checkDestinations(final int destinations) {
+        if (destinations != variants.size()) {
+            throw new IllegalArgumentException(String.format("Expected %s destinations, one for each variant, found %s",
+                    variants.size(), destinations));
+        }
+    }
+
+    /**
+     * Closes every output even if some fail to close
+     */
+    private static class Outputs<T extends OutputStream> extends ArrayList<T> implements Closeable {
+        @Override
+        public void close() throws IOException {
+            IOException failure = null;
+            for (final OutputStream output : this) {
+                try {
+                    output.close();
+                } catch (final IOException e) {
+                    if (failure == null) failure = e;
+                    else failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) throw failure;
+        }
+    }
+
+    /**
+     * One temporary file holding the current entry, rewritten for each
+     * entry several variants read.  Only the data segments of sparse
+     * entries are written, the holes stay holes in the file.
+     */
+    private static class Spool implements Closeable {
+        private File file;
+
+        void write(final TarArchiveEntry entry, final InputStream in) throws IOException {
+            if (file == null) file = File.createTempFile("archie-fanout-", ".tmp");
+
+            try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(0);
+
+                final OutputStream out = Channels.newOutputStream(raf.getChannel());
+                if (entry.isSparse()) {
+                    long position = 0;
+                    for (final TarArchiveStructSparse segment : entry.getOrderedSparseHeaders()) {
+                        SparseTarEntries.skip(in, segment.getOffset() - position);
+                        raf.seek(segment.getOffset());
+                        copy(in, out, segment.getNumbytes());
+                        position = segment.getOffset() + segment.getNumbytes();
+                    }
+                    raf.setLength(entry.getRealSize());
+                } else {
+                    copy(in, out, entry.getSize());
+                }
+            }
+        }
+
+        InputStream read() throws IOException {
+            return IO.read(file);
+        }
+
+        private static void copy(final InputStream in, final OutputStream out, long remaining) throws IOException {
+            final byte[] buffer = new byte[64 * 1024];
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) throw new EOFException("Unexpected end of entry");
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+
+        @Override
+        public void close() {
+            if (file != null && !file.delete()) file.deleteOnExit();
+        }
+    }
+
+    public static class Builder {
+
+        private final List<Transformations> variants = new ArrayList<>();
+        private int gzipThreads = 1;
+
+        public Builder variant(final Transformations transformations) {
+            variants.add(transformations);
+            return this;
+        }
+
+        public Builder variant(final Consumer<Transformations.Builder> consumer) {
+            final Transformations.Builder builder = Transformations.builder();
+            consumer.accept(builder);
+            return variant(builder.build());
+        }
+
+        /**
+         * Compress each output on the specified number of threads
+         */
+        public Builder parallelGzip(final int threads) {
+            this.gzipThreads = threads;
+            return this;
+        }
+
+        public FanOutTransformation build() {
+            return new FanOutTransformation(variants, gzipThreads);
+        }
+    }
+}
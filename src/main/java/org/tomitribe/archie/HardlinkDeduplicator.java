@@ -0,0 +1,229 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes regular files whose content was already written earlier in the
+ * same archive as hard links to the first copy.
+ *
+ * Content is hashed with SHA-256 as it streams.  A file is only held
+ * back when an earlier file has the same size, as only then can it turn
+ * out to be a duplicate before its header is written.  Small files are
+ * held in memory, larger ones are spilled to a temporary file while they
+ * are hashed.  Files are only linked when their mode matches too, as
+ * links share one inode once extracted.
+ *
+ * One instance tracks one archive and is not thread safe.
+ */
+class HardlinkDeduplicator {
+
+    private static final long MAX_BUFFERED = 64 * 1024;
+
+    private final Map<Long, List<Written>> bySize = new HashMap<>();
+
+    private long filesHashed;
+    private long bytesHashed;
+    private long hashNanos;
+    private long duplicates;
+    private long bytesSaved;
+
+    void copy(final Transformations transformations, final TarArchiveEntry entry, final InputStream in, final TarArchiveOutputStream out) throws IOException {
+        if (!isRegularFile(entry) || transformations.replacement(entry.getName()) != null) {
+            TarGzTransformation.copy(transformations, entry, in, out);
+            return;
+        }
+
+        final String name = entry.getName();
+
+        if (transformations.applies(name)) {
+            transformations.beforeEntry(name, out);
+            final byte[] bytes = transformations.apply(name, IO.readBytes(in));
+            write(TarGzTransformation.file(entry, bytes.length), bytes, out);
+            transformations.afterEntry(name, out);
+            return;
+        }
+
+        transformations.beforeEntry(name, out);
+
+        if (!bySize.containsKey(entry.getSize())) {
+            stream(entry, in, out);
+        } else if (entry.getSize() <= MAX_BUFFERED) {
+            write(entry, IO.readBytes(in), out);
+        } else {
+            spill(entry, in, out);
+        }
+
+        transformations.afterEntry(name, out);
+    }
+
+    Deduplication report() {
+        return new Deduplication(filesHashed, bytesHashed, Duration.ofNanos(hashNanos), duplicates, bytesSaved);
+    }
+
+    /**
+     * The first file of its size cannot be a duplicate, hash it on the way through
+     */
+    private void stream(final TarArchiveEntry entry, final InputStream in, final TarArchiveOutputStream out) throws IOException {
+        final MessageDigest digest = sha256();
+
+        out.putArchiveEntry(entry);
+
+        final byte[] buffer = new byte[64 * 1024];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            final long start = System.nanoTime();
+            digest.update(buffer, 0, length);
+            hashNanos += System.nanoTime() - start;
+
+            out.write(buffer, 0, length);
+        }
+
+        out.closeArchiveEntry();
+
+        written(entry, entry.getSize(), digest.digest());
+    }
+
+    private void write(final TarArchiveEntry entry, final byte[] content, final TarArchiveOutputStream out) throws IOException {
+        final long start = System.nanoTime();
+        final byte[] hash = sha256().digest(content);
+        hashNanos += System.nanoTime() - start;
+
+        if (link(entry, content.length, hash, out)) return;
+
+        out.putArchiveEntry(entry);
+        out.write(content);
+        out.closeArchiveEntry();
+
+        written(entry, content.length, hash);
+    }
+
+    /**
+     * Too large to hold in memory, the content is hashed on its way to a
+     * temporary file and copied from there if it is not a duplicate
+     */
+    private void spill(final TarArchiveEntry entry, final InputStream in, final TarArchiveOutputStream out) throws IOException {
+        final File spill = File.createTempFile("archie-", ".spill");
+        try {
+            final MessageDigest digest = sha256();
+
+            try (final OutputStream file = IO.write(spill)) {
+                final byte[] buffer = new byte[64 * 1024];
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    final long start = System.nanoTime();
+                    digest.update(buffer, 0, length);
+                    hashNanos += System.nanoTime() - start;
+
+                    file.write(buffer, 0, length);
+                }
+            }
+
+            final byte[] hash = digest.digest();
+            if (link(entry, entry.getSize(), hash, out)) return;
+
+            out.putArchiveEntry(entry);
+            try (final InputStream content = IO.read(spill)) {
+                IO.copy(content, out);
+            }
+            out.closeArchiveEntry();
+
+            written(entry, entry.getSize(), hash);
+        } finally {
+            if (!spill.delete()) spill.deleteOnExit();
+        }
+    }
+
+    /**
+     * Writes the entry as a link if the same content was written before
+     *
+     * @return true if the entry was written as a link
+     */
+    private boolean link(final TarArchiveEntry entry, final long size, final byte[] hash, final TarArchiveOutputStream out) throws IOException {
+        final Written first = find(size, entry.getMode(), hash);
+        if (first == null) return false;
+
+        filesHashed++;
+        bytesHashed += size;
+        duplicates++;
+        bytesSaved += size;
+
+        final TarArchiveEntry link = new TarArchiveEntry(entry.getName(), TarConstants.LF_LINK);
+        link.setLinkName(first.name);
+        link.setMode(entry.getMode());
+        link.setModTime(entry.getModTime());
+        out.putArchiveEntry(link);
+        out.closeArchiveEntry();
+        return true;
+    }
+
+    private Written find(final long size, final int mode, final byte[] hash) {
+        for (final Written written : bySize.getOrDefault(size, new ArrayList<>())) {
+            if (written.mode == mode && Arrays.equals(written.hash, hash)) return written;
+        }
+        return null;
+    }
+
+    private void written(final TarArchiveEntry entry, final long size, final byte[] hash) {
+        filesHashed++;
+        bytesHashed += size;
+
+        // empty files gain nothing from a link
+        if (size == 0) return;
+
+        bySize.computeIfAbsent(size, s -> new ArrayList<>()).add(new Written(entry.getName(), entry.getMode(), hash));
+    }
+
+    private static boolean isRegularFile(final TarArchiveEntry entry) {
+        final byte flag = entry.getLinkFlag();
+        return (flag == TarConstants.LF_NORMAL || flag == TarConstants.LF_OLDNORM) && !entry.isSparse();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Written {
+        private final String name;
+        private final int mode;
+        private final byte[] hash;
+
+        private Written(final String name, final int mode, final byte[] hash) {
+            this.name = name;
+            this.mode = mode;
+            this.hash = hash;
+        }
+    }
+}
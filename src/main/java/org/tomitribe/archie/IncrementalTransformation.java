@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Objects;
+
+/**
+ * Re-transforms a zip, jar or war reusing the output of a previous run.
+ *
+ * Entries of the new input are compared by name, CRC and size with the
+ * entries of the previous input, using only the central directories.  For
+ * entries that did not change the already transformed bytes are copied in
+ * their compressed form from the previous output, so neither inflate,
+ * {@link Transformations#apply(String, byte[])} nor deflate run for them.
+ * Entries no transformation applies to are copied in their compressed form
+ * from the new input.  Only the remaining entries are transformed again.
+ *
+ * The previous output must have been written with the same transformations.
+ * When either previous file does not exist every entry is transformed, as
+ * with {@link ZipTransformation} for .zip files and {@link JarTransformation}
+ * for everything else.  The output is a plain zip or a jar the same way.
+ */
+public class IncrementalTransformation implements Transformer {
+
+    private final Transformations transformations;
+    private final File previousInput;
+    private final File previousOutput;
+
+    public IncrementalTransformation(final Transformations transformations, final File previousInput, final File previousOutput) {
+        this.transformations = Objects.requireNonNull(transformations, "transformations is required.");
+        this.previousInput = Objects.requireNonNull(previousInput, "previousInput is required.");
+        this.previousOutput = Objects.requireNonNull(previousOutput, "previousOutput is required.");
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Without random access to the new input nothing can be
+     * compared up front, so every entry is transformed.  With no
+     * file name to go by the output is a jar.
+     */
+    @Override
+    public void transform(final InputStream in, final OutputStream out) throws IOException {
+        new JarTransformation(transformations).transform(in, out);
+    }
+
+    @Override
+    public void transform(final File src, final File dest) throws IOException {
+        if (!previousInput.isFile() || !previousOutput.isFile()) {
+            if (isZip(src)) {
+                new ZipTransformation(transformations).transform(src, dest);
+            } else {
+                new JarTransformation(transformations).transform(src, dest);
+            }
+            return;
+        }
+
+        try (final ZipFile oldInput = new ZipFile(previousInput);
+             final ZipFile oldOutput = new ZipFile(previousOutput);
+             final ZipFile input = new ZipFile(src);
+             final OutputStream out = dest instanceof Binary ? ((Binary) dest).write() : IO.write(dest)) {
+            transform(oldInput, oldOutput, input, out, isZip(src));
+        }
+    }
+
+    /**
+     * As {@link Transformations#transformer(File)} decides, zip files are
+     * written as plain zips and everything else as jars
+     */
+    private static boolean isZip(final File file) {
+        return file.getName().endsWith(".zip");
+    }
+
+    private void transform(final ZipFile oldInput, final ZipFile oldOutput, final ZipFile input, final OutputStream destination,
+                           final boolean zip) throws IOException {
+        try (final ZipArchiveOutputStream out = zip
+                ? new ZipArchiveOutputStream(new UnclosableOutputStream(destination))
+                : new JarArchiveOutputStream(new UnclosableOutputStream(destination))) {
+
+            transformations.beforeArchive(out);
+
+            for (final ZipArchiveEntry entry : Collections.list(input.getEntriesInPhysicalOrder())) {
+                Interruption.check();
+
+                final String name = entry.getName();
+                if (transformations.skip(name)) continue;
+
+                if (entry.isDirectory()) {
+                    JarTransformation.write(transformations, entry, null, out);
+                    continue;
+                }
+
+                final Transformation.Replacement replacement = transformations.replacement(name);
+                if (replacement != null) {
+                    JarTransformation.replace(transformations, entry, replacement, out);
+                    continue;
+                }
+
+                final ZipFile source;
+                final ZipArchiveEntry raw;
+
+                if (!transformations.applies(name)) {
+                    source = input;
+                    raw = entry;
+                } else if (unchanged(oldInput.getEntry(name), entry) && oldOutput.getEntry(name) != null) {
+                    source = oldOutput;
+                    raw = oldOutput.getEntry(name);
+                } else {
+                    try (final InputStream in = input.getInputStream(entry)) {
+                        JarTransformation.write(transformations, entry, IO.readBytes(in), out);
+                    }
+                    continue;
+                }
+
+                transformations.beforeEntry(name, out);
+                try (final InputStream in = source.getRawInputStream(raw)) {
+                    out.addRawArchiveEntry(raw, in);
+                }
+                transformations.afterEntry(name, out);
+            }
+
+            transformations.afterArchive(out);
+        }
+    }
+
+    private static boolean unchanged(final ZipArchiveEntry previous, final ZipArchiveEntry entry) {
+        if (previous == null || previous.isDirectory()) return false;
+        if (previous.getCrc() == -1 || entry.getCrc() == -1) return false;
+        return previous.getCrc() == entry.getCrc() && previous.getSize() == entry.getSize();
+    }
+
+    public static class Builder {
+        private Transformations transformations = Transformations.builder().build();
+        private File previousInput;
+        private File previousOutput;
+
+        public Builder transformations(final Transformations transformations) {
+            this.transformations = transformations;
+            return this;
+        }
+
+        /**
+         * The input and output of the previous run whose
+         * transformed entries may be reused
+         */
+        public Builder previous(final File input, final File output) {
+            this.previousInput = input;
+            this.previousOutput = output;
+            return this;
+        }
+
+        public IncrementalTransformation build() {
+            return new IncrementalTransformation(transformations, previousInput, previousOutput);
+        }
+    }
+}
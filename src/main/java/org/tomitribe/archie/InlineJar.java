@@ -13,23 +13,57 @@
  */
 package org.tomitribe.archie;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
-import org.apache.commons.compress.archivers.jar.JarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.tomitribe.util.IO;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+/**
+ * Copies the entries of a jar into the archive being written.
+ *
+ * The jar is read and indexed the first time it is inlined.  The index
+ * holds every entry in its compressed form, so zip and jar targets get raw
+ * copies and nothing is inflated or deflated again, however many archives
+ * the jar goes into.  The index is shared safely between threads.
+ */
 @Data
 public class InlineJar implements Consumer<ArchiveOutputStream> {
 
     private final Supplier<byte[]> bytes;
 
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private volatile List<Indexed> index;
+
     public InlineJar(final Supplier<byte[]> bytes) {
         this.bytes = bytes;
     }
@@ -52,32 +86,24 @@ public class InlineJar implements Consumer<ArchiveOutputStream> {
 
     @Override
     public void accept(final ArchiveOutputStream out) {
-        try (final JarArchiveInputStream in = new JarArchiveInputStream(IO.read(bytes.get()))) {
-
-            JarArchiveEntry entry;
-            while ((entry = in.getNextJarEntry()) != null) {
+        try {
+            final boolean raw = out instanceof ZipArchiveOutputStream;
 
-                final String name = entry.getName();
+            for (final Indexed entry : index()) {
 
-                if (entry.isDirectory()) {
-                    final JarArchiveEntry dir = new JarArchiveEntry(name);
-                    out.putArchiveEntry(dir);
+                if (entry.directory) {
+                    out.putArchiveEntry(out instanceof TarArchiveOutputStream
+                            ? new TarArchiveEntry(entry.name)
+                            : new JarArchiveEntry(entry.name));
                     out.closeArchiveEntry();
+                } else if (raw) {
+                    ((ZipArchiveOutputStream) out).addRawArchiveEntry(entry.zipEntry(), new ByteArrayInputStream(entry.raw));
                 } else {
-
-                    final byte[] bytes = IO.readBytes(in);
-
-                    final JarArchiveEntry file = new JarArchiveEntry(name);
-                    file.setMethod(entry.getMethod());
-                    file.setSize(bytes.length);
-                    file.setTime(entry.getTime());
-                    file.setUnixMode(entry.getUnixMode());
-                    if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
-                    if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
-                    if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
-
-                    out.putArchiveEntry(file);
-                    out.write(bytes);
+                    final byte[] content = entry.content();
+                    out.putArchiveEntry(out instanceof TarArchiveOutputStream
+                            ? entry.tarEntry(content.length)
+                            : entry.jarEntry(content.length));
+                    out.write(content);
                     out.closeArchiveEntry();
                 }
             }
@@ -85,4 +111,107 @@ public class InlineJar implements Consumer<ArchiveOutputStream> {
             throw new UncheckedIOException(e);
         }
     }
+
+    private List<Indexed> index() throws IOException {
+        List<Indexed> index = this.index;
+        if (index == null) {
+            synchronized (this) {
+                index = this.index;
+                if (index == null) {
+                    index = index(bytes.get());
+                    this.index = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    private static List<Indexed> index(final byte[] jar) throws IOException {
+        final List<Indexed> index = new ArrayList<>();
+
+        try (final ZipFile zip = new ZipFile(new SeekableInMemoryByteChannel(jar))) {
+            for (final ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                if (entry.isDirectory()) {
+                    index.add(new Indexed(entry, true, ZipMethod.STORED.getCode(), null));
+                } else if (entry.getMethod() == ZipMethod.STORED.getCode() || entry.getMethod() == ZipMethod.DEFLATED.getCode()) {
+                    try (final InputStream in = zip.getRawInputStream(entry)) {
+                        index.add(new Indexed(entry, false, entry.getMethod(), IO.readBytes(in)));
+                    }
+                } else {
+                    // rare methods are kept inflated so any target can take them
+                    try (final InputStream in = zip.getInputStream(entry)) {
+                        index.add(new Indexed(entry, false, ZipMethod.STORED.getCode(), IO.readBytes(in)));
+                    }
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(index);
+    }
+
+    private static class Indexed {
+        private final String name;
+        private final boolean directory;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long time;
+        private final int unixMode;
+        private final FileTime creationTime;
+        private final FileTime lastModifiedTime;
+        private final FileTime lastAccessTime;
+        private final byte[] raw;
+
+        private Indexed(final ZipArchiveEntry entry, final boolean directory, final int method, final byte[] raw) {
+            this.name = entry.getName();
+            this.directory = directory;
+            this.method = method;
+            this.crc = entry.getCrc();
+            this.size = entry.getSize();
+            this.time = entry.getTime();
+            this.unixMode = entry.getUnixMode();
+            this.creationTime = entry.getCreationTime();
+            this.lastModifiedTime = entry.getLastModifiedTime();
+            this.lastAccessTime = entry.getLastAccessTime();
+            this.raw = raw;
+        }
+
+        private ZipArchiveEntry zipEntry() {
+            final JarArchiveEntry file = jarEntry(size);
+            file.setMethod(method);
+            file.setCrc(crc);
+            file.setCompressedSize(raw.length);
+            return file;
+        }
+
+        private JarArchiveEntry jarEntry(final long size) {
+            final JarArchiveEntry file = new JarArchiveEntry(name);
+            file.setMethod(method);
+            file.setSize(size);
+            file.setTime(time);
+            file.setUnixMode(unixMode);
+            if (creationTime != null) file.setCreationTime(creationTime);
+            if (lastModifiedTime != null) file.setLastModifiedTime(lastModifiedTime);
+            if (lastAccessTime != null) file.setLastAccessTime(lastAccessTime);
+            return file;
+        }
+
+        private ArchiveEntry tarEntry(final long size) {
+            final TarArchiveEntry file = new TarArchiveEntry(name);
+            file.setSize(size);
+            file.setModTime(time);
+            return file;
+        }
+
+        private byte[] content() throws IOException {
+            if (method == ZipMethod.STORED.getCode()) return raw;
+
+            final Inflater inflater = new Inflater(true);
+            try (final InputStream in = new InflaterInputStream(new ByteArrayInputStream(raw), inflater)) {
+                return IO.readBytes(in);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
 }
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Entries inserted into many archives, prepared once.
+ *
+ * The content of every entry is read, its CRC computed and its deflated
+ * form kept when the bundle is built.  Zip and jar outputs then get the
+ * entries as raw, already compressed copies, so inserting the bundle into
+ * an archive costs no more than copying its bytes.  Tar outputs, which
+ * compress the whole stream rather than entries, get the prepared content
+ * behind a header built once with the bundle.  The header is still encoded
+ * by each TarArchiveOutputStream: it has no way to take raw records, and
+ * writing past it would bypass its block buffer and the entries a
+ * {@link TarGzIndex} records.
+ *
+ * Use it anywhere an {@link InsertEntry} fits, for example
+ * {@code Transformations.builder().after(bundle)}.
+ */
+public class InsertBundle implements Consumer<ArchiveOutputStream> {
+
+    private final List<Compiled> entries;
+
+    private InsertBundle(final List<Compiled> entries) {
+        this.entries = Collections.unmodifiableList(entries);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public List<String> getNames() {
+        final List<String> names = new ArrayList<>();
+        for (final Compiled entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    @Override
+    public void accept(final ArchiveOutputStream out) {
+        try {
+            if (out instanceof ZipArchiveOutputStream) {
+                final ZipArchiveOutputStream zip = (ZipArchiveOutputStream) out;
+                for (final Compiled entry : entries) {
+                    zip.addRawArchiveEntry(entry.zipEntry(), new ByteArrayInputStream(entry.compressed));
+                }
+            } else if (out instanceof TarArchiveOutputStream) {
+                for (final Compiled entry : entries) {
+                    out.putArchiveEntry(entry.tar);
+                    out.write(entry.content);
+                    out.closeArchiveEntry();
+                }
+            } else {
+                throw new InsertEntry.UnsupportedArchiveException(out);
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class Compiled {
+        private final String name;
+        private final long time;
+        private final byte[] content;
+        private final long crc;
+        private final int method;
+        private final byte[] compressed;
+
+        /**
+         * Only read by TarArchiveOutputStream, so shared by every output
+         */
+        private final TarArchiveEntry tar;
+
+        private Compiled(final String name, final long time, final byte[] content, final int level) {
+            this.name = name;
+            this.time = time;
+            this.content = content;
+
+            final CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            this.crc = crc32.getValue();
+
+            final byte[] deflated = Deflate.deflate(content, level);
+            if (deflated.length < content.length) {
+                this.method = ZipMethod.DEFLATED.getCode();
+                this.compressed = deflated;
+            } else {
+                this.method = ZipMethod.STORED.getCode();
+                this.compressed = content;
+            }
+
+            this.tar = new TarArchiveEntry(name);
+            this.tar.setSize(content.length);
+            this.tar.setModTime(time);
+        }
+
+        private ZipArchiveEntry zipEntry() {
+            final ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setMethod(method);
+            entry.setCrc(crc);
+            entry.setSize(content.length);
+            entry.setCompressedSize(compressed.length);
+            entry.setTime(time);
+            return entry;
+        }
+    }
+
+    public static class Builder {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<Supplier<byte[]>> contents = new ArrayList<>();
+        private long time = -1;
+        private int level = Deflater.DEFAULT_COMPRESSION;
+
+        public Builder add(final String name, final Supplier<byte[]> bytes) {
+            names.add(Objects.requireNonNull(name, "name is required."));
+            contents.add(Objects.requireNonNull(bytes, "bytes is required."));
+            return this;
+        }
+
+        public Builder add(final String name, final byte[] bytes) {
+            return add(name, () -> bytes);
+        }
+
+        public Builder add(final String name, final String content) {
+            return add(name, () -> content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Builder add(final String name, final File content) {
+            return add(name, () -> readBytes(content));
+        }
+
+        /**
+         * The modification time of the entries, the time the bundle is built by default
+         */
+        public Builder time(final long time) {
+            this.time = time;
+            return this;
+        }
+
+        /**
+         * The deflate level used for zip and jar outputs
+         */
+        public Builder level(final int level) {
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Reads and compresses the content of every entry
+         */
+        public InsertBundle build() {
+            final long time = this.time != -1 ? this.time : System.currentTimeMillis();
+
+            final List<Compiled> compiled = new ArrayList<>();
+            for (int i = 0; i < names.size(); i++) {
+                compiled.add(new Compiled(names.get(i), time, contents.get(i).get(), level));
+            }
+            return new InsertBundle(compiled);
+        }
+
+        private static byte[] readBytes(final File content) {
+            try {
+                return IO.readBytes(content);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
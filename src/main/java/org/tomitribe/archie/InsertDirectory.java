@@ -0,0 +1,431 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.zip.UnixStat;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Inserts every file and directory under a directory, in sorted order
+ * and with the permissions and modification time found on disk.
+ * Symbolic links are kept as links and never followed.
+ *
+ * Files are read, and for zip and jar outputs crc'd and deflated, on an
+ * executor that stays a few files ahead of the archive, the pool shared
+ * with the parallel gzip and bzip2 streams unless another is given.  The
+ * archive callback only copies prepared bytes.  How far ahead is bounded
+ * by {@code maxPending}, the bytes held by files prepared but not yet
+ * written.  Files larger than {@code maxBuffered} are not held in memory
+ * and are streamed by the writer instead.
+ */
+public class InsertDirectory implements Consumer<ArchiveOutputStream> {
+
+    public static final long DEFAULT_MAX_BUFFERED = 8 * 1024 * 1024;
+    public static final long DEFAULT_MAX_PENDING = 32 * 1024 * 1024;
+
+    private final File directory;
+    private final String prefix;
+    private final int threads;
+    private final int level;
+    private final long maxBuffered;
+    private final long maxPending;
+    private final Executor executor;
+
+    private InsertDirectory(final File directory, final String prefix, final int threads, final int level,
+                            final long maxBuffered, final long maxPending, final Executor executor) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.threads = threads;
+        this.level = level;
+        this.maxBuffered = maxBuffered;
+        this.maxPending = maxPending;
+        this.executor = executor;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void accept(final ArchiveOutputStream out) {
+        if (!(out instanceof ZipArchiveOutputStream) && !(out instanceof TarArchiveOutputStream)) {
+            throw new InsertEntry.UnsupportedArchiveException(out);
+        }
+
+        final boolean raw = out instanceof ZipArchiveOutputStream;
+
+        try {
+            final List<Found> paths = walk(directory.toPath());
+
+            final Deque<Future<Prepared>> pending = new ArrayDeque<>();
+            try {
+                final Deque<Long> costs = new ArrayDeque<>();
+                long buffered = 0;
+                int next = 0;
+
+                while (next < paths.size() || !pending.isEmpty()) {
+                    while (next < paths.size() && pending.size() < threads * 2) {
+                        final Found found = paths.get(next);
+                        final long cost = cost(found, raw);
+
+                        // one file is always let through, however large, so the writer never waits on nothing
+                        if (!pending.isEmpty() && buffered + cost > maxPending) break;
+
+                        next++;
+                        buffered += cost;
+                        costs.add(cost);
+                        pending.add(Workers.submit(executor, () -> prepare(found, raw)));
+                    }
+
+                    buffered -= costs.removeFirst();
+                    write(out, get(pending.removeFirst()));
+                }
+            } finally {
+                // the files read ahead of a failure are not wanted
+                for (final Future<Prepared> future : pending) {
+                    future.cancel(true);
+                }
+            }
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Symbolic links are not followed, they become links in the archive.
+     * The paths are sorted so the archive is the same on every platform.
+     */
+    private static List<Found> walk(final Path root) throws IOException {
+        if (!Files.isDirectory(root)) throw new FileNotFoundException(root.toString());
+
+        final List<Found> found = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attributes) {
+                if (!dir.equals(root)) found.add(new Found(dir, attributes));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+                // sockets, devices and the like have no place in an archive
+                if (attributes.isRegularFile() || attributes.isSymbolicLink()) found.add(new Found(file, attributes));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        found.sort(Comparator.comparing(f -> root.relativize(f.path)));
+        return found;
+    }
+
+    /**
+     * @return the bytes held in memory once the file is prepared, its
+     * content and for raw outputs its compressed copy
+     */
+    private long cost(final Found found, final boolean raw) {
+        final BasicFileAttributes attributes = found.attributes;
+        if (!attributes.isRegularFile() || attributes.size() > maxBuffered) return 0;
+        return raw ? attributes.size() * 2 : attributes.size();
+    }
+
+    private Prepared prepare(final Found found, final boolean raw) throws IOException {
+        final Path path = found.path;
+        final BasicFileAttributes attributes = found.attributes;
+        final String relative = directory.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+        final long time = attributes.lastModifiedTime().toMillis();
+
+        if (attributes.isDirectory()) {
+            return new Prepared(prefix + relative + "/", path, true, null, permissions(path, true), time, 0, null);
+        }
+
+        if (attributes.isSymbolicLink()) {
+            final String linkName = Files.readSymbolicLink(path).toString().replace(File.separatorChar, '/');
+            return new Prepared(prefix + relative, path, false, linkName, UnixStat.DEFAULT_LINK_PERM, time, 0, null);
+        }
+
+        final Prepared prepared = new Prepared(prefix + relative, path, false, null, permissions(path, false), time, attributes.size(), null);
+        if (attributes.size() > maxBuffered) return prepared;
+
+        final byte[] content = Files.readAllBytes(path);
+        return prepared.content(content, raw ? level : null);
+    }
+
+    private static void write(final ArchiveOutputStream out, final Prepared prepared) throws IOException {
+        if (prepared.linkName != null) {
+            link(out, prepared);
+            return;
+        }
+
+        if (out instanceof TarArchiveOutputStream) {
+            final TarArchiveEntry entry = new TarArchiveEntry(prepared.name);
+            entry.setMode((prepared.directory ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG) | prepared.mode);
+            entry.setModTime(prepared.time);
+            if (!prepared.directory) entry.setSize(prepared.size);
+            out.putArchiveEntry(entry);
+        } else {
+            final ZipArchiveEntry entry = new ZipArchiveEntry(prepared.name);
+            entry.setUnixMode((prepared.directory ? UnixStat.DIR_FLAG : UnixStat.FILE_FLAG) | prepared.mode);
+            entry.setTime(prepared.time);
+
+            if (prepared.compressed != null) {
+                entry.setMethod(prepared.method);
+                entry.setCrc(prepared.crc);
+                entry.setSize(prepared.size);
+                entry.setCompressedSize(prepared.compressed.length);
+                ((ZipArchiveOutputStream) out).addRawArchiveEntry(entry, new ByteArrayInputStream(prepared.compressed));
+                return;
+            }
+
+            if (!prepared.directory) entry.setSize(prepared.size);
+            out.putArchiveEntry(entry);
+        }
+
+        if (prepared.content != null) {
+            out.write(prepared.content);
+        } else if (!prepared.directory) {
+            try (final InputStream in = Files.newInputStream(prepared.path)) {
+                IO.copy(in, out);
+            }
+        }
+        out.closeArchiveEntry();
+    }
+
+    private static void link(final ArchiveOutputStream out, final Prepared prepared) throws IOException {
+        final int mode = UnixStat.LINK_FLAG | prepared.mode;
+
+        if (out instanceof TarArchiveOutputStream) {
+            final TarArchiveEntry link = new TarArchiveEntry(prepared.name, TarConstants.LF_SYMLINK);
+            link.setLinkName(prepared.linkName);
+            link.setMode(mode);
+            link.setModTime(prepared.time);
+            out.putArchiveEntry(link);
+            out.closeArchiveEntry();
+            return;
+        }
+
+        /*
+         * Zip keeps the link target as the entry content
+         */
+        final byte[] bytes = prepared.linkName.getBytes(StandardCharsets.UTF_8);
+        final ZipArchiveEntry link = new ZipArchiveEntry(prepared.name);
+        link.setUnixMode(mode);
+        link.setTime(prepared.time);
+        link.setSize(bytes.length);
+        out.putArchiveEntry(link);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static Prepared get(final Future<Prepared> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private static int permissions(final Path path, final boolean directory) throws IOException {
+        try {
+            final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+
+            // PosixFilePermission is declared from OWNER_READ (0400) down to OTHERS_EXECUTE (01)
+            int mode = 0;
+            for (final PosixFilePermission permission : permissions) {
+                mode |= 1 << (8 - permission.ordinal());
+            }
+            return mode;
+        } catch (final UnsupportedOperationException e) {
+            if (directory) return UnixStat.DEFAULT_DIR_PERM;
+            return Files.isExecutable(path) ? 0755 : UnixStat.DEFAULT_FILE_PERM;
+        }
+    }
+
+    private static class Found {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        private Found(final Path path, final BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+
+    private static class Prepared {
+        private final String name;
+        private final Path path;
+        private final boolean directory;
+        private final String linkName;
+        private final int mode;
+        private final long time;
+        private final long size;
+        private final byte[] content;
+        private long crc;
+        private int method;
+        private byte[] compressed;
+
+        private Prepared(final String name, final Path path, final boolean directory, final String linkName,
+                         final int mode, final long time, final long size, final byte[] content) {
+            this.name = name;
+            this.path = path;
+            this.directory = directory;
+            this.linkName = linkName;
+            this.mode = mode;
+            this.time = time;
+            this.size = size;
+            this.content = content;
+        }
+
+        /**
+         * @param level the deflate level when the entry will be written
+         * raw, or null when the output compresses it itself
+         */
+        private Prepared content(final byte[] content, final Integer level) {
+            final Prepared prepared = new Prepared(name, path, directory, linkName, mode, time, content.length, content);
+            if (level == null) return prepared;
+
+            final CRC32 crc32 = new CRC32();
+            crc32.update(content);
+            prepared.crc = crc32.getValue();
+
+            final byte[] deflated = Deflate.deflate(content, level);
+            if (deflated.length < content.length) {
+                prepared.method = ZipMethod.DEFLATED.getCode();
+                prepared.compressed = deflated;
+            } else {
+                prepared.method = ZipMethod.STORED.getCode();
+                prepared.compressed = content;
+            }
+            return prepared;
+        }
+    }
+
+    public static class Builder {
+
+        private File directory;
+        private String prefix = "";
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private int level = Deflater.DEFAULT_COMPRESSION;
+        private long maxBuffered = DEFAULT_MAX_BUFFERED;
+        private long maxPending = DEFAULT_MAX_PENDING;
+        private Executor executor = Workers.shared();
+
+        public Builder directory(final File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * The path inside the archive the tree is inserted under, the root by default
+         */
+        public Builder prefix(final String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        /**
+         * The number of files read and compressed at once, as far as the
+         * threads of the executor allow
+         */
+        public Builder threads(final int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * The deflate level used for zip and jar outputs
+         */
+        public Builder level(final int level) {
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Files larger than this are streamed by the writer rather than prepared ahead
+         */
+        public Builder maxBuffered(final long maxBuffered) {
+            this.maxBuffered = maxBuffered;
+            return this;
+        }
+
+        /**
+         * The most bytes held by files read ahead of the writer
+         */
+        public Builder maxPending(final long maxPending) {
+            this.maxPending = maxPending;
+            return this;
+        }
+
+        /**
+         * The executor files are read and compressed on, the pool shared
+         * with the parallel gzip and bzip2 streams by default
+         */
+        public Builder executor(final Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public InsertDirectory build() {
+            Objects.requireNonNull(directory, "directory is required.");
+            if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+
+            String prefix = this.prefix == null ? "" : this.prefix;
+            while (prefix.startsWith("/")) prefix = prefix.substring(1);
+            if (!prefix.isEmpty() && !prefix.endsWith("/")) prefix += "/";
+
+            return new InsertDirectory(directory, prefix, threads, level, maxBuffered, maxPending,
+                    Objects.requireNonNull(executor, "executor is required."));
+        }
+    }
+}
@@ -22,11 +22,13 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.tomitribe.util.IO;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -35,39 +37,69 @@ public class InsertEntry implements Consumer<ArchiveOutputStream> {
 
     private final String name;
     private final Supplier<byte[]> bytes;
+    private final Path path;
+    private final Supplier<InputStream> stream;
+    private final long size;
+
+    private InsertEntry(final String name, final Supplier<byte[]> bytes, final Path path,
+                        final Supplier<InputStream> stream, final long size) {
+        final int contents = (bytes != null ? 1 : 0) + (path != null ? 1 : 0) + (stream != null ? 1 : 0);
+        if (contents > 1) throw new AmbiguousContentException(name);
 
-    private InsertEntry(final String name, final Supplier<byte[]> bytes) {
         this.name = name;
         this.bytes = bytes;
+        this.path = path;
+        this.stream = stream;
+        this.size = size;
     }
 
     @Override
     public void accept(final ArchiveOutputStream archiveOutputStream) {
         try {
-            final byte[] content = bytes.get();
-            final ArchiveEntry archiveEntry = createArchiveEntry(archiveOutputStream, name, content);
-            archiveOutputStream.putArchiveEntry(archiveEntry);
-            archiveOutputStream.write(content);
-            archiveOutputStream.closeArchiveEntry();
+            if (bytes != null) {
+                final byte[] content = bytes.get();
+                final ArchiveEntry archiveEntry = createArchiveEntry(archiveOutputStream, name, content.length);
+                archiveOutputStream.putArchiveEntry(archiveEntry);
+                archiveOutputStream.write(content);
+                archiveOutputStream.closeArchiveEntry();
+                return;
+            }
+
+            /*
+             * Streamed content is never held in memory.  Tar needs the size
+             * up front, which we have.  Zip and jar entries are deflated with
+             * a data descriptor, so the crc is computed as the bytes go by.
+             */
+            final long length = path != null ? Files.size(path) : size;
+            try (final InputStream in = path != null ? Files.newInputStream(path) : stream.get()) {
+                final ArchiveEntry archiveEntry = createArchiveEntry(archiveOutputStream, name, length);
+                archiveOutputStream.putArchiveEntry(archiveEntry);
+                final byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    archiveOutputStream.write(buffer, 0, read);
+                }
+                archiveOutputStream.closeArchiveEntry();
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    private ArchiveEntry createArchiveEntry(final ArchiveOutputStream stream, final String entryName, final byte[] content) {
+    private ArchiveEntry createArchiveEntry(final ArchiveOutputStream stream, final String entryName, final long size) {
         if (stream instanceof TarArchiveOutputStream) {
             final TarArchiveEntry entry = new TarArchiveEntry(entryName);
-            entry.setSize(content.length);
+            entry.setSize(size);
             return entry;
         }
         if (stream instanceof JarArchiveOutputStream) {
             final JarArchiveEntry entry = new JarArchiveEntry(entryName);
-            entry.setSize(content.length);
+            entry.setSize(size);
             return entry;
         }
         if (stream instanceof ZipArchiveOutputStream) {
             final ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
-            entry.setSize(content.length);
+            entry.setSize(size);
             return entry;
         }
         throw new UnsupportedArchiveException(stream);
@@ -77,7 +109,17 @@ public class InsertEntry implements Consumer<ArchiveOutputStream> {
     public static class Builder {
 
         public Builder file(final File file) {
-            return bytes(() -> readBytes(file));
+            return path(file.toPath());
+        }
+
+        /**
+         * Content is streamed from the supplied InputStream, which must
+         * yield exactly size bytes.
+         */
+        public Builder stream(final Supplier<InputStream> stream, final long size) {
+            this.stream = stream;
+            this.size = size;
+            return this;
         }
 
         public Builder content(final String content) {
@@ -86,11 +128,9 @@ public class InsertEntry implements Consumer<ArchiveOutputStream> {
 
     }
 
-    private static byte[] readBytes(final File content) {
-        try {
-            return IO.readBytes(content);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+    public static class AmbiguousContentException extends RuntimeException {
+        public AmbiguousContentException(final String name) {
+            super(String.format("Entry '%s' has more than one of bytes, path and stream", name));
         }
     }
 
@@ -0,0 +1,67 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Lets engines that open their own files stop when the thread running
+ * them is interrupted, as {@link Transformer#transformAsync} does on
+ * cancel.  FileInputStream ignores interrupts, so a transform would
+ * otherwise run to the end of the archive.
+ */
+final class Interruption {
+
+    private Interruption() {
+        // no-op
+    }
+
+    /**
+     * Called between entries, so entries that are transformed in memory
+     * or copied through channels stop too
+     */
+    static void check() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Transformation interrupted");
+        }
+    }
+
+    /**
+     * Checks on every read, so a single large entry is not read to its end
+     */
+    static InputStream checking(final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                check();
+                return super.read();
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                check();
+                return super.read(b, off, len);
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                check();
+                return super.skip(n);
+            }
+        };
+    }
+}
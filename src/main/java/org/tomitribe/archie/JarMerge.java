@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Merges several jars into one in a single streaming pass, shade-style.
+ *
+ * Entries no transformation applies to are copied in their compressed form
+ * straight from the source jar.  The manifests and META-INF/services files
+ * of all inputs are merged in memory and written at the start of the output.
+ * Signature files are dropped as the merged jar can no longer match them.
+ *
+ * Inputs are read as files so their central directories can be used.
+ */
+public class JarMerge {
+
+    private static final String META_INF = "META-INF/";
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+    private static final String SERVICES = "META-INF/services/";
+
+    public enum Duplicates {
+        /**
+         * The first occurrence of an entry is kept, later ones are ignored
+         */
+        FIRST_WINS,
+
+        /**
+         * Later occurrences are ignored if their CRC and size match the
+         * first occurrence, otherwise the merge fails.  The check uses the
+         * central directory so no data needs to be decompressed.
+         */
+        HASH
+    }
+
+    private final Transformations transformations;
+    private final Duplicates duplicates;
+
+    public JarMerge(final Transformations transformations, final Duplicates duplicates) {
+        this.transformations = Objects.requireNonNull(transformations, "transformations is required.");
+        this.duplicates = Objects.requireNonNull(duplicates, "duplicates is required.");
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public void merge(final List<File> inputs, final File destination) throws IOException {
+        try (final OutputStream out = destination instanceof Binary ? ((Binary) destination).write() : IO.write(destination)) {
+            merge(inputs, out);
+        }
+    }
+
+    public void merge(final List<File> inputs, final OutputStream destination) throws IOException {
+        final List<ZipFile> jars = new ArrayList<>();
+        try {
+            for (final File input : inputs) {
+                jars.add(new ZipFile(input));
+            }
+
+            mergeJars(jars, destination);
+        } finally {
+            jars.forEach(ZipFile::closeQuietly);
+        }
+    }
+
+    private void mergeJars(final List<ZipFile> jars, final OutputStream destination) throws IOException {
+        try (final JarArchiveOutputStream out = new JarArchiveOutputStream(new UnclosableOutputStream(destination))) {
+
+            transformations.beforeArchive(out);
+
+            final Map<String, ZipArchiveEntry> written = new HashMap<>();
+
+            /*
+             * Random access lets us merge these up front and still
+             * have the manifest at the start of the jar
+             */
+            final Merged manifest = mergeManifests(jars);
+            final Map<String, Merged> services = mergeServices(jars);
+
+            if (manifest != null) {
+                final JarArchiveEntry dir = new JarArchiveEntry(META_INF);
+                dir.setTime(manifest.entry.getTime());
+                JarTransformation.write(transformations, dir, null, out);
+                written.put(META_INF, dir);
+
+                JarTransformation.write(transformations, manifest.entry, manifest.content, out);
+            }
+
+            for (final Merged service : services.values()) {
+                JarTransformation.write(transformations, service.entry, service.content, out);
+            }
+
+            for (final ZipFile jar : jars) {
+                for (final ZipArchiveEntry entry : Collections.list(jar.getEntriesInPhysicalOrder())) {
+
+                    final String name = entry.getName();
+
+                    if (MANIFEST.equals(name) || isService(name) || SignedJars.isSignature(name)) continue;
+                    if (transformations.skip(name)) continue;
+
+                    final ZipArchiveEntry previous = written.putIfAbsent(name, entry);
+                    if (previous != null) {
+                        if (isDuplicate(previous, entry)) continue;
+                        throw new DuplicateEntryException(name);
+                    }
+
+                    if (entry.isDirectory() || transformations.applies(name)) {
+                        final byte[] content = entry.isDirectory() ? null : read(jar, entry);
+                        JarTransformation.write(transformations, entry, content, out);
+                    } else {
+                        transformations.beforeEntry(name, out);
+                        try (final InputStream raw = jar.getRawInputStream(entry)) {
+                            out.addRawArchiveEntry(entry, raw);
+                        }
+                        transformations.afterEntry(name, out);
+                    }
+                }
+            }
+
+            transformations.afterArchive(out);
+        }
+    }
+
+    private boolean isDuplicate(final ZipArchiveEntry first, final ZipArchiveEntry entry) {
+        if (entry.isDirectory() || duplicates == Duplicates.FIRST_WINS) return true;
+        return first.getCrc() == entry.getCrc() && first.getSize() == entry.getSize();
+    }
+
+    private static Merged mergeManifests(final List<ZipFile> jars) throws IOException {
+        ZipArchiveEntry first = null;
+        Manifest merged = null;
+
+        for (final ZipFile jar : jars) {
+            final ZipArchiveEntry entry = jar.getEntry(MANIFEST);
+            if (entry == null) continue;
+
+            final Manifest manifest = new Manifest(new ByteArrayInputStream(read(jar, entry)));
+
+            if (merged == null) {
+                first = entry;
+                merged = new Manifest();
+            }
+
+            manifest.getMainAttributes().forEach(merged.getMainAttributes()::putIfAbsent);
+
+            for (final Map.Entry<String, Attributes> section : manifest.getEntries().entrySet()) {
+                final Attributes attributes = merged.getEntries().computeIfAbsent(section.getKey(), k -> new Attributes());
+                section.getValue().forEach(attributes::putIfAbsent);
+            }
+        }
+
+        if (merged == null) return null;
+
+        /*
+         * Signatures are dropped, so are the digests they were checking
+         */
+        merged.getEntries().values().forEach(attributes -> attributes.keySet()
+                .removeIf(name -> name.toString().endsWith("-Digest")));
+        merged.getEntries().values().removeIf(Attributes::isEmpty);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        merged.write(bytes);
+        return new Merged(first, bytes.toByteArray());
+    }
+
+    private static Map<String, Merged> mergeServices(final List<ZipFile> jars) throws IOException {
+        final Map<String, ZipArchiveEntry> entries = new LinkedHashMap<>();
+        final Map<String, Set<String>> providers = new LinkedHashMap<>();
+
+        for (final ZipFile jar : jars) {
+            for (final ZipArchiveEntry entry : Collections.list(jar.getEntriesInPhysicalOrder())) {
+                if (!isService(entry.getName())) continue;
+
+                entries.putIfAbsent(entry.getName(), entry);
+
+                final Set<String> lines = providers.computeIfAbsent(entry.getName(), k -> new LinkedHashSet<>());
+                for (final String line : new String(read(jar, entry), StandardCharsets.UTF_8).split("\r?\n")) {
+                    final String provider = line.replaceFirst("#.*", "").trim();
+                    if (!provider.isEmpty()) lines.add(provider);
+                }
+            }
+        }
+
+        final Map<String, Merged> merged = new LinkedHashMap<>();
+        for (final Map.Entry<String, ZipArchiveEntry> entry : entries.entrySet()) {
+            final StringBuilder content = new StringBuilder();
+            providers.get(entry.getKey()).forEach(provider -> content.append(provider).append('\n'));
+            merged.put(entry.getKey(), new Merged(entry.getValue(), content.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        return merged;
+    }
+
+    private static byte[] read(final ZipFile jar, final ZipArchiveEntry entry) throws IOException {
+        try (final InputStream in = jar.getInputStream(entry)) {
+            return IO.readBytes(in);
+        }
+    }
+
+    private static boolean isService(final String name) {
+        return name.startsWith(SERVICES)
+                && name.length() > SERVICES.length()
+                && name.indexOf('/', SERVICES.length()) == -1;
+    }
+
+    private static class Merged {
+        private final ZipArchiveEntry entry;
+        private final byte[] content;
+
+        Merged(final ZipArchiveEntry entry, final byte[] content) {
+            this.entry = entry;
+            this.content = content;
+        }
+    }
+
+    public static class Builder {
+        private Transformations transformations = Transformations.builder().build();
+        private Duplicates duplicates = Duplicates.FIRST_WINS;
+
+        public Builder transformations(final Transformations transformations) {
+            this.transformations = transformations;
+            return this;
+        }
+
+        public Builder duplicates(final Duplicates duplicates) {
+            this.duplicates = duplicates;
+            return this;
+        }
+
+        public JarMerge build() {
+            return new JarMerge(transformations, duplicates);
+        }
+    }
+
+    public static class DuplicateEntryException extends RuntimeException {
+        public DuplicateEntryException(final String name) {
+            super(String.format("Entry '%s' found in more than one jar with different content", name));
+        }
+    }
+}
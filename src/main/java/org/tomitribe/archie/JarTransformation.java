@@ -17,25 +17,41 @@ import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
 import org.apache.commons.compress.archivers.jar.JarArchiveInputStream;
 import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
 import org.tomitribe.util.IO;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.zip.CRC32;
 
-public class JarTransformation implements Transformer, Function<byte[], byte[]> {
+public class JarTransformation implements Transformer, Function<byte[], byte[]>, Signing {
 
     private final Transformations transformations;
+    private final Signer signer;
 
     public JarTransformation(final Transformations transformations) {
+        this(transformations, null);
+    }
+
+    /**
+     * @param signer when not null the output is signed as it is written
+     */
+    public JarTransformation(final Transformations transformations, final Signer signer) {
         this.transformations = transformations;
+        this.signer = signer;
     }
 
     public static Builder builder() {
@@ -66,60 +82,158 @@ public class JarTransformation implements Transformer, Function<byte[], byte[]>
          * However, the input and output streams passed in are typically from an enclosing JarArchiveOutputStream
          * and JarArchiveInputStream and need to stay open.
          */
-        try (final JarArchiveInputStream in = new JarArchiveInputStream(new UnclosableInputStream(source));
-             final JarArchiveOutputStream out = new JarArchiveOutputStream(new UnclosableOutputStream(destination))) {
+        try (final JarArchiveInputStream in = new JarArchiveInputStream(new UnclosableInputStream(source))) {
+            // the old data of replaced entries is skipped by the input when it moves to the next entry
+            transform(in::getNextZipEntry, entry -> new UnclosableInputStream(in), destination);
+        }
+    }
+
+    /**
+     * Reads the entries through the central directory, so the old data
+     * of a replaced entry is skipped by its compressed size.  The stream
+     * path has to inflate it to find the end of deflated entries written
+     * with a data descriptor.
+     */
+    @Override
+    public void transform(final File src, final File dest) throws IOException {
+        try (final ZipFile zip = new ZipFile(src);
+             final OutputStream out = dest instanceof Binary ? ((Binary) dest).write() : IO.write(dest)) {
+
+            final Iterator<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder()).iterator();
+            transform(() -> entries.hasNext() ? entries.next() : null, zip::getInputStream, out);
+        }
+    }
+
+    private void transform(final Entries entries, final Content content, final OutputStream destination) throws IOException {
+        try (final JarArchiveOutputStream out = signer != null
+                ? new SigningJarOutputStream(new UnclosableOutputStream(destination), signer)
+                : new JarArchiveOutputStream(new UnclosableOutputStream(destination))) {
 
             transformations.beforeArchive(out);
 
-            JarArchiveEntry entry;
-            while ((entry = in.getNextJarEntry()) != null) {
+            ZipArchiveEntry entry;
+            while ((entry = entries.next()) != null) {
+                Interruption.check();
 
                 final String name = entry.getName();
                 if (shouldSkip(name)) continue;
 
-                transformations.beforeEntry(name, out);
+                final Transformation.Replacement replacement = entry.isDirectory() ? null : transformations.replacement(name);
+                if (replacement != null) {
+                    replace(transformations, entry, replacement, out);
+                    continue;
+                }
 
                 if (entry.isDirectory()) {
-                    final JarArchiveEntry dir = new JarArchiveEntry(name);
-                    out.putArchiveEntry(dir);
-                    out.closeArchiveEntry();
-                } else {
-
-                    final byte[] bytes = transformations.apply(name, IO.readBytes(in));
-
-                    final JarArchiveEntry file = new JarArchiveEntry(name);
-                    file.setMethod(entry.getMethod());
-                    file.setSize(bytes.length);
-                    file.setTime(entry.getTime());
-                    file.setUnixMode(entry.getUnixMode());
-                    if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
-                    if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
-                    if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
-
-                    final CRC32 crc = new CRC32();
-                    crc.update(bytes);
-                    file.setCrc(crc.getValue());
-
-                    out.putArchiveEntry(file);
-
-                    out.write(bytes);
-                    out.closeArchiveEntry();
+                    write(transformations, entry, null, out);
+                    continue;
                 }
 
-                transformations.afterEntry(name, out);
+                try (final InputStream in = content.open(entry)) {
+                    write(transformations, entry, IO.readBytes(in), out);
+                }
             }
 
             transformations.afterArchive(out);
         }
     }
 
+    /**
+     * Writes one entry read from the source archive to the output, applying
+     * the transformations and entry callbacks.  Jar outputs get jar entries.
+     *
+     * @param content the entry data, null for directories
+     */
+    static void write(final Transformations transformations, final ZipArchiveEntry entry, final byte[] content, final ZipArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+
+        transformations.beforeEntry(name, out);
+
+        if (entry.isDirectory()) {
+            final ZipArchiveEntry dir = entry(name, out);
+            out.putArchiveEntry(dir);
+            out.closeArchiveEntry();
+        } else {
+
+            final byte[] bytes = transformations.apply(name, content);
+
+            final ZipArchiveEntry file = entry(name, out);
+            file.setMethod(entry.getMethod());
+            file.setSize(bytes.length);
+            file.setTime(entry.getTime());
+            file.setUnixMode(entry.getUnixMode());
+            if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
+            if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
+            if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
+
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+            file.setCrc(crc.getValue());
+
+            out.putArchiveEntry(file);
+
+            out.write(bytes);
+            out.closeArchiveEntry();
+        }
+
+        transformations.afterEntry(name, out);
+    }
+
+    /**
+     * Writes the replacement in place of the entry, without its old content.
+     *
+     * The entry keeps its compression method.  A stored entry needs its
+     * crc before its data, so a replacement read from a file is read once
+     * more for it.  Deflated entries have their crc computed as they are
+     * written.
+     */
+    static void replace(final Transformations transformations, final ZipArchiveEntry entry,
+                        final Transformation.Replacement replacement, final ZipArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+
+        transformations.beforeEntry(name, out);
+
+        replacement.write(out, (size, crc) -> {
+            final ZipArchiveEntry file = entry(name, out);
+            file.setMethod(entry.getMethod());
+            file.setSize(size);
+            if (entry.getMethod() == ZipMethod.STORED.getCode()) file.setCrc(crc.getAsLong());
+            file.setTime(entry.getTime());
+            file.setUnixMode(entry.getUnixMode());
+            if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
+            if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
+            if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
+            return file;
+        });
+
+        transformations.afterEntry(name, out);
+    }
+
+    private static ZipArchiveEntry entry(final String name, final ZipArchiveOutputStream out) {
+        return out instanceof JarArchiveOutputStream ? new JarArchiveEntry(name) : new ZipArchiveEntry(name);
+    }
+
+    @Override
+    public boolean isSigning() {
+        return signer != null;
+    }
+
     private boolean shouldSkip(final String name) {
         return transformations.skip(name);
     }
 
+    private interface Entries {
+        ZipArchiveEntry next() throws IOException;
+    }
+
+    private interface Content {
+        InputStream open(ZipArchiveEntry entry) throws IOException;
+    }
+
     public static class Builder {
 
         private Transformations.Builder builder = new Transformations.Builder();
+        private Signer signer;
 
         public Builder enhance(final String entryName, final Function<byte[], byte[]> transformer) {
             builder.enhance(entryName, transformer);
@@ -176,8 +290,16 @@ public class JarTransformation implements Transformer, Function<byte[], byte[]>
             return this;
         }
 
+        /**
+         * Sign the output as it is written, replacing any signature of the input
+         */
+        public Builder sign(final Signer signer) {
+            this.signer = signer;
+            return this;
+        }
+
         public JarTransformation build() {
-            return new JarTransformation(builder.build());
+            return new JarTransformation(builder.build(), signer);
         }
 
         public Builder skip(final Predicate<String> predicate) {
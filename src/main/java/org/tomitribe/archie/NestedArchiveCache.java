@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Remembers the output of nested archive transformations for the length of
+ * a run, so a jar that appears in several wars of an ear, or in every war
+ * of a batch, is only transformed once.
+ *
+ * <pre>
+ * final NestedArchiveCache cache = new NestedArchiveCache(256 * 1024 * 1024);
+ *
+ * final Function&lt;byte[], byte[]&gt; jars = cache.memoize(JarTransformation.builder()
+ *         .enhance(name -&gt; name.endsWith(".class"), enhancer)
+ *         .build());
+ *
+ * final Function&lt;byte[], byte[]&gt; wars = cache.memoize(JarTransformation.builder()
+ *         .enhance(name -&gt; name.endsWith(".jar"), jars)
+ *         .build());
+ * </pre>
+ *
+ * Inputs are identified by their SHA-256, plus the memoized function that
+ * transformed them, so one cache can serve several rule sets.  A weaker
+ * hash would let a crafted jar collide with another and be given its
+ * transformed output.  Least recently used outputs are dropped once the outputs held add
+ * up to more than the maximum.  Thread safe.
+ */
+public class NestedArchiveCache {
+
+    private final AtomicInteger functions = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long maxBytes;
+    private final Map<Key, byte[]> outputs = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+    public NestedArchiveCache(final long maxBytes) {
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a function that returns the remembered output when the
+     * same content was passed to it before
+     */
+    public Function<byte[], byte[]> memoize(final Function<byte[], byte[]> function) {
+        Objects.requireNonNull(function, "function is required.");
+
+        return new Memoized(functions.incrementAndGet(), function);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    private synchronized byte[] get(final Key key) {
+        final byte[] output = outputs.get(key);
+        if (output != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return output;
+    }
+
+    private synchronized void put(final Key key, final byte[] output) {
+        // would evict everything else and still not fit
+        if (output.length > maxBytes) return;
+
+        final byte[] previous = outputs.put(key, output);
+        if (previous != null) size -= previous.length;
+        size += output.length;
+
+        final Iterator<byte[]> eldest = outputs.values().iterator();
+        while (size > maxBytes) {
+            size -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Forwards {@link Signing} so a memoized signing transformation still
+     * receives signed jars
+     */
+    private class Memoized implements Function<byte[], byte[]>, Signing {
+        private final int id;
+        private final Function<byte[], byte[]> function;
+
+        private Memoized(final int id, final Function<byte[], byte[]> function) {
+            this.id = id;
+            this.function = function;
+        }
+
+        @Override
+        public byte[] apply(final byte[] bytes) {
+            final Key key = new Key(id, Digest.SHA256.digest().digest(bytes));
+
+            final byte[] cached = get(key);
+            if (cached != null) return cached;
+
+            final byte[] output = function.apply(bytes);
+            put(key, output);
+            return output;
+        }
+
+        @Override
+        public boolean isSigning() {
+            return Signing.isSigning(function);
+        }
+    }
+
+    private static class Key {
+        private final int function;
+        private final byte[] sha256;
+
+        private Key(final int function, final byte[] sha256) {
+            this.function = function;
+            this.sha256 = sha256;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return function == key.function && Arrays.equals(sha256, key.sha256);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * function + Arrays.hashCode(sha256);
+        }
+    }
+}
@@ -0,0 +1,524 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.tomitribe.util.IO;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses bzip2 on several threads, one bzip2 block per task.
+ *
+ * Blocks in a bzip2 stream are independent but start at arbitrary bit
+ * offsets, so the compressed input is scanned for the 48 bit block and
+ * end-of-stream magic numbers.  The scan runs on a thread of its own a
+ * bounded number of blocks ahead of the reader.  Each block is shifted
+ * into a small stream of its own, decoded with BZip2CompressorInputStream,
+ * and the results are handed out in order.  Concatenated streams, such as
+ * those written by pbzip2 or {@link ParallelBZip2OutputStream}, are
+ * supported.
+ *
+ * Block CRCs are checked by the decoder and the stream CRC is checked
+ * against the CRCs of the blocks that made it up.  A magic number can in
+ * theory appear inside compressed data.  A block that fails to decode is
+ * retried merged with the blocks that follow it, and an end-of-stream
+ * magic only ends the stream when its CRC is followed by the end of the
+ * input or another stream header.  Otherwise it was block data and the
+ * block carries on.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long END_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+    private static final int MAX_MERGES = 8;
+
+    private final InputStream in;
+    private final Executor executor;
+    private final BlockingQueue<Segment> segments;
+    private final Deque<Segment> ahead = new ArrayDeque<>();
+    private final Thread scanner;
+
+    // scanner state, positions are bit offsets into buffer
+    private byte[] buffer = new byte[256 * 1024];
+    private int bufferLength;
+    private long bit;
+    private long register;
+    private long blockStart = -1;
+    private long endStart;
+    private int endCrcBits = -1;
+    private int endCrc;
+    private int level;
+    private boolean inStream;
+    private boolean streams;
+
+    private int streamCrc;
+    private byte[] chunk = new byte[0];
+    private int position;
+    private boolean finished;
+    private boolean closed;
+
+    public ParallelBZip2InputStream(final InputStream in, final int threads) {
+        this(in, threads, Workers.shared());
+    }
+
+    /**
+     * @param threads how many blocks may be decoded ahead of the reader,
+     * times two
+     * @param executor runs the decoding, the pool shared by all the
+     * parallel streams when not given
+     */
+    public ParallelBZip2InputStream(final InputStream in, final int threads, final Executor executor) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+
+        this.in = new BufferedInputStream(in, 64 * 1024);
+        this.segments = new ArrayBlockingQueue<>(threads * 2);
+        this.executor = executor;
+        this.scanner = new DaemonThreads("archie-bunzip2-scan-").newThread(this::scan);
+        this.scanner.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+
+        while (position == chunk.length) {
+            if (!next()) return -1;
+        }
+
+        final int count = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        scanner.interrupt();
+        for (final Segment segment : ahead) {
+            if (segment.result != null) segment.result.cancel(true);
+        }
+        for (final Segment segment : segments) {
+            if (segment.result != null) segment.result.cancel(true);
+        }
+        in.close();
+    }
+
+    private boolean next() throws IOException {
+        if (finished) return false;
+
+        final Segment segment = take();
+        if (segment.isLast()) {
+            finished = true;
+            return false;
+        }
+
+        if (segment.isEnd()) {
+            if (segment.crc != streamCrc) {
+                throw new IOException(String.format("BZip2 stream CRC error, expected %08x but was %08x", segment.crc, streamCrc));
+            }
+            streamCrc = 0;
+            chunk = new byte[0];
+            position = 0;
+            return true;
+        }
+
+        chunk = decoded(segment);
+        position = 0;
+        streamCrc = (streamCrc << 1 | streamCrc >>> 31) ^ segment.crc;
+        return true;
+    }
+
+    private Segment take() throws IOException {
+        final Segment segment = ahead.isEmpty() ? await() : ahead.removeFirst();
+        if (segment.failure != null) throw segment.failure;
+        return segment;
+    }
+
+    private Segment peek() throws IOException {
+        if (ahead.isEmpty()) ahead.add(await());
+        return ahead.peekFirst();
+    }
+
+    private Segment await() throws IOException {
+        try {
+            return segments.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        }
+    }
+
+    private byte[] decoded(final Segment segment) throws IOException {
+        try {
+            return segment.result.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (final ExecutionException e) {
+            final IOException failure = e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Decompression failed", e.getCause());
+
+            return merged(segment, failure);
+        }
+    }
+
+    /**
+     * A false block boundary splits one real block in two, neither half
+     * decodes.  Join the failed block with the ones after it until it does.
+     */
+    private byte[] merged(final Segment segment, final IOException failure) throws IOException {
+        Bits bits = segment.bits;
+
+        for (int i = 0; i < MAX_MERGES; i++) {
+            final Segment following = peek();
+            if (following.failure != null || following.isLast() || following.isEnd()) break;
+
+            ahead.removeFirst().result.cancel(true);
+            bits = bits.append(following.bits);
+
+            try {
+                return decode(segment.level, bits, segment.crc);
+            } catch (final IOException e) {
+                // try a longer run
+            }
+        }
+
+        throw failure;
+    }
+
+    /**
+     * Runs on the scanner thread until the input is exhausted, the
+     * segments queue blocks it once it is far enough ahead
+     */
+    private void scan() {
+        try {
+            try {
+                while (header()) {
+                    stream();
+                }
+                segments.put(Segment.LAST);
+            } catch (final IOException e) {
+                segments.put(new Segment(e));
+            } catch (final RuntimeException e) {
+                segments.put(new Segment(new IOException("Scanning failed", e)));
+            }
+        } catch (final InterruptedException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Reads one stream, queueing its blocks and its end
+     */
+    private void stream() throws IOException, InterruptedException {
+        while (inStream) {
+            final int b = in.read();
+            if (b == -1) throw new EOFException("Unexpected end of bzip2 stream");
+
+            append(b);
+
+            for (int i = 7; i >= 0 && endCrcBits != 0; i--) {
+                register = register << 1 | (b >>> i) & 1;
+                bit++;
+
+                if (endCrcBits > 0) {
+                    endCrc = endCrc << 1 | (int) (register & 1);
+                    endCrcBits--;
+                }
+
+                if (bit < 48) continue;
+
+                final long magic = register & MAGIC_MASK;
+                if (magic != BLOCK_MAGIC && magic != END_MAGIC) continue;
+
+                // a magic inside the CRC means the end before it was false
+                endCrcBits = -1;
+
+                if (magic == BLOCK_MAGIC) {
+                    if (blockStart >= 0) queue(blockStart, bit - 48);
+                    blockStart = bit - 48;
+                } else {
+                    endStart = bit - 48;
+                    endCrcBits = 32;
+                    endCrc = 0;
+                }
+            }
+
+            // the rest of the byte after the CRC is padding
+            if (endCrcBits == 0) {
+                endCrcBits = -1;
+
+                if (followedByStream()) {
+                    if (blockStart >= 0) queue(blockStart, endStart);
+                    segments.put(new Segment(endCrc));
+                    inStream = false;
+                }
+            }
+        }
+    }
+
+    private boolean followedByStream() throws IOException {
+        in.mark(4);
+        try {
+            final int b = in.read();
+            return b == -1 || b == 'B' && in.read() == 'Z' && in.read() == 'h' && isLevel(in.read());
+        } finally {
+            in.reset();
+        }
+    }
+
+    private static boolean isLevel(final int b) {
+        return b >= '1' && b <= '9';
+    }
+
+    private boolean header() throws IOException {
+        final int b = in.read();
+        if (b == -1) {
+            if (!streams) throw new EOFException("Empty bzip2 input");
+            return false;
+        }
+
+        final int z = in.read();
+        final int h = in.read();
+        final int blockSize = in.read();
+
+        if (b != 'B' || z != 'Z' || h != 'h' || !isLevel(blockSize)) {
+            throw new IOException("Not in bzip2 format");
+        }
+
+        level = blockSize;
+        inStream = true;
+        streams = true;
+        bufferLength = 0;
+        bit = 0;
+        register = 0;
+        blockStart = -1;
+        return true;
+    }
+
+    private void append(final int b) {
+        if (bufferLength == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[bufferLength++] = (byte) b;
+    }
+
+    /**
+     * Queues the block between the two bit offsets and drops
+     * the bytes before the end of it from the buffer
+     */
+    private void queue(final long from, final long to) throws InterruptedException {
+        final Bits bits = Bits.copy(buffer, bufferLength, from, to - from);
+        final int crc = (int) bits.read(48, 32);
+        final int streamLevel = level;
+
+        final Segment segment = new Segment(streamLevel, bits, crc);
+        segment.result = Workers.submit(executor, () -> decode(streamLevel, bits, crc));
+        segments.put(segment);
+
+        final int drop = (int) (to >>> 3);
+        System.arraycopy(buffer, drop, buffer, 0, bufferLength - drop);
+        bufferLength -= drop;
+        bit -= drop * 8L;
+    }
+
+    /**
+     * Wraps a single block in a stream header and trailer of its own.  With
+     * one block the stream CRC is the block CRC.
+     */
+    private static byte[] decode(final int level, final Bits block, final int crc) throws IOException {
+        final BitWriter stream = new BitWriter((int) (block.length / 8) + 16);
+        stream.write(8, 'B');
+        stream.write(8, 'Z');
+        stream.write(8, 'h');
+        stream.write(8, level);
+        stream.write(block);
+        stream.write(24, END_MAGIC >>> 24);
+        stream.write(24, END_MAGIC);
+        stream.write(32, crc);
+
+        try (final InputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(stream.toByteArray()))) {
+            return IO.readBytes(in);
+        }
+    }
+
+    private static class Segment {
+        /**
+         * After the last stream
+         */
+        private static final Segment LAST = new Segment(0, null, 0, null);
+
+        private final int level;
+        private final Bits bits;
+        private final int crc;
+        private final IOException failure;
+        private Future<byte[]> result;
+
+        private Segment(final int level, final Bits bits, final int crc, final IOException failure) {
+            this.level = level;
+            this.bits = bits;
+            this.crc = crc;
+            this.failure = failure;
+        }
+
+        private Segment(final int level, final Bits bits, final int crc) {
+            this(level, bits, crc, null);
+        }
+
+        /**
+         * End of a stream carrying the stored stream CRC
+         */
+        private Segment(final int crc) {
+            this(0, null, crc, null);
+        }
+
+        /**
+         * The scan failed, reported once the reader gets this far
+         */
+        private Segment(final IOException failure) {
+            this(0, null, 0, failure);
+        }
+
+        private boolean isEnd() {
+            return bits == null;
+        }
+
+        private boolean isLast() {
+            return this == LAST;
+        }
+    }
+
+    /**
+     * A run of bits starting at bit 0 of the first byte, most significant first
+     */
+    private static class Bits {
+        private final byte[] data;
+        private final long length;
+
+        private Bits(final byte[] data, final long length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        static Bits copy(final byte[] source, final int sourceLength, final long from, final long length) {
+            final byte[] data = new byte[(int) ((length + 7) >>> 3)];
+            final int base = (int) (from >>> 3);
+            final int shift = (int) (from & 7);
+
+            for (int i = 0; i < data.length; i++) {
+                final int hi = source[base + i] & 0xff;
+                final int lo = base + i + 1 < sourceLength ? source[base + i + 1] & 0xff : 0;
+                data[i] = (byte) (hi << shift | lo >>> (8 - shift));
+            }
+
+            final int unused = (int) (data.length * 8L - length);
+            if (unused > 0) data[data.length - 1] &= (byte) (0xff << unused);
+
+            return new Bits(data, length);
+        }
+
+        long read(final long from, final int count) {
+            long value = 0;
+            for (long i = from; i < from + count; i++) {
+                value = value << 1 | (data[(int) (i >>> 3)] >>> (7 - (i & 7))) & 1;
+            }
+            return value;
+        }
+
+        Bits append(final Bits other) {
+            final BitWriter writer = new BitWriter(data.length + other.data.length);
+            writer.write(this);
+            writer.write(other);
+            return new Bits(writer.toByteArray(), length + other.length);
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] data;
+        private int size;
+        private long buffer;
+        private int count;
+
+        private BitWriter(final int capacity) {
+            data = new byte[Math.max(16, capacity)];
+        }
+
+        void write(final int bits, final long value) {
+            for (int i = bits - 1; i >= 0; i--) {
+                buffer = buffer << 1 | (value >>> i) & 1;
+                if (++count == 8) {
+                    put((int) buffer);
+                    buffer = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        void write(final Bits bits) {
+            final int whole = (int) (bits.length >>> 3);
+            for (int i = 0; i < whole; i++) {
+                write(8, bits.data[i] & 0xff);
+            }
+
+            final int rest = (int) (bits.length & 7);
+            if (rest > 0) write(rest, (bits.data[whole] & 0xff) >>> (8 - rest));
+        }
+
+        byte[] toByteArray() {
+            if (count > 0) {
+                put((int) (buffer << (8 - count)));
+                buffer = 0;
+                count = 0;
+            }
+            return Arrays.copyOf(data, size);
+        }
+
+        private void put(final int b) {
+            if (size == data.length) data = Arrays.copyOf(data, data.length * 2);
+            data[size++] = (byte) b;
+        }
+    }
+}
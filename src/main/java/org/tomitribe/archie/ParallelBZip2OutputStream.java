@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses bzip2 on several threads in the style of pbzip2.
+ *
+ * The input is cut into chunks that fit one bzip2 block and each chunk is
+ * compressed as its own bzip2 stream.  The block limit applies after the
+ * first run-length encoding, which can grow the input by a quarter, so
+ * the encoded length of each chunk is tracked as it fills.  The streams are written in
+ * order, one after the other.  bzip2, pbzip2 and BZip2CompressorInputStream
+ * with decompressConcatenated all read the result as one stream.
+ */
+public class ParallelBZip2OutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int chunkSize;
+    private final int blockLimit;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+
+    private byte[] chunk;
+    private int length;
+    private boolean written;
+
+    // the first run-length encoding as BZip2CompressorOutputStream does it
+    private int encoded;
+    private int runChar = -1;
+    private int runLength;
+
+    private boolean closed;
+
+    public ParallelBZip2OutputStream(final OutputStream out, final int threads) {
+        this(out, threads, BZip2CompressorOutputStream.MAX_BLOCKSIZE);
+    }
+
+    /**
+     * @param blockSize the bzip2 block size from 1 to 9, in units of 100k
+     */
+    public ParallelBZip2OutputStream(final OutputStream out, final int threads, final int blockSize) {
+        this(out, threads, blockSize, Workers.shared());
+    }
+
+    /**
+     * @param blockSize the bzip2 block size from 1 to 9, in units of 100k
+     * @param executor runs the compression, the pool shared by all the
+     * parallel streams when not given
+     */
+    public ParallelBZip2OutputStream(final OutputStream out, final int threads, final int blockSize, final Executor executor) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        if (blockSize < BZip2CompressorOutputStream.MIN_BLOCKSIZE || blockSize > BZip2CompressorOutputStream.MAX_BLOCKSIZE) {
+            throw new IllegalArgumentException("blockSize must be between 1 and 9: " + blockSize);
+        }
+
+        this.out = out;
+        this.blockSize = blockSize;
+        this.chunkSize = blockSize * 100_000;
+        this.blockLimit = blockSize * 100_000 - 20;
+        this.maxPending = threads * 2;
+        this.chunk = new byte[chunkSize];
+        this.executor = executor;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final int c = b[i] & 0xff;
+            if (!fits(c)) submit();
+
+            encode(c);
+            chunk[length++] = (byte) c;
+
+            if (length == chunkSize) submit();
+        }
+    }
+
+    /**
+     * @return true if the byte can join the chunk and the chunk still be
+     * written as a single block.  The compressor starts a new block when a
+     * run is encoded with the block already at its limit.
+     */
+    private boolean fits(final int c) {
+        if (c == runChar) return true;
+        if (runChar == -1) return encoded <= blockLimit;
+        return encoded + encodedLength(runLength) <= blockLimit;
+    }
+
+    private void encode(final int c) {
+        if (c == runChar) {
+            if (++runLength > 254) {
+                encoded += encodedLength(runLength);
+                runChar = -1;
+                runLength = 0;
+            }
+        } else {
+            if (runChar != -1) encoded += encodedLength(runLength);
+            runChar = c;
+            runLength = 1;
+        }
+    }
+
+    /**
+     * Runs of four or more are written as four bytes and a count
+     */
+    private static int encodedLength(final int runLength) {
+        return runLength < 4 ? runLength : 5;
+    }
+
+    /**
+     * Chunks are only compressed once full, flushing
+     * never forces out a partial chunk
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            // an empty input still needs one (empty) stream
+            if (length > 0 || !written) submit();
+
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+
+            out.flush();
+        } finally {
+            for (final Future<byte[]> chunk : pending) {
+                chunk.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        final byte[] input = chunk;
+        final int inputLength = length;
+
+        pending.add(Workers.submit(executor, () -> compress(input, inputLength)));
+        written = true;
+
+        chunk = new byte[chunkSize];
+        length = 0;
+        encoded = 0;
+        runChar = -1;
+        runLength = 0;
+
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            out.write(pending.removeFirst().get());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (final ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private byte[] compress(final byte[] input, final int inputLength) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 4 + 64);
+        try (final BZip2CompressorOutputStream bzip2 = new BZip2CompressorOutputStream(compressed, blockSize)) {
+            bzip2.write(input, 0, inputLength);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Experimental reader that decompresses a gzip file on several threads
+ * using the checkpoints of its {@link TarGzIndex}.
+ *
+ * The data between two checkpoints is inflated independently, starting
+ * from the saved window, and the chunks are handed out in order.  The CRC
+ * and size of the whole stream are checked against the gzip trailer once
+ * the last chunk has been read.
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private final File file;
+    private final FileChannel channel;
+    private final List<TarGzIndex.Checkpoint> checkpoints;
+    private final long length;
+    private final Executor executor;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private int submitted;
+    private byte[] chunk = new byte[0];
+    private int position;
+    private long size;
+    private boolean eof;
+    private boolean closed;
+
+    public ParallelGzipInputStream(final File file, final TarGzIndex index, final int threads) throws IOException {
+        this(file, index, threads, Workers.shared());
+    }
+
+    /**
+     * @param threads how many chunks may be inflated ahead of the reader,
+     * times two
+     * @param executor runs the decompression, the pool shared by all the
+     * parallel streams when not given
+     */
+    public ParallelGzipInputStream(final File file, final TarGzIndex index, final int threads, final Executor executor) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+
+        this.file = file;
+        this.checkpoints = index.getCheckpoints();
+        this.maxPending = threads * 2;
+        this.executor = executor;
+
+        if (checkpoints.isEmpty()) throw new IOException("Index of " + file.getName() + " has no checkpoints");
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.length = channel.size();
+            checkHeader();
+        } catch (final IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decompresses on several threads when the file has an index sidecar,
+     * otherwise falls back to a sequential GzipCompressorInputStream.  Only
+     * files written with {@link TarGzTransformation.Builder#index()} have
+     * one, see {@link TarGzTransformation.Builder#parallelGunzip(int)}.
+     */
+    public static InputStream open(final File file, final int threads) throws IOException {
+        final File index = TarGzIndex.file(file);
+        if (threads > 1 && index.exists()) {
+            return new ParallelGzipInputStream(file, TarGzIndex.read(index), threads);
+        }
+        return new GzipCompressorInputStream(IO.read(file));
+    }
+
+    @Override
+    public int read() throws IOException {
+        final byte[] b = new byte[1];
+        final int read = read(b, 0, 1);
+        return read == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (len == 0) return 0;
+
+        while (position == chunk.length) {
+            if (!next()) return -1;
+        }
+
+        final int count = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        for (final Future<byte[]> chunk : pending) {
+            chunk.cancel(true);
+        }
+        pending.clear();
+        channel.close();
+    }
+
+    private boolean next() throws IOException {
+        if (eof) return false;
+
+        while (submitted < checkpoints.size() && pending.size() < maxPending) {
+            final int i = submitted++;
+            pending.add(Workers.submit(executor, () -> inflate(i)));
+        }
+
+        if (pending.isEmpty()) {
+            eof = true;
+            checkTrailer();
+            return false;
+        }
+
+        try {
+            chunk = pending.removeFirst().get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Decompression failed", e.getCause());
+        }
+
+        position = 0;
+        crc.update(chunk, 0, chunk.length);
+        size += chunk.length;
+        return true;
+    }
+
+    private byte[] inflate(final int i) throws IOException {
+        final TarGzIndex.Checkpoint checkpoint = checkpoints.get(i);
+        final boolean last = i == checkpoints.size() - 1;
+        final long end = last ? length - 8 : checkpoints.get(i + 1).getCompressedOffset();
+        final long expected = last ? -1 : checkpoints.get(i + 1).getUncompressedOffset() - checkpoint.getUncompressedOffset();
+
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (checkpoint.getWindow().length > 0) inflater.setDictionary(checkpoint.getWindow());
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(expected > 0 ? (int) expected : 64 * 1024);
+            final byte[] input = new byte[64 * 1024];
+            final byte[] output = new byte[64 * 1024];
+            long offset = checkpoint.getCompressedOffset();
+
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (offset >= end) break;
+
+                    final ByteBuffer buffer = ByteBuffer.wrap(input, 0, (int) Math.min(input.length, end - offset));
+                    final int read = channel.read(buffer, offset);
+                    if (read <= 0) throw new EOFException("Unexpected end of " + file.getName());
+                    offset += read;
+                    inflater.setInput(input, 0, read);
+                }
+
+                final int count = inflater.inflate(output);
+                if (count == 0 && !inflater.needsInput() && !inflater.finished()) {
+                    throw new IOException("Corrupt deflate data in " + file.getName() + " at checkpoint " + i);
+                }
+                out.write(output, 0, count);
+            }
+
+            if (last ? !inflater.finished() : out.size() != expected || inflater.finished()) {
+                throw new IOException(String.format("Index of %s does not match the archive at checkpoint %s", file.getName(), i));
+            }
+
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new IOException("Corrupt deflate data in " + file.getName() + " at checkpoint " + i, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void checkHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(10);
+        read(header, 0);
+
+        if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b || header.get(2) != 8) {
+            throw new IOException("Not in gzip format: " + file.getName());
+        }
+
+        if (checkpoints.get(0).getCompressedOffset() != 10 || length < 18) {
+            throw new IOException("Index of " + file.getName() + " does not match the archive");
+        }
+    }
+
+    private void checkTrailer() throws IOException {
+        final ByteBuffer trailer = ByteBuffer.allocate(8);
+        read(trailer, length - 8);
+
+        final long expectedCrc = uint32(trailer, 0);
+        final long expectedSize = uint32(trailer, 4);
+
+        if (expectedCrc != crc.getValue()) {
+            throw new IOException(String.format("CRC mismatch in %s, expected %08x but was %08x", file.getName(), expectedCrc, crc.getValue()));
+        }
+
+        if (expectedSize != (size & 0xffffffffL)) {
+            throw new IOException(String.format("Size mismatch in %s, expected %s but was %s", file.getName(), expectedSize, size & 0xffffffffL));
+        }
+    }
+
+    private void read(final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + file.getName());
+            }
+        }
+    }
+
+    private static long uint32(final ByteBuffer buffer, final int offset) {
+        return (buffer.get(offset) & 0xffL)
+                | (buffer.get(offset + 1) & 0xffL) << 8
+                | (buffer.get(offset + 2) & 0xffL) << 16
+                | (buffer.get(offset + 3) & 0xffL) << 24;
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a single standard gzip member, compressing blocks of the
+ * input on several threads in the style of pigz.
+ *
+ * Each block is deflated independently with the last 32 KB of the
+ * previous block as its dictionary, so the compression ratio stays close
+ * to that of a single deflate stream.  Blocks end with a sync flush so
+ * their output can simply be concatenated.  The CRC is computed on the
+ * writing thread as data arrives.
+ *
+ * Output is readable by gunzip, GZIPInputStream and GzipCompressorInputStream.
+ *
+ * Because every block starts on a byte boundary with a known dictionary,
+ * block starts double as zran-style access points.  See {@link TarGzIndex}.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Deflate can only refer back this far, so this is all the
+     * dictionary a block can use
+     */
+    static final int WINDOW = 32 * 1024;
+
+    private final OutputStream out;
+    private final Executor executor;
+    private final int blockSize;
+    private final int maxPending;
+    private final Deque<Block> pending = new ArrayDeque<>();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int length;
+    private byte[] previous;
+    private long size;
+    private long submitted;
+    private long compressed;
+    private boolean closed;
+
+    private Consumer<TarGzIndex.Checkpoint> checkpoints;
+    private long spacing;
+    private long nextCheckpoint;
+
+    public ParallelGzipOutputStream(final OutputStream out, final int threads) throws IOException {
+        this(out, threads, DEFAULT_BLOCK_SIZE);
+    }
+
+    public ParallelGzipOutputStream(final OutputStream out, final int threads, final int blockSize) throws IOException {
+        this(out, threads, blockSize, Workers.shared());
+    }
+
+    /**
+     * @param threads how many blocks may be compressed ahead of the writer,
+     * times two
+     * @param executor runs the compression, the pool shared by all the
+     * parallel streams when not given
+     */
+    public ParallelGzipOutputStream(final OutputStream out, final int threads, final int blockSize, final Executor executor) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1: " + threads);
+        if (blockSize < WINDOW) throw new IllegalArgumentException("blockSize must be at least " + WINDOW + ": " + blockSize);
+
+        this.out = out;
+        this.blockSize = blockSize;
+        this.maxPending = threads * 2;
+        this.block = new byte[blockSize];
+        this.executor = executor;
+
+        writeHeader();
+    }
+
+    /**
+     * Reports an access point at the start of a block at least every
+     * {@code spacing} uncompressed bytes.  Must be called before any data
+     * is written.
+     */
+    void checkpoints(final long spacing, final Consumer<TarGzIndex.Checkpoint> checkpoints) {
+        this.spacing = spacing;
+        this.checkpoints = checkpoints;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+
+        crc.update(b, off, len);
+        size += len;
+
+        while (len > 0) {
+            final int count = Math.min(len, blockSize - length);
+            System.arraycopy(b, off, block, length, count);
+            length += count;
+            off += count;
+            len -= count;
+
+            if (length == blockSize) submit(false);
+        }
+    }
+
+    /**
+     * Blocks are only compressed once full, flushing
+     * never forces out a partial block
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            submit(true);
+
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+
+            writeTrailer();
+            out.flush();
+        } finally {
+            for (final Block block : pending) {
+                block.compressed.cancel(true);
+            }
+            pending.clear();
+
+            Deflater deflater;
+            while ((deflater = deflaters.poll()) != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    private void submit(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int inputLength = length;
+        final byte[] dictionary = previous;
+
+        pending.add(new Block(submitted, dictionary, Workers.submit(executor, () -> deflate(input, inputLength, dictionary, last))));
+        submitted += inputLength;
+
+        previous = input;
+        block = last ? null : new byte[blockSize];
+        length = 0;
+
+        while (pending.size() > maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        final Block next = pending.removeFirst();
+        try {
+            final byte[] bytes = next.compressed.get();
+
+            if (checkpoints != null && next.offset >= nextCheckpoint) {
+                checkpoints.accept(new TarGzIndex.Checkpoint(compressed, next.offset, window(next.dictionary)));
+                nextCheckpoint = next.offset + spacing;
+            }
+
+            out.write(bytes);
+            compressed += bytes.length;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (final ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    private byte[] deflate(final byte[] input, final int inputLength, final byte[] dictionary, final boolean last) {
+        final Deflater deflater = deflater();
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary, dictionary.length - WINDOW, WINDOW);
+            }
+
+            deflater.setInput(input, 0, inputLength);
+
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(inputLength / 2 + 64);
+            final byte[] buffer = new byte[64 * 1024];
+
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    final int count = deflater.deflate(buffer);
+                    compressed.write(buffer, 0, count);
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+
+            return compressed.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    private static byte[] window(final byte[] dictionary) {
+        if (dictionary == null) return new byte[0];
+
+        final byte[] window = new byte[WINDOW];
+        System.arraycopy(dictionary, dictionary.length - WINDOW, window, 0, WINDOW);
+        return window;
+    }
+
+    private Deflater deflater() {
+        final Deflater deflater = deflaters.poll();
+        return deflater != null ? deflater : new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[]{
+                (byte) 0x1f, (byte) 0x8b, // magic
+                Deflater.DEFLATED,        // compression method
+                0,                        // flags
+                0, 0, 0, 0,               // modification time
+                0,                        // extra flags
+                (byte) 255                // operating system, unknown
+        });
+        compressed = 10;
+    }
+
+    private void writeTrailer() throws IOException {
+        writeInt(crc.getValue());
+        writeInt(size);
+    }
+
+    private void writeInt(final long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >> 8) & 0xff));
+        out.write((int) ((value >> 16) & 0xff));
+        out.write((int) ((value >> 24) & 0xff));
+    }
+
+    private static class Block {
+        private final long offset;
+        private final byte[] dictionary;
+        private final Future<byte[]> compressed;
+
+        private Block(final long offset, final byte[] dictionary, final Future<byte[]> compressed) {
+            this.offset = offset;
+            this.dictionary = dictionary;
+            this.compressed = compressed;
+        }
+    }
+}
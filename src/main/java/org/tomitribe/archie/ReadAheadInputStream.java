@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the source stream on a thread of its own into a bounded ring of
+ * buffers, so the work done by the source, typically inflating, overlaps
+ * with the work done by the reader of this stream.
+ *
+ * The source is closed when this stream is closed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    public static final int DEFAULT_BUFFERS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private final InputStream in;
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread thread;
+
+    private Chunk chunk;
+    private int position;
+    private boolean eof;
+    private boolean closed;
+
+    public ReadAheadInputStream(final InputStream in) {
+        this(in, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ReadAheadInputStream(final InputStream in, final int buffers, final int bufferSize) {
+        if (buffers < 1) throw new IllegalArgumentException("buffers must be at least 1: " + buffers);
+        if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be at least 1: " + bufferSize);
+
+        this.in = in;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.filled = new ArrayBlockingQueue<>(buffers + 1);
+
+        for (int i = 0; i < buffers; i++) {
+            free.add(new byte[bufferSize]);
+        }
+
+        this.thread = new Thread(this::fill, "archie-read-ahead-" + count.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next()) return -1;
+        return chunk.buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) return 0;
+        if (!next()) return -1;
+
+        final int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk != null ? chunk.length - position : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes sure the current chunk has unread bytes
+     *
+     * @return false at the end of the source
+     */
+    private boolean next() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (eof) return false;
+        if (chunk != null && position < chunk.length) return true;
+
+        if (chunk != null) free.add(chunk.buffer);
+
+        try {
+            chunk = filled.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+        position = 0;
+
+        if (chunk.error != null) {
+            eof = true;
+            throw new IOException("Read ahead failed", chunk.error);
+        }
+
+        if (chunk.length < 0) {
+            eof = true;
+            return false;
+        }
+
+        return true;
+    }
+
+    private void fill() {
+        try {
+            while (true) {
+                final byte[] buffer = free.take();
+                final int length = readFully(buffer);
+
+                if (length > 0) filled.put(new Chunk(buffer, length, null));
+
+                if (length < buffer.length) {
+                    filled.put(new Chunk(null, -1, null));
+                    return;
+                }
+            }
+        } catch (final InterruptedException e) {
+            // closed
+        } catch (final Throwable t) {
+            filled.offer(new Chunk(null, -1, t));
+        }
+    }
+
+    private int readFully(final byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            final int n = in.read(buffer, length, buffer.length - length);
+            if (n == -1) break;
+            length += n;
+        }
+        return length;
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+        private final Throwable error;
+
+        private Chunk(final byte[] buffer, final int length, final Throwable error) {
+            this.buffer = buffer;
+            this.length = length;
+            this.error = error;
+        }
+    }
+}
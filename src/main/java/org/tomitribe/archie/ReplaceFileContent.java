@@ -13,27 +13,30 @@
  */
 package org.tomitribe.archie;
 
+import java.io.File;
 import java.nio.charset.StandardCharsets;
-import java.util.function.Function;
+import java.nio.file.Path;
+import java.util.function.Supplier;
 
-public class ReplaceFileContent implements Function<byte[], byte[]> {
-    private final String content;
+/**
+ * Replaces the content of an entry outright.  As a
+ * {@link Transformation.Replacement}, when it is the only rule for an
+ * entry the engines skip the old content instead of reading it only to
+ * throw it away.
+ */
+public class ReplaceFileContent extends Transformation.Replacement {
 
-    private ReplaceFileContent(final String content) {
-        this.content = content;
+    private ReplaceFileContent(final Supplier<byte[]> content, final Path path) {
+        super(content, path);
     }
 
     public static Builder builder() {
         return new Builder();
     }
 
-    @Override
-    public byte[] apply(byte[] bytes) {
-        return content.getBytes(StandardCharsets.UTF_8);
-    }
-
     public static class Builder {
         private String content = null;
+        private Path path = null;
 
         private Builder() {
         }
@@ -43,12 +46,27 @@ public class ReplaceFileContent implements Function<byte[], byte[]> {
             return this;
         }
 
+        /**
+         * The new content is streamed from the file when the entry is written
+         */
+        public Builder path(final Path path) {
+            this.path = path;
+            return this;
+        }
+
+        public Builder file(final File file) {
+            return path(file.toPath());
+        }
+
         public ReplaceFileContent build() {
-            if (content == null) {
+            if (content == null && path == null) {
                 throw new IllegalArgumentException("No content provided");
             }
 
-            return new ReplaceFileContent(content);
+            if (path != null) return new ReplaceFileContent(null, path);
+
+            final String content = this.content;
+            return new ReplaceFileContent(() -> content.getBytes(StandardCharsets.UTF_8), null);
         }
     }
 }
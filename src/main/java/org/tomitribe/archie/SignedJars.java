@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.tomitribe.util.IO;
+
+import java.io.IOException;
+import java.util.Enumeration;
+
+/**
+ * Tells signed jars apart by their signature files alone.
+ *
+ * A jar is signed when its META-INF directory holds a signature file
+ * ({@code .SF}) and a signature block ({@code .RSA}, {@code .DSA} or
+ * {@code .EC}).  Only entry names are looked at, read from the central
+ * directory so none of the entries are inflated.  Jars whose central
+ * directory cannot be read fall back to walking the local headers.
+ *
+ * Manifest digests alone do not make a jar signed, some unsigned jars
+ * such as ECJ carry them.
+ */
+final class SignedJars {
+
+    private static final String META_INF = "META-INF/";
+
+    private SignedJars() {
+        // no-op
+    }
+
+    static boolean isSigned(final byte[] jar) {
+        try (final ZipFile zip = new ZipFile(new SeekableInMemoryByteChannel(jar))) {
+            return isSigned(zip.getEntries());
+        } catch (final IOException e) {
+            return isSignedStreaming(jar);
+        }
+    }
+
+    /**
+     * @return true if the entry is a signature file or signature block
+     */
+    static boolean isSignature(final String name) {
+        return isSignatureFile(name) || isSignatureBlock(name);
+    }
+
+    private static boolean isSigned(final Enumeration<ZipArchiveEntry> entries) {
+        boolean file = false;
+        boolean block = false;
+
+        while (entries.hasMoreElements() && !(file && block)) {
+            final String name = entries.nextElement().getName();
+            file |= isSignatureFile(name);
+            block |= isSignatureBlock(name);
+        }
+
+        return file && block;
+    }
+
+    private static boolean isSignedStreaming(final byte[] jar) {
+        boolean file = false;
+        boolean block = false;
+
+        try (final ZipArchiveInputStream in = new ZipArchiveInputStream(IO.read(jar))) {
+            ZipArchiveEntry entry;
+            while (!(file && block) && (entry = in.getNextZipEntry()) != null) {
+                file |= isSignatureFile(entry.getName());
+                block |= isSignatureBlock(entry.getName());
+            }
+        } catch (final IOException e) {
+            // let's assume it's ok to weave this entry
+            return false;
+        }
+
+        return file && block;
+    }
+
+    private static boolean isSignatureFile(final String name) {
+        return inMetaInf(name) && name.toUpperCase().endsWith(".SF");
+    }
+
+    private static boolean isSignatureBlock(final String name) {
+        if (!inMetaInf(name)) return false;
+
+        final String upper = name.toUpperCase();
+        return upper.endsWith(".RSA")
+                || upper.endsWith(".DSA")
+                || upper.endsWith(".EC");
+    }
+
+    private static boolean inMetaInf(final String name) {
+        return name.startsWith(META_INF) && name.indexOf('/', META_INF.length()) == -1;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A key and certificate chain that jars are signed with, as jarsigner
+ * would with SHA-256 digests.
+ *
+ * Produces the PKCS#7 signature block over the signature file.  The block
+ * is detached and carries no signed attributes or timestamp, which is all
+ * the JDK needs to verify a jar.  RSA, DSA and EC keys are supported.
+ *
+ * See {@link JarTransformation.Builder#sign(Signer)}
+ */
+public class Signer {
+
+    private static final byte SEQUENCE = 0x30;
+    private static final byte SET = 0x31;
+    private static final byte INTEGER = 0x02;
+    private static final byte OCTET_STRING = 0x04;
+    private static final byte NULL = 0x05;
+    private static final byte OID = 0x06;
+    private static final byte CONTEXT_0 = (byte) 0xA0;
+
+    private static final String SIGNED_DATA = "1.2.840.113549.1.7.2";
+    private static final String DATA = "1.2.840.113549.1.7.1";
+    private static final String SHA256 = "2.16.840.1.101.3.4.2.1";
+    private static final String RSA = "1.2.840.113549.1.1.1";
+    private static final String DSA_WITH_SHA256 = "2.16.840.1.101.3.4.3.2";
+    private static final String ECDSA_WITH_SHA256 = "1.2.840.10045.4.3.2";
+
+    private final PrivateKey key;
+    private final List<X509Certificate> chain;
+    private final String name;
+
+    /**
+     * @param name the base name of the signature files, as the alias is
+     * for jarsigner.  Upper cased and cut to 8 characters.
+     */
+    public Signer(final PrivateKey key, final List<X509Certificate> chain, final String name) {
+        this.key = Objects.requireNonNull(key, "key is required.");
+        this.chain = Collections.unmodifiableList(new ArrayList<>(Objects.requireNonNull(chain, "chain is required.")));
+        this.name = fileName(Objects.requireNonNull(name, "name is required."));
+
+        if (this.chain.isEmpty()) throw new IllegalArgumentException("chain must hold the signer certificate");
+        extension(key);
+    }
+
+    /**
+     * Uses the key and certificate chain stored under the alias
+     */
+    public static Signer of(final KeyStore keyStore, final String alias, final char[] password) {
+        try {
+            final PrivateKey key = (PrivateKey) keyStore.getKey(alias, password);
+            if (key == null) throw new NoSuchKeyException(alias);
+
+            final List<X509Certificate> chain = new ArrayList<>();
+            for (final Certificate certificate : keyStore.getCertificateChain(alias)) {
+                chain.add((X509Certificate) certificate);
+            }
+
+            return new Signer(key, chain, alias);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Loads a PKCS12 or JKS keystore file and uses the key stored under the alias
+     */
+    public static Signer of(final File keyStore, final char[] storePassword, final String alias, final char[] keyPassword) {
+        try (final InputStream in = IO.read(keyStore)) {
+            final KeyStore store = KeyStore.getInstance(keyStore.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+            store.load(in, storePassword);
+            return of(store, alias, keyPassword);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (final GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return for example META-INF/SIGNER.SF
+     */
+    public String getSignatureFile() {
+        return "META-INF/" + name + ".SF";
+    }
+
+    /**
+     * @return for example META-INF/SIGNER.RSA
+     */
+    public String getSignatureBlock() {
+        return "META-INF/" + name + "." + extension(key);
+    }
+
+    /**
+     * @return the DER encoded PKCS#7 SignedData over the signature file
+     */
+    public byte[] sign(final byte[] signatureFile) {
+        try {
+            final Signature signature = Signature.getInstance(signatureAlgorithm(key));
+            signature.initSign(key);
+            signature.update(signatureFile);
+
+            final X509Certificate certificate = chain.get(0);
+
+            final byte[] signerInfo = der(SEQUENCE,
+                    integer(BigInteger.ONE),
+                    der(SEQUENCE,
+                            certificate.getIssuerX500Principal().getEncoded(),
+                            integer(certificate.getSerialNumber())),
+                    algorithm(SHA256, true),
+                    encryptionAlgorithm(key),
+                    der(OCTET_STRING, signature.sign()));
+
+            final List<byte[]> certificates = new ArrayList<>();
+            for (final X509Certificate cert : chain) {
+                certificates.add(cert.getEncoded());
+            }
+
+            final byte[] signedData = der(SEQUENCE,
+                    integer(BigInteger.ONE),
+                    der(SET, algorithm(SHA256, true)),
+                    der(SEQUENCE, oid(DATA)),
+                    der(CONTEXT_0, certificates.toArray(new byte[0][])),
+                    der(SET, signerInfo));
+
+            return der(SEQUENCE, oid(SIGNED_DATA), der(CONTEXT_0, signedData));
+        } catch (final CertificateEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (final GeneralSecurityException e) {
+            throw new SigningException(name, e);
+        }
+    }
+
+    private static String fileName(final String alias) {
+        final StringBuilder sb = new StringBuilder();
+        for (final char c : alias.toUpperCase(Locale.ENGLISH).toCharArray()) {
+            if (sb.length() == 8) break;
+            sb.append((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' ? c : '_');
+        }
+        if (sb.length() == 0) throw new IllegalArgumentException("name must not be empty");
+        return sb.toString();
+    }
+
+    private static String extension(final PrivateKey key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return "RSA";
+            case "DSA":
+                return "DSA";
+            case "EC":
+                return "EC";
+            default:
+                throw new UnsupportedKeyAlgorithmException(key.getAlgorithm());
+        }
+    }
+
+    private static String signatureAlgorithm(final PrivateKey key) {
+        return "SHA256with" + ("EC".equals(key.getAlgorithm()) ? "ECDSA" : key.getAlgorithm());
+    }
+
+    private static byte[] encryptionAlgorithm(final PrivateKey key) {
+        switch (key.getAlgorithm()) {
+            case "RSA":
+                return algorithm(RSA, true);
+            case "DSA":
+                return algorithm(DSA_WITH_SHA256, false);
+            default:
+                return algorithm(ECDSA_WITH_SHA256, false);
+        }
+    }
+
+    private static byte[] algorithm(final String oid, final boolean nullParameters) {
+        return nullParameters
+                ? der(SEQUENCE, oid(oid), new byte[]{NULL, 0})
+                : der(SEQUENCE, oid(oid));
+    }
+
+    private static byte[] integer(final BigInteger value) {
+        return der(INTEGER, value.toByteArray());
+    }
+
+    private static byte[] oid(final String oid) {
+        final long[] arcs = Arrays.stream(oid.split("\\.")).mapToLong(Long::parseLong).toArray();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write((int) (arcs[0] * 40 + arcs[1]));
+        for (int i = 2; i < arcs.length; i++) {
+            long arc = arcs[i];
+            final byte[] base128 = new byte[10];
+            int n = base128.length;
+            base128[--n] = (byte) (arc & 0x7F);
+            while ((arc >>>= 7) > 0) {
+                base128[--n] = (byte) (0x80 | (arc & 0x7F));
+            }
+            out.write(base128, n, base128.length - n);
+        }
+        return der(OID, out.toByteArray());
+    }
+
+    private static byte[] der(final byte tag, final byte[]... contents) {
+        int length = 0;
+        for (final byte[] content : contents) {
+            length += content.length;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+        out.write(tag);
+
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            final byte[] bytes = BigInteger.valueOf(length).toByteArray();
+            final int start = bytes[0] == 0 ? 1 : 0;
+            out.write(0x80 | (bytes.length - start));
+            out.write(bytes, start, bytes.length - start);
+        }
+
+        for (final byte[] content : contents) {
+            out.write(content, 0, content.length);
+        }
+        return out.toByteArray();
+    }
+
+    public static class NoSuchKeyException extends RuntimeException {
+        public NoSuchKeyException(final String alias) {
+            super(String.format("No private key under alias '%s'", alias));
+        }
+    }
+
+    public static class UnsupportedKeyAlgorithmException extends RuntimeException {
+        public UnsupportedKeyAlgorithmException(final String algorithm) {
+            super(String.format("Unsupported key algorithm '%s'. Supported algorithms are RSA, DSA and EC", algorithm));
+        }
+    }
+
+    public static class SigningException extends RuntimeException {
+        public SigningException(final String name, final Throwable cause) {
+            super(String.format("Failed to sign with '%s'", name), cause);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+/**
+ * Implemented by functions that sign the archives they write, and by
+ * wrappers of such functions, so signed nested jars are still handed to
+ * them rather than passed through untouched
+ */
+public interface Signing {
+
+    /**
+     * @return true if the output is signed, in which case signed input
+     * jars can be transformed as they come out signed again
+     */
+    boolean isSigning();
+
+    static boolean isSigning(final Object function) {
+        return function instanceof Signing && ((Signing) function).isSigning();
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Signs the jar as it is written.
+ *
+ * The SHA-256 of every file is computed as its bytes pass through.  When
+ * the jar is finished the manifest, signature file and signature block are
+ * written as its last entries, so the jar is signed in the same pass that
+ * writes it.  JarFile and jarsigner find them through the central directory.
+ *
+ * A manifest written to this stream is not written as is.  Its main
+ * attributes and any per-entry attributes other than digests are kept for
+ * the manifest written at the end.  Signature files are dropped.
+ */
+class SigningJarOutputStream extends JarArchiveOutputStream {
+
+    private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+    private final Signer signer;
+    private final Map<String, String> digests = new LinkedHashMap<>();
+
+    private Manifest manifest;
+    private ByteArrayOutputStream captured;
+    private boolean dropping;
+    private String current;
+    private MessageDigest digest;
+
+    SigningJarOutputStream(final OutputStream out, final Signer signer) {
+        super(out);
+        this.signer = signer;
+    }
+
+    @Override
+    public void putArchiveEntry(final ArchiveEntry archiveEntry) throws IOException {
+        final String name = archiveEntry.getName();
+
+        if (MANIFEST.equalsIgnoreCase(name)) {
+            captured = new ByteArrayOutputStream();
+            return;
+        }
+
+        if (SignedJars.isSignature(name)) {
+            dropping = true;
+            return;
+        }
+
+        super.putArchiveEntry(archiveEntry);
+
+        if (!archiveEntry.isDirectory()) {
+            current = name;
+            digest = Digest.SHA256.digest();
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int offset, final int length) throws IOException {
+        if (captured != null) {
+            captured.write(b, offset, length);
+        } else if (!dropping) {
+            if (digest != null) digest.update(b, offset, length);
+            super.write(b, offset, length);
+        }
+    }
+
+    @Override
+    public void closeArchiveEntry() throws IOException {
+        if (captured != null) {
+            manifest = new Manifest(new ByteArrayInputStream(captured.toByteArray()));
+            captured = null;
+            return;
+        }
+
+        if (dropping) {
+            dropping = false;
+            return;
+        }
+
+        super.closeArchiveEntry();
+
+        if (digest != null) {
+            digests.put(current, Base64.getEncoder().encodeToString(digest.digest()));
+            current = null;
+            digest = null;
+        }
+    }
+
+    /**
+     * The raw bytes are copied as they are.  The signer still has to see the
+     * uncompressed bytes, so they are inflated into the digest on the way.
+     */
+    @Override
+    public void addRawArchiveEntry(final ZipArchiveEntry entry, final InputStream rawStream) throws IOException {
+        final String name = entry.getName();
+
+        if (SignedJars.isSignature(name)) return;
+
+        final Inflater inflater = new Inflater(true);
+        try {
+            if (MANIFEST.equalsIgnoreCase(name)) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (final OutputStream out = uncompressed(entry, bytes, inflater)) {
+                    rawStream.transferTo(out);
+                }
+                manifest = new Manifest(new ByteArrayInputStream(bytes.toByteArray()));
+                return;
+            }
+
+            if (entry.isDirectory()) {
+                super.addRawArchiveEntry(entry, rawStream);
+                return;
+            }
+
+            final MessageDigest digest = Digest.SHA256.digest();
+            try (final OutputStream out = uncompressed(entry, new DigestOutputStream(new NoopOutputStream(), digest), inflater)) {
+                super.addRawArchiveEntry(entry, new Tee(rawStream, out));
+            }
+            digests.put(name, Base64.getEncoder().encodeToString(digest.digest()));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static OutputStream uncompressed(final ZipArchiveEntry entry, final OutputStream out, final Inflater inflater) {
+        if (entry.getMethod() == ZipMethod.STORED.getCode()) return out;
+        if (entry.getMethod() == ZipMethod.DEFLATED.getCode()) return new InflaterOutputStream(out, inflater);
+        throw new UnsupportedMethodException(entry);
+    }
+
+    public static class UnsupportedMethodException extends RuntimeException {
+        public UnsupportedMethodException(final ZipArchiveEntry entry) {
+            super(String.format("Cannot sign raw entry '%s' compressed with method %s", entry.getName(), entry.getMethod()));
+        }
+    }
+
+    /**
+     * Copies everything read to the given stream
+     */
+    private static class Tee extends FilterInputStream {
+        private final OutputStream out;
+
+        private Tee(final InputStream in, final OutputStream out) {
+            super(in);
+            this.out = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b != -1) out.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int read = super.read(b, off, len);
+            if (read > 0) out.write(b, off, read);
+            return read;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                final int read = read(buffer, 0, (int) Math.min(n - skipped, buffer.length));
+                if (read <= 0) break;
+                skipped += read;
+            }
+            return skipped;
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        final ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        final ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+
+        final byte[] main = mainSection();
+        manifestBytes.write(main);
+
+        final Manifest signature = new Manifest();
+        signature.getMainAttributes().put(Attributes.Name.SIGNATURE_VERSION, "1.0");
+        signature.getMainAttributes().putValue("Created-By", "Archie");
+
+        final Map<String, byte[]> sections = new LinkedHashMap<>();
+        for (final Map.Entry<String, Attributes> section : sections().entrySet()) {
+            final byte[] bytes = section(section.getKey(), section.getValue());
+            manifestBytes.write(bytes);
+
+            final Attributes attributes = new Attributes();
+            attributes.putValue("SHA-256-Digest", sha256(bytes));
+            sections.put(section.getKey(), section(section.getKey(), attributes));
+        }
+
+        signature.getMainAttributes().putValue("SHA-256-Digest-Manifest", sha256(manifestBytes.toByteArray()));
+        signature.getMainAttributes().putValue("SHA-256-Digest-Manifest-Main-Attributes", sha256(main));
+        signature.write(signatureFile);
+        for (final byte[] section : sections.values()) {
+            signatureFile.write(section);
+        }
+
+        final byte[] sf = signatureFile.toByteArray();
+
+        writeEntry(MANIFEST, manifestBytes.toByteArray());
+        writeEntry(signer.getSignatureFile(), sf);
+        writeEntry(signer.getSignatureBlock(), signer.sign(sf));
+
+        super.finish();
+    }
+
+    private byte[] mainSection() throws IOException {
+        final Manifest main = new Manifest();
+        if (manifest != null) main.getMainAttributes().putAll(manifest.getMainAttributes());
+        main.getMainAttributes().putIfAbsent(Attributes.Name.MANIFEST_VERSION, "1.0");
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        main.write(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The per-entry sections of the new manifest, the digests of the files
+     * written plus whatever else the original manifest said about them
+     */
+    private Map<String, Attributes> sections() {
+        final Map<String, Attributes> sections = new LinkedHashMap<>();
+
+        for (final Map.Entry<String, String> entry : digests.entrySet()) {
+            final Attributes attributes = new Attributes();
+            if (manifest != null && manifest.getAttributes(entry.getKey()) != null) {
+                attributes.putAll(manifest.getAttributes(entry.getKey()));
+            }
+            attributes.keySet().removeIf(name -> name.toString().endsWith("-Digest"));
+            attributes.putValue("SHA-256-Digest", entry.getValue());
+            sections.put(entry.getKey(), attributes);
+        }
+
+        // package level attributes such as sealing
+        if (manifest != null) {
+            for (final Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
+                if (sections.containsKey(entry.getKey())) continue;
+
+                final Attributes attributes = new Attributes(entry.getValue());
+                attributes.keySet().removeIf(name -> name.toString().endsWith("-Digest"));
+                if (!attributes.isEmpty()) sections.put(entry.getKey(), attributes);
+            }
+        }
+
+        return sections;
+    }
+
+    /**
+     * The bytes of one manifest section exactly as Manifest writes them,
+     * including the blank line that ends it
+     */
+    private static byte[] section(final String name, final Attributes attributes) throws IOException {
+        final Manifest manifest = new Manifest();
+        manifest.getEntries().put(name, attributes);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        manifest.write(bytes);
+
+        // skip the blank line that ends the empty main section
+        final byte[] written = bytes.toByteArray();
+        final byte[] section = new byte[written.length - 2];
+        System.arraycopy(written, 2, section, 0, section.length);
+        return section;
+    }
+
+    private void writeEntry(final String name, final byte[] bytes) throws IOException {
+        final JarArchiveEntry entry = new JarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        super.putArchiveEntry(entry);
+        super.write(bytes, 0, bytes.length);
+        super.closeArchiveEntry();
+    }
+
+    private static String sha256(final byte[] bytes) {
+        final MessageDigest digest = Digest.SHA256.digest();
+        return Base64.getEncoder().encodeToString(digest.digest(bytes));
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveStructSparse;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes sparse tar entries in the GNU PAX 1.0 sparse format.
+ *
+ * A pax header carries the real name and size of the file, the entry
+ * itself is named with a GNUSparseFile placeholder as GNU tar does.  Its
+ * data is the sparse map followed by the data segments only, so copying
+ * an entry reads and writes the real data and skips the holes.
+ *
+ * Sparse entries of any flavor commons-compress can read (old GNU, PAX
+ * 0.x and 1.0, star) are written this way.
+ */
+final class SparseTarEntries {
+
+    private static final int RECORD = TarConstants.DEFAULT_RCDSIZE;
+
+    private SparseTarEntries() {
+    }
+
+    /**
+     * @param in the expanded content of the entry, holes read as zeros
+     */
+    static void copy(final TarArchiveEntry entry, final InputStream in, final TarArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+        final List<TarArchiveStructSparse> segments = entry.getOrderedSparseHeaders();
+
+        final byte[] map = map(segments);
+        long stored = map.length;
+        for (final TarArchiveStructSparse segment : segments) {
+            stored += segment.getNumbytes();
+        }
+
+        final Map<String, String> pax = new LinkedHashMap<>();
+        entry.getExtraPaxHeaders().forEach((key, value) -> {
+            if (!key.startsWith("GNU.sparse.") && !key.startsWith("SCHILY.sparse.") && !key.equals("SCHILY.realsize")) {
+                pax.put(key, value);
+            }
+        });
+        pax.put("GNU.sparse.major", "1");
+        pax.put("GNU.sparse.minor", "0");
+        pax.put("GNU.sparse.name", name);
+        pax.put("GNU.sparse.realsize", Long.toString(entry.getRealSize()));
+
+        final byte[] paxData = encode(pax);
+        final TarArchiveEntry header = new TarArchiveEntry(shorten("PaxHeaders.0/", name), TarConstants.LF_PAX_EXTENDED_HEADER_LC);
+        header.setSize(paxData.length);
+        out.putArchiveEntry(header);
+        out.write(paxData);
+        out.closeArchiveEntry();
+
+        final Placeholder file = new Placeholder(shorten("GNUSparseFile.0/", name), name);
+        file.setSize(stored);
+        file.setMode(entry.getMode());
+        file.setModTime(entry.getModTime());
+        file.setUserId(entry.getLongUserId());
+        file.setGroupId(entry.getLongGroupId());
+        file.setUserName(entry.getUserName());
+        file.setGroupName(entry.getGroupName());
+
+        out.putArchiveEntry(file);
+        out.write(map);
+
+        final byte[] buffer = new byte[64 * 1024];
+        long position = 0;
+        for (final TarArchiveStructSparse segment : segments) {
+            skip(in, segment.getOffset() - position);
+
+            long remaining = segment.getNumbytes();
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) throw new EOFException("Unexpected end of sparse entry " + name);
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+
+            position = segment.getOffset() + segment.getNumbytes();
+        }
+
+        out.closeArchiveEntry();
+    }
+
+    /**
+     * The sparse map as decimal lines, padded to a whole record
+     */
+    private static byte[] map(final List<TarArchiveStructSparse> segments) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(segments.size()).append('\n');
+        for (final TarArchiveStructSparse segment : segments) {
+            sb.append(segment.getOffset()).append('\n');
+            sb.append(segment.getNumbytes()).append('\n');
+        }
+
+        final byte[] text = sb.toString().getBytes(StandardCharsets.US_ASCII);
+        final byte[] map = new byte[(text.length + RECORD - 1) / RECORD * RECORD];
+        System.arraycopy(text, 0, map, 0, text.length);
+        return map;
+    }
+
+    /**
+     * Pax records are "length key=value\n" where the length counts itself
+     */
+    private static byte[] encode(final Map<String, String> headers) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        headers.forEach((key, value) -> {
+            final String record = " " + key + "=" + value + "\n";
+            final int length = record.getBytes(StandardCharsets.UTF_8).length;
+
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() != Integer.toString(length).length()) {
+                total = length + Integer.toString(total).length();
+            }
+
+            final byte[] bytes = (total + record).getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length);
+        });
+        return out.toByteArray();
+    }
+
+    /**
+     * A name for the ustar header that needs no pax path record
+     * of its own, readers that understand pax never see it
+     */
+    private static String shorten(final String prefix, final String name) {
+        final int slash = name.lastIndexOf('/', name.length() - 2);
+        final String dir = name.substring(0, slash + 1);
+        String base = name.substring(slash + 1);
+
+        String shortName = dir + prefix + base;
+        if (shortName.getBytes(StandardCharsets.UTF_8).length < TarConstants.NAMELEN) return shortName;
+
+        while (base.length() > 1 && (prefix + base).getBytes(StandardCharsets.UTF_8).length >= TarConstants.NAMELEN) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return prefix + base;
+    }
+
+    static void skip(final InputStream in, long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped > 0) {
+                count -= skipped;
+            } else if (in.read() != -1) {
+                count--;
+            } else {
+                throw new EOFException("Unexpected end of sparse entry");
+            }
+        }
+    }
+
+    /**
+     * The ustar header of a sparse entry, remembering the name
+     * the file really has
+     */
+    static class Placeholder extends TarArchiveEntry {
+        private final String realName;
+
+        Placeholder(final String name, final String realName) {
+            super(name);
+            this.realName = realName;
+        }
+
+        String getRealName() {
+            return realName;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import lombok.Data;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.tomitribe.util.IO;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Random access into a tar.gz written by {@link TarGzTransformation}.
+ *
+ * Holds deflate checkpoints, each the compressed and uncompressed offset
+ * of a point where decompression can restart along with the 32 KB window
+ * that precedes it, plus the header and data offsets of every tar entry.
+ * Reading one entry only inflates from the nearest checkpoint before it.
+ *
+ * The index is written as a sidecar file named after the archive with
+ * an {@code .idx} suffix.
+ */
+public class TarGzIndex {
+
+    public static final long DEFAULT_SPACING = 1024 * 1024;
+
+    private static final String MAGIC = "archie-targz-index";
+    private static final int VERSION = 1;
+
+    private final List<Checkpoint> checkpoints;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    TarGzIndex(final List<Checkpoint> checkpoints, final List<Entry> entries) {
+        this.checkpoints = Collections.unmodifiableList(new ArrayList<>(checkpoints));
+        for (final Entry entry : entries) {
+            this.entries.put(entry.getName(), entry);
+        }
+    }
+
+    public static File file(final File tarGz) {
+        return new File(tarGz.getAbsolutePath() + ".idx");
+    }
+
+    public static TarGzIndex read(final File file) throws IOException {
+        try (final InputStream in = IO.read(file)) {
+            return read(in);
+        }
+    }
+
+    public static TarGzIndex read(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(new GZIPInputStream(in));
+
+        if (!MAGIC.equals(data.readUTF())) throw new IOException("Not a tar.gz index");
+        final int version = data.readInt();
+        if (version != VERSION) throw new IOException("Unsupported tar.gz index version " + version);
+
+        final List<Checkpoint> checkpoints = new ArrayList<>();
+        for (int i = data.readInt(); i > 0; i--) {
+            final long compressedOffset = data.readLong();
+            final long uncompressedOffset = data.readLong();
+            final byte[] window = new byte[data.readInt()];
+            data.readFully(window);
+            checkpoints.add(new Checkpoint(compressedOffset, uncompressedOffset, window));
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        for (int i = data.readInt(); i > 0; i--) {
+            entries.add(new Entry(data.readUTF(), data.readLong(), data.readLong(), data.readLong()));
+        }
+
+        return new TarGzIndex(checkpoints, entries);
+    }
+
+    public void write(final OutputStream out) throws IOException {
+        final GZIPOutputStream gzip = new GZIPOutputStream(new UnclosableOutputStream(out));
+        final DataOutputStream data = new DataOutputStream(gzip);
+
+        data.writeUTF(MAGIC);
+        data.writeInt(VERSION);
+
+        data.writeInt(checkpoints.size());
+        for (final Checkpoint checkpoint : checkpoints) {
+            data.writeLong(checkpoint.getCompressedOffset());
+            data.writeLong(checkpoint.getUncompressedOffset());
+            data.writeInt(checkpoint.getWindow().length);
+            data.write(checkpoint.getWindow());
+        }
+
+        data.writeInt(entries.size());
+        for (final Entry entry : entries.values()) {
+            data.writeUTF(entry.getName());
+            data.writeLong(entry.getHeaderOffset());
+            data.writeLong(entry.getDataOffset());
+            data.writeLong(entry.getSize());
+        }
+
+        data.flush();
+        gzip.finish();
+    }
+
+    public List<Checkpoint> getCheckpoints() {
+        return checkpoints;
+    }
+
+    public List<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return the entry or null if the archive has no entry by that name
+     */
+    public Entry getEntry(final String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @return the last checkpoint at or before the uncompressed offset
+     */
+    public Checkpoint checkpoint(final long uncompressedOffset) {
+        Checkpoint found = null;
+        for (final Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.getUncompressedOffset() > uncompressedOffset) break;
+            found = checkpoint;
+        }
+
+        if (found == null) throw new IllegalStateException("No checkpoint before offset " + uncompressedOffset);
+        return found;
+    }
+
+    /**
+     * Opens the uncompressed tar stream positioned at the header of the
+     * entry, ready to be read with a TarArchiveInputStream
+     */
+    public InputStream open(final File tarGz, final Entry entry) throws IOException {
+        return open(tarGz, entry.getHeaderOffset());
+    }
+
+    /**
+     * Opens the uncompressed tar stream positioned at the offset
+     */
+    public InputStream open(final File tarGz, final long uncompressedOffset) throws IOException {
+        final Checkpoint checkpoint = checkpoint(uncompressedOffset);
+
+        final FileInputStream file = new FileInputStream(tarGz);
+        final Inflater inflater = new Inflater(true);
+        try {
+            file.getChannel().position(checkpoint.getCompressedOffset());
+            if (checkpoint.getWindow().length > 0) inflater.setDictionary(checkpoint.getWindow());
+        } catch (final IOException | RuntimeException e) {
+            inflater.end();
+            file.close();
+            throw e;
+        }
+
+        final InputStream in = new InflaterInputStream(new BufferedInputStream(file), inflater, 64 * 1024) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+
+        long remaining = uncompressedOffset - checkpoint.getUncompressedOffset();
+        try {
+            while (remaining > 0) {
+                final long skipped = in.skip(remaining);
+                if (skipped <= 0) throw new EOFException("Unexpected end of " + tarGz.getName());
+                remaining -= skipped;
+            }
+        } catch (final IOException e) {
+            in.close();
+            throw e;
+        }
+
+        return in;
+    }
+
+    @Data
+    public static class Checkpoint {
+        private final long compressedOffset;
+        private final long uncompressedOffset;
+        private final byte[] window;
+    }
+
+    @Data
+    public static class Entry {
+        private final String name;
+        private final long headerOffset;
+        private final long dataOffset;
+        private final long size;
+    }
+
+    /**
+     * Tar output that records where each entry lands in the uncompressed
+     * stream and where the gzip stream can be entered, then writes the
+     * index once the archive is closed.
+     */
+    static class Recorder extends TarArchiveOutputStream {
+        private final OutputStream index;
+        private final List<Checkpoint> checkpoints = new ArrayList<>();
+        private final List<Entry> entries = new ArrayList<>();
+        private int depth;
+        private long pending = -1;
+        private boolean closed;
+
+        Recorder(final ParallelGzipOutputStream gzip, final OutputStream index) {
+            this(gzip, gzip, index);
+        }
+
+        /**
+         * @param out the stream the tar is written to, which is gzip itself
+         * or a stream that passes everything on to it
+         */
+        Recorder(final OutputStream out, final ParallelGzipOutputStream gzip, final OutputStream index) {
+            super(out);
+            this.index = index;
+            setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            gzip.checkpoints(DEFAULT_SPACING, checkpoints::add);
+        }
+
+        @Override
+        public void putArchiveEntry(final ArchiveEntry archiveEntry) throws IOException {
+            final long headerOffset = pending >= 0 ? pending : getBytesWritten();
+
+            // pax and long name headers are written as nested entries
+            depth++;
+            try {
+                super.putArchiveEntry(archiveEntry);
+            } finally {
+                depth--;
+            }
+
+            if (depth > 0) return;
+
+            // a pax header written as an entry of its own belongs to the next entry
+            if (((TarArchiveEntry) archiveEntry).isPaxHeader()) {
+                pending = headerOffset;
+                return;
+            }
+
+            final String name = archiveEntry instanceof SparseTarEntries.Placeholder
+                    ? ((SparseTarEntries.Placeholder) archiveEntry).getRealName()
+                    : archiveEntry.getName();
+
+            entries.add(new Entry(name, headerOffset, getBytesWritten(), archiveEntry.getSize()));
+            pending = -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            super.close();
+            new TarGzIndex(checkpoints, entries).write(index);
+        }
+    }
+}
@@ -23,10 +23,16 @@ import org.tomitribe.util.IO;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Objects;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -34,9 +40,52 @@ import java.util.function.Predicate;
 public class TarGzTransformation implements Transformer, Function<byte[], byte[]> {
 
     private final Transformations transformations;
+    private final int gzipThreads;
+    private final int gunzipThreads;
+    private final boolean index;
+    private final Consumer<Deduplication> deduplication;
+    private final boolean pipeline;
 
     public TarGzTransformation(final Transformations transformations) {
+        this(transformations, 1);
+    }
+
+    public TarGzTransformation(final Transformations transformations, final int gzipThreads) {
+        this(transformations, gzipThreads, 1, false);
+    }
+
+    /**
+     * @param gzipThreads threads used to compress the output, more than one
+     * selects the {@link ParallelGzipOutputStream}
+     * @param gunzipThreads threads used to decompress input files that have
+     * a {@link TarGzIndex}, more than one selects the {@link ParallelGzipInputStream}
+     * @param index write a {@link TarGzIndex} sidecar when transforming files
+     */
+    public TarGzTransformation(final Transformations transformations, final int gzipThreads, final int gunzipThreads, final boolean index) {
+        this(transformations, gzipThreads, gunzipThreads, index, null);
+    }
+
+    /**
+     * @param deduplication when not null, duplicate files are written as hard
+     * links to their first copy and the result is reported here
+     */
+    public TarGzTransformation(final Transformations transformations, final int gzipThreads, final int gunzipThreads,
+                               final boolean index, final Consumer<Deduplication> deduplication) {
+        this(transformations, gzipThreads, gunzipThreads, index, deduplication, false);
+    }
+
+    /**
+     * @param pipeline inflate the input and deflate the output on threads
+     * of their own, overlapping with the tar and transformation work
+     */
+    public TarGzTransformation(final Transformations transformations, final int gzipThreads, final int gunzipThreads,
+                               final boolean index, final Consumer<Deduplication> deduplication, final boolean pipeline) {
         this.transformations = transformations;
+        this.gzipThreads = gzipThreads;
+        this.gunzipThreads = gunzipThreads;
+        this.index = index;
+        this.deduplication = deduplication;
+        this.pipeline = pipeline;
     }
 
     public static Builder builder() {
@@ -55,55 +104,209 @@ public class TarGzTransformation implements Transformer, Function<byte[], byte[]
         return out.toByteArray();
     }
 
+    /**
+     * The index is written beside the destination under a temporary name
+     * and only takes its place once the archive is complete, a failed
+     * transform never leaves an index that does not match.  Without an
+     * index, any index left beside the destination is deleted.
+     */
     @Override
-    public void transform(final InputStream source, final OutputStream destination) throws IOException {
-        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(new UnclosableInputStream(source)));
-             final TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(new UnclosableOutputStream(destination)))) {
+    public void transform(final File src, final File dest) throws IOException {
+        final Path idx = TarGzIndex.file(dest).toPath();
+        final Path partial = idx.resolveSibling(idx.getFileName() + ".tmp");
+
+        try (final InputStream in = Interruption.checking(readAhead(ParallelGzipInputStream.open(src, gunzipThreads)));
+             final OutputStream out = dest instanceof Binary ? ((Binary) dest).write() : IO.write(dest);
+             final OutputStream index = this.index ? IO.write(partial.toFile()) : null) {
+            transform(new TarArchiveInputStream(in), out, index);
+        } catch (final IOException | RuntimeException e) {
+            if (index) Files.deleteIfExists(partial);
+            Files.deleteIfExists(idx);
+            throw e;
+        }
 
-            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        if (index) {
+            try {
+                Files.move(partial, idx, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(partial, idx, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } else {
+            // the index of an archive this one overwrote would point at the wrong offsets
+            Files.deleteIfExists(idx);
+        }
+    }
 
-            transformations.beforeArchive(out);
+    @Override
+    public void transform(final InputStream source, final OutputStream destination) throws IOException {
+        transform(new TarArchiveInputStream(readAhead(new GzipCompressorInputStream(new UnclosableInputStream(source)))), destination, null);
+    }
 
-            TarArchiveEntry entry;
-            while ((entry = in.getNextTarEntry()) != null) {
+    /**
+     * Transforms the archive and writes a {@link TarGzIndex} of the
+     * output to the index stream
+     */
+    public void transform(final InputStream source, final OutputStream destination, final OutputStream index) throws IOException {
+        transform(new TarArchiveInputStream(readAhead(new GzipCompressorInputStream(new UnclosableInputStream(source)))), destination, index);
+    }
 
-                final String name = entry.getName();
+    private void transform(final TarArchiveInputStream source, final OutputStream destination, final OutputStream index) throws IOException {
+        try (final TarArchiveInputStream in = source;
+             final TarArchiveOutputStream out = index != null ? record(destination, index) : write(destination, gzipThreads, pipeline)) {
+            copy(in, out);
+        }
+    }
 
-                transformations.beforeEntry(name, out);
+    private TarArchiveOutputStream record(final OutputStream destination, final OutputStream index) throws IOException {
+        final ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(new UnclosableOutputStream(destination), Math.max(1, gzipThreads));
+        return new TarGzIndex.Recorder(pipeline ? new WriteBehindOutputStream(gzip) : gzip, gzip, index);
+    }
 
-                if (entry.isDirectory()) {
-                    final TarArchiveEntry dir = new TarArchiveEntry(name);
-                    out.putArchiveEntry(dir);
-                    out.closeArchiveEntry();
-                } else if (entry.isLink() || entry.isSymbolicLink()) {
-                    out.putArchiveEntry(entry);
-                    out.closeArchiveEntry();
-                } else {
-                    final byte[] bytes = transformations.apply(name, IO.readBytes(in));
+    private InputStream readAhead(final InputStream in) {
+        return pipeline ? new ReadAheadInputStream(in) : in;
+    }
 
-                    final TarArchiveEntry file = new TarArchiveEntry(name);
-                    file.setSize(bytes.length);
-                    file.setMode(entry.getMode());
-                    file.setModTime(entry.getModTime());
-                    if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
-                    if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
-                    if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
+    private void copy(final TarArchiveInputStream in, final TarArchiveOutputStream out) throws IOException {
+        final HardlinkDeduplicator deduplicator = deduplication != null ? new HardlinkDeduplicator() : null;
 
-                    out.putArchiveEntry(file);
-                    out.write(bytes);
-                    out.closeArchiveEntry();
-                }
+        transformations.beforeArchive(out);
 
-                transformations.afterEntry(name, out);
+        TarArchiveEntry entry;
+        while ((entry = in.getNextTarEntry()) != null) {
+            Interruption.check();
+            if (deduplicator != null) {
+                deduplicator.copy(transformations, entry, in, out);
+            } else {
+                copy(transformations, entry, in, out);
             }
+        }
+
+        transformations.afterArchive(out);
+
+        if (deduplicator != null) deduplication.accept(deduplicator.report());
+    }
+
+    static TarArchiveOutputStream write(final OutputStream destination, final int gzipThreads) throws IOException {
+        return write(destination, gzipThreads, false);
+    }
+
+    /**
+     * @param writeBehind compress on a thread of its own, see {@link WriteBehindOutputStream}
+     */
+    static TarArchiveOutputStream write(final OutputStream destination, final int gzipThreads, final boolean writeBehind) throws IOException {
+        final OutputStream gzip = gzipThreads > 1
+                ? new ParallelGzipOutputStream(new UnclosableOutputStream(destination), gzipThreads)
+                : new GzipCompressorOutputStream(new UnclosableOutputStream(destination));
+
+        final TarArchiveOutputStream out = new TarArchiveOutputStream(writeBehind ? new WriteBehindOutputStream(gzip) : gzip);
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        return out;
+    }
+
+    static boolean hasContent(final TarArchiveEntry entry) {
+        return !entry.isDirectory() && !entry.isLink() && !entry.isSymbolicLink();
+    }
 
-            transformations.afterArchive(out);
+    /**
+     * Copies the current entry of the source archive to the output.
+     *
+     * Entries no transformation applies to are streamed through with their
+     * original header, so memory use does not grow with the size of the
+     * entry.  Sparse entries stay sparse.  Replaced entries are not read at
+     * all.  Only entries that are transformed are read into memory.
+     */
+    static void copy(final Transformations transformations, final TarArchiveEntry entry, final InputStream in, final TarArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+
+        final Transformation.Replacement replacement = hasContent(entry) ? transformations.replacement(name) : null;
+        if (replacement != null) {
+            // the old data is skipped by the input when it moves to the next entry
+            replace(transformations, entry, replacement, out);
+            return;
         }
+
+        if (!hasContent(entry) || transformations.applies(name)) {
+            write(transformations, entry, hasContent(entry) ? IO.readBytes(in) : null, out);
+            return;
+        }
+
+        transformations.beforeEntry(name, out);
+
+        if (entry.isSparse()) {
+            SparseTarEntries.copy(entry, in, out);
+        } else {
+            out.putArchiveEntry(entry);
+            IO.copy(in, out);
+            out.closeArchiveEntry();
+        }
+
+        transformations.afterEntry(name, out);
+    }
+
+    /**
+     * Writes one entry read from the source archive to the output, applying
+     * the transformations and entry callbacks.
+     *
+     * @param content the entry data, null when the entry has no content
+     */
+    static void write(final Transformations transformations, final TarArchiveEntry entry, final byte[] content, final TarArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+
+        transformations.beforeEntry(name, out);
+
+        if (entry.isDirectory()) {
+            final TarArchiveEntry dir = new TarArchiveEntry(name);
+            out.putArchiveEntry(dir);
+            out.closeArchiveEntry();
+        } else if (entry.isLink() || entry.isSymbolicLink()) {
+            out.putArchiveEntry(entry);
+            out.closeArchiveEntry();
+        } else {
+            final byte[] bytes = transformations.apply(name, content);
+
+            out.putArchiveEntry(file(entry, bytes.length));
+            out.write(bytes);
+            out.closeArchiveEntry();
+        }
+
+        transformations.afterEntry(name, out);
+    }
+
+    /**
+     * Writes the replacement in place of the entry, without its old content
+     */
+    static void replace(final Transformations transformations, final TarArchiveEntry entry,
+                        final Transformation.Replacement replacement, final TarArchiveOutputStream out) throws IOException {
+        final String name = entry.getName();
+
+        transformations.beforeEntry(name, out);
+        replacement.write(out, (size, crc) -> file(entry, size));
+        transformations.afterEntry(name, out);
+    }
+
+    /**
+     * A fresh header for transformed content, keeping the
+     * mode and times of the original entry
+     */
+    static TarArchiveEntry file(final TarArchiveEntry entry, final long size) {
+        final TarArchiveEntry file = new TarArchiveEntry(entry.getName());
+        file.setSize(size);
+        file.setMode(entry.getMode());
+        file.setModTime(entry.getModTime());
+        if (entry.getCreationTime() != null) file.setCreationTime(entry.getCreationTime());
+        if (entry.getLastModifiedTime() != null) file.setLastModifiedTime(entry.getLastModifiedTime());
+        if (entry.getLastAccessTime() != null) file.setLastAccessTime(entry.getLastAccessTime());
+        return file;
     }
 
     public static class Builder {
 
         private Transformations.Builder builder = new Transformations.Builder();
+        private int gzipThreads = 1;
+        private int gunzipThreads = 1;
+        private boolean index;
+        private Consumer<Deduplication> deduplication;
+        private boolean pipeline;
 
         public Builder enhance(final String entryName, final Function<byte[], byte[]> transformer) {
             builder.enhance(entryName, transformer);
@@ -160,8 +363,71 @@ public class TarGzTransformation implements Transformer, Function<byte[], byte[]
             return this;
         }
 
+        /**
+         * Compress the output on the specified number of threads
+         */
+        public Builder parallelGzip(final int threads) {
+            this.gzipThreads = threads;
+            return this;
+        }
+
+        /**
+         * Decompress input files on the specified number of threads when
+         * they have a {@link TarGzIndex} sidecar.  Experimental.
+         *
+         * Archives without one, which is any archive not written with
+         * {@link #index()}, are decompressed on a single thread.  An index
+         * cannot be built for an existing archive: deflate blocks end at
+         * arbitrary bit offsets and Inflater can only restart on a byte
+         * boundary, where {@link ParallelGzipOutputStream} ends its blocks.
+         * Rewrite such an archive once with {@link #index()} to make it
+         * readable in parallel.
+         */
+        public Builder parallelGunzip(final int threads) {
+            this.gunzipThreads = threads;
+            return this;
+        }
+
+        /**
+         * Write a {@link TarGzIndex} next to the output file so single
+         * entries can be read without decompressing the whole archive
+         */
+        public Builder index() {
+            this.index = true;
+            return this;
+        }
+
+        /**
+         * Write files whose content already appeared earlier in the
+         * archive as hard links to the first copy
+         */
+        public Builder hardlinkDuplicates() {
+            return hardlinkDuplicates(deduplication -> {
+            });
+        }
+
+        /**
+         * Write files whose content already appeared earlier in the
+         * archive as hard links to the first copy, reporting the savings
+         * and the cost of hashing once the archive is written
+         */
+        public Builder hardlinkDuplicates(final Consumer<Deduplication> report) {
+            this.deduplication = Objects.requireNonNull(report, "report");
+            return this;
+        }
+
+        /**
+         * Inflate the input and deflate the output on threads of their own
+         * so both overlap with reading and writing tar entries.  Combines
+         * with {@link #parallelGzip(int)} and {@link #parallelGunzip(int)}.
+         */
+        public Builder pipeline() {
+            this.pipeline = true;
+            return this;
+        }
+
         public TarGzTransformation build() {
-            return new TarGzTransformation(builder.build());
+            return new TarGzTransformation(builder.build(), gzipThreads, gunzipThreads, index, deduplication, pipeline);
         }
     }
 }
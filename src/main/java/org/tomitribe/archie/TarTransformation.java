@@ -0,0 +1,295 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.commons.compress.archivers.tar.TarUtils;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Uncompressed tar.
+ *
+ * When transforming one file into another the source is opened as a
+ * {@link TarFile}.  Entries no transformation applies to are then copied
+ * byte for byte, headers included, from the source file channel to the
+ * destination channel with {@link FileChannel#transferTo} and never pass
+ * through the heap.
+ */
+public class TarTransformation implements Transformer, Function<byte[], byte[]> {
+
+    private static final int SIZE_OFFSET = TarConstants.NAMELEN + TarConstants.MODELEN + TarConstants.UIDLEN + TarConstants.GIDLEN;
+    private static final int TYPE_OFFSET = SIZE_OFFSET + TarConstants.SIZELEN + TarConstants.MODTIMELEN + TarConstants.CHKSUMLEN;
+
+    private final Transformations transformations;
+
+    public TarTransformation(final Transformations transformations) {
+        this.transformations = transformations;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public byte[] apply(final byte[] bytes) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        try {
+            transform(in, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void transform(final File src, final File dest) throws IOException {
+        if (dest instanceof Binary) {
+            // digests are computed as the stream is written, raw copies would bypass them
+            Transformer.super.transform(src, dest);
+            return;
+        }
+
+        if (streamOnly(src)) {
+            Transformer.super.transform(src, dest);
+            return;
+        }
+
+        try (final TarFile tar = new TarFile(src);
+             final FileChannel source = FileChannel.open(src.toPath(), StandardOpenOption.READ);
+             final FileChannel destination = FileChannel.open(dest.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             final TarArchiveOutputStream out = write(Channels.newOutputStream(destination))) {
+
+            transformations.beforeArchive(out);
+
+            // the end of the previous entry, where the headers of the next one begin
+            long position = 0;
+
+            for (final TarArchiveEntry entry : tar.getEntries()) {
+                Interruption.check();
+                final String name = entry.getName();
+                final long end = entry.getDataOffset() + padded(entry.getSize());
+
+                final Transformation.Replacement replacement = TarGzTransformation.hasContent(entry)
+                        ? transformations.replacement(name) : null;
+
+                if (replacement != null) {
+                    TarGzTransformation.replace(transformations, entry, replacement, out);
+                } else if (transformations.applies(name)) {
+                    final byte[] content = TarGzTransformation.hasContent(entry) ? readBytes(tar, entry) : null;
+                    TarGzTransformation.write(transformations, entry, content, out);
+                } else if (entry.isSparse()) {
+                    transformations.beforeEntry(name, out);
+                    try (final InputStream in = tar.getInputStream(entry)) {
+                        SparseTarEntries.copy(entry, in, out);
+                    }
+                    transformations.afterEntry(name, out);
+                } else {
+                    transformations.beforeEntry(name, out);
+                    transfer(source, position, end - position, destination);
+                    transformations.afterEntry(name, out);
+                }
+
+                position = end;
+            }
+
+            transformations.afterArchive(out);
+        }
+    }
+
+    @Override
+    public void transform(final InputStream source, final OutputStream destination) throws IOException {
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(read(source));
+             final TarArchiveOutputStream out = write(destination)) {
+
+            transformations.beforeArchive(out);
+
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                Interruption.check();
+                TarGzTransformation.copy(transformations, entry, in, out);
+            }
+
+            transformations.afterArchive(out);
+        }
+    }
+
+    static InputStream read(final InputStream source) {
+        return new UnclosableInputStream(source);
+    }
+
+    /**
+     * Records are written through as soon as they are complete, so nothing
+     * is buffered between entries and raw copies can be interleaved
+     */
+    static TarArchiveOutputStream write(final OutputStream destination) {
+        final TarArchiveOutputStream out = new TarArchiveOutputStream(new UnclosableOutputStream(destination), TarConstants.DEFAULT_RCDSIZE);
+        out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        return out;
+    }
+
+    /**
+     * TarFile misplaces the entries that follow a PAX 1.0 sparse entry.  A
+     * global pax header is copied along with the headers of the entry it
+     * precedes, so it would be lost when that entry is rewritten, though it
+     * applies to every entry after it.  The stream path applies it to each
+     * entry instead.
+     */
+    private boolean streamOnly(final File src) throws IOException {
+        try (final TarFile tar = new TarFile(src);
+             final FileChannel source = FileChannel.open(src.toPath(), StandardOpenOption.READ)) {
+
+            long position = 0;
+            for (final TarArchiveEntry entry : tar.getEntries()) {
+                if (entry.isPaxGNU1XSparse()) return true;
+
+                final boolean rewritten = entry.isSparse() || transformations.applies(entry.getName());
+                if (rewritten && hasGlobalPaxHeader(source, position, entry)) return true;
+
+                position = entry.getDataOffset() + padded(entry.getSize());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Walks the extra headers, if any, between the end of the previous
+     * entry and the header of this one
+     */
+    private static boolean hasGlobalPaxHeader(final FileChannel source, long position, final TarArchiveEntry entry) throws IOException {
+        final long header = entry.getDataOffset() - TarConstants.DEFAULT_RCDSIZE;
+        final ByteBuffer record = ByteBuffer.allocate(TarConstants.DEFAULT_RCDSIZE);
+
+        while (position < header) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (source.read(record, position + record.position()) < 0) {
+                    throw new EOFException("Unexpected end of tar at offset " + position);
+                }
+            }
+
+            if (record.get(TYPE_OFFSET) == TarConstants.LF_PAX_GLOBAL_EXTENDED_HEADER) return true;
+
+            final long size = TarUtils.parseOctalOrBinary(record.array(), SIZE_OFFSET, TarConstants.SIZELEN);
+            position += TarConstants.DEFAULT_RCDSIZE + padded(size);
+        }
+        return false;
+    }
+
+    private static byte[] readBytes(final TarFile tar, final TarArchiveEntry entry) throws IOException {
+        try (final InputStream in = tar.getInputStream(entry)) {
+            return IO.readBytes(in);
+        }
+    }
+
+    private static long padded(final long size) {
+        final long records = (size + TarConstants.DEFAULT_RCDSIZE - 1) / TarConstants.DEFAULT_RCDSIZE;
+        return records * TarConstants.DEFAULT_RCDSIZE;
+    }
+
+    private static void transfer(final FileChannel source, long position, long count, final FileChannel destination) throws IOException {
+        while (count > 0) {
+            final long transferred = source.transferTo(position, count, destination);
+            if (transferred <= 0) throw new EOFException("Unexpected end of tar at offset " + position);
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    public static class Builder {
+
+        private Transformations.Builder builder = new Transformations.Builder();
+
+        public Builder enhance(final String entryName, final Function<byte[], byte[]> transformer) {
+            builder.enhance(entryName, transformer);
+            return this;
+        }
+
+        public Builder enhance(final Predicate<String> entryPredicate, final Function<byte[], byte[]> transformer) {
+            builder.enhance(entryPredicate, transformer);
+            return this;
+        }
+
+        public Builder prepend(final String entryName, final String contents) {
+            builder.prepend(entryName, contents);
+            return this;
+        }
+
+        public Builder prepend(final Predicate<String> entryPredicate, final String contents) {
+            builder.prepend(entryPredicate, contents);
+            return this;
+        }
+
+        public Builder before(final Consumer<ArchiveOutputStream> consumer) {
+            builder.before(consumer);
+            return this;
+        }
+
+        public Builder after(final Consumer<ArchiveOutputStream> consumer) {
+            builder.after(consumer);
+            return this;
+        }
+
+        public Builder beforeEntry(final String entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.beforeEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder beforeEntry(final Predicate<String> entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.beforeEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder afterEntry(final String entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.afterEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder afterEntry(final Predicate<String> entryName, final Consumer<ArchiveOutputStream> consumer) {
+            builder.afterEntry(entryName, consumer);
+            return this;
+        }
+
+        public Builder and(final Consumer<Transformations.Builder> consumer) {
+            builder.and(consumer);
+            return this;
+        }
+
+        public TarTransformation build() {
+            return new TarTransformation(builder.build());
+        }
+    }
+}
@@ -14,11 +14,21 @@
 package org.tomitribe.archie;
 
 import lombok.Data;
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.tomitribe.util.IO;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 @Data
 public class Transformation implements Function<byte[], byte[]> {
@@ -51,4 +61,84 @@ public class Transformation implements Function<byte[], byte[]> {
             transformation.accept(archiveOutputStream);
         }
     }
+
+    /**
+     * New content for the matching entries.  The old content is never
+     * needed, so when this is the only rule for an entry the engines skip
+     * it without reading or inflating it into memory and write the new
+     * content in its place.
+     */
+    @Data
+    public static class Replacement implements Function<byte[], byte[]> {
+        private final Supplier<byte[]> bytes;
+        private final Path path;
+
+        @Override
+        public byte[] apply(final byte[] ignored) {
+            return bytes();
+        }
+
+        public byte[] bytes() {
+            if (bytes != null) return bytes.get();
+
+            try {
+                return Files.readAllBytes(path);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the content as the data of a new entry, streaming it when
+         * it comes from a file
+         *
+         * @param header creates the entry for the size of the content
+         */
+        void write(final ArchiveOutputStream out, final Header header) throws IOException {
+            if (bytes != null) {
+                final byte[] content = bytes.get();
+                out.putArchiveEntry(header.create(content.length, () -> crc(content)));
+                out.write(content);
+                out.closeArchiveEntry();
+                return;
+            }
+
+            out.putArchiveEntry(header.create(Files.size(path), () -> crc(path)));
+            try (final InputStream in = Files.newInputStream(path)) {
+                IO.copy(in, out);
+            }
+            out.closeArchiveEntry();
+        }
+
+        private static long crc(final byte[] content) {
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+            return crc.getValue();
+        }
+
+        /**
+         * Reads the file once just for its crc, only done when the
+         * output needs the crc ahead of the data
+         */
+        private static long crc(final Path path) {
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[64 * 1024];
+            try (final InputStream in = Files.newInputStream(path)) {
+                int length;
+                while ((length = in.read(buffer)) != -1) {
+                    crc.update(buffer, 0, length);
+                }
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return crc.getValue();
+        }
+
+        interface Header {
+            /**
+             * @param crc computes the crc of the content when called
+             */
+            ArchiveEntry create(long size, LongSupplier crc);
+        }
+    }
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.tomitribe.util.Hex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An on-disk, content-addressed cache of transformed entry content.
+ *
+ * Keys are the SHA-256 of the entry content and the identity of the rules
+ * that apply to it, see {@link Transformations.Builder#cache(TransformationCache, String)}.
+ * Each result is one file named after its key.  Results are written to a
+ * temporary file and atomically renamed into place, so several JVMs can
+ * share one directory and never read a partial result.
+ *
+ * Hits touch the modification time of the file.  When the cache grows past
+ * its maximum size the least recently used files are deleted until it is
+ * back under 90% of the maximum.  Only one process evicts at a time.  Each
+ * process only counts its own puts, so the directory is also rescanned
+ * after every tenth of the maximum put, to see what the others added.
+ * Temporary files older than an hour, left by a process that died while
+ * writing them, are deleted by the scan.
+ *
+ * Failures to read or write the cache never fail a transformation, the
+ * result is simply computed again.
+ */
+public class TransformationCache {
+
+    private static final String LOCK = ".lock";
+    private static final String TMP = ".tmp";
+    private static final long TMP_GRACE = TimeUnit.HOURS.toMillis(1);
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong unscanned = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public TransformationCache(final File directory, final long maxBytes) {
+        if (maxBytes < 1) throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+
+        this.directory = directory.toPath();
+        this.maxBytes = maxBytes;
+
+        try {
+            Files.createDirectories(this.directory);
+            size.set(scan().stream().mapToLong(Cached::getSize).sum());
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param rules identifies the rules that produce the result,
+     * results for different rules never share a key
+     */
+    public String key(final String rules, final byte[] content) {
+        final MessageDigest digest = Digest.SHA256.digest();
+        final byte[] identity = rules.getBytes(StandardCharsets.UTF_8);
+        digest.update(identity);
+        digest.update((byte) 0);
+        digest.update(content);
+        return Hex.toString(digest.digest());
+    }
+
+    /**
+     * @return the cached result or null if there is none
+     */
+    public byte[] get(final String key) {
+        final Path file = file(key);
+        try {
+            final byte[] bytes = Files.readAllBytes(file);
+            touch(file);
+            hits.incrementAndGet();
+            return bytes;
+        } catch (final IOException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    public void put(final String key, final byte[] result) {
+        final Path file = file(key);
+        try {
+            Files.createDirectories(file.getParent());
+
+            final Path tmp = Files.createTempFile(file.getParent(), key, TMP);
+            try {
+                Files.write(tmp, result);
+                move(tmp, file);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (final IOException e) {
+            return;
+        }
+
+        final boolean full = size.addAndGet(result.length) > maxBytes;
+        if (full || unscanned.addAndGet(result.length) > maxBytes / 10) evict();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Rescans the directory and if it is over the maximum deletes least
+     * recently used results until it is back under 90%
+     */
+    void evict() {
+        try (final FileChannel channel = FileChannel.open(directory.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             final FileLock lock = channel.tryLock()) {
+
+            // another process is evicting
+            if (lock == null) return;
+
+            final List<Cached> cached = scan();
+            cached.sort(Comparator.comparing(Cached::getUsed));
+
+            long total = cached.stream().mapToLong(Cached::getSize).sum();
+            final long target = total > maxBytes ? maxBytes / 10 * 9 : total;
+
+            for (final Cached entry : cached) {
+                if (total <= target) break;
+                try {
+                    Files.deleteIfExists(entry.getFile());
+                    total -= entry.getSize();
+                } catch (final IOException e) {
+                    // in use or gone, try the next
+                }
+            }
+
+            size.set(total);
+            unscanned.set(0);
+        } catch (final OverlappingFileLockException e) {
+            // another thread of this process is evicting
+        } catch (final IOException e) {
+            // leave it for the next put
+        }
+    }
+
+    private Path file(final String key) {
+        return directory.resolve(key.substring(0, 2)).resolve(key);
+    }
+
+    private static void move(final Path tmp, final Path file) throws IOException {
+        try {
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void touch(final Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (final NoSuchFileException e) {
+            // evicted since it was read
+        } catch (final IOException e) {
+            // the result is still good, it may just be evicted early
+        }
+    }
+
+    /**
+     * Other processes add and delete files while this runs, so
+     * files that disappear along the way are simply left out.  Stale
+     * temporary files are deleted on the way.
+     */
+    private List<Cached> scan() throws IOException {
+        final List<Cached> cached = new ArrayList<>();
+        try (final DirectoryStream<Path> dirs = Files.newDirectoryStream(directory, Files::isDirectory)) {
+            for (final Path dir : dirs) {
+                try (final DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                    for (final Path file : files) {
+                        final String name = file.getFileName().toString();
+                        if (name.endsWith(TMP)) {
+                            deleteIfStale(file);
+                            continue;
+                        }
+                        if (name.startsWith(".")) continue;
+
+                        try {
+                            cached.add(new Cached(file, Files.size(file), Files.getLastModifiedTime(file)));
+                        } catch (final IOException e) {
+                            // deleted by another process
+                        }
+                    }
+                } catch (final NoSuchFileException e) {
+                    // deleted by another process
+                }
+            }
+        }
+        return cached;
+    }
+
+    private static void deleteIfStale(final Path tmp) {
+        try {
+            if (Files.getLastModifiedTime(tmp).toMillis() < System.currentTimeMillis() - TMP_GRACE) {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (final IOException e) {
+            // renamed into place or deleted by another process
+        }
+    }
+
+    private static class Cached {
+        private final Path file;
+        private final long size;
+        private final FileTime used;
+
+        private Cached(final Path file, final long size, final FileTime used) {
+            this.file = file;
+            this.size = size;
+            this.used = used;
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        FileTime getUsed() {
+            return used;
+        }
+    }
+}
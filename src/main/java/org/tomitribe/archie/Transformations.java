@@ -17,25 +17,22 @@ import lombok.Data;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.tomitribe.util.IO;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.URL;
-import java.security.CodeSigner;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarInputStream;
-import java.util.jar.Manifest;
 
 public class Transformations {
 
@@ -49,6 +46,9 @@ public class Transformations {
     private final List<Predicate<String>> skipEntry = new ArrayList<>();
     private final List<Predicate<String>> skipTransformation = new ArrayList<>();
 
+    private final TransformationCache cache;
+    private final String cacheVersion;
+    private final Map<JarKey, Boolean> signed = new ConcurrentHashMap<>();
 
     public Transformations(final List<Transformation> transformations,
                            final List<Transformation.Action> before,
@@ -57,6 +57,20 @@ public class Transformations {
                            final List<Transformation.Action> afterEntry,
                            final List<Predicate<String>> skipEntry,
                            final List<Predicate<String>> skipTransformation) {
+        this(transformations, before, after, beforeEntry, afterEntry, skipEntry, skipTransformation, null, null);
+    }
+
+    public Transformations(final List<Transformation> transformations,
+                           final List<Transformation.Action> before,
+                           final List<Transformation.Action> after,
+                           final List<Transformation.Action> beforeEntry,
+                           final List<Transformation.Action> afterEntry,
+                           final List<Predicate<String>> skipEntry,
+                           final List<Predicate<String>> skipTransformation,
+                           final TransformationCache cache,
+                           final String cacheVersion) {
+        this.cache = cache;
+        this.cacheVersion = cacheVersion;
         this.transformations.addAll(transformations);
         this.beforeEntry.addAll(beforeEntry);
         this.afterEntry.addAll(afterEntry);
@@ -73,10 +87,22 @@ public class Transformations {
             return new ZipTransformation(this);
         }
 
+        if (name.endsWith(".tar")) {
+            return new TarTransformation(this);
+        }
+
         if (name.endsWith(".tar.gz")) {
             return new TarGzTransformation(this);
         }
 
+        if (name.endsWith(".tar.bz2")) {
+            return new TarBz2Transformation(this);
+        }
+
+        if (name.endsWith(".tar.lz4")) {
+            return new TarLz4Transformation(this);
+        }
+
         if (name.endsWith(".jar")
                 || name.endsWith(".ear")
                 || name.endsWith(".war")
@@ -93,18 +119,109 @@ public class Transformations {
     }
 
     public byte[] apply(final String entryName, byte[] contents) {
-        // start by check the excluded list because it's faster
-        if (skipTransformation(entryName) || isSigned(entryName, contents)) {
+        // start by checking the rules because it's faster, applies() covers the excluded list
+        if (!applies(entryName)) {
             return contents;
         }
 
+        /*
+         * Modifying a signed jar breaks its signature, only
+         * transformations that sign their output may touch it
+         */
+        final boolean signed = isSigned(entryName, contents);
+
+        final List<Integer> applicable = new ArrayList<>();
+        for (int i = 0; i < transformations.size(); i++) {
+            final Transformation transformation = transformations.get(i);
+            if (transformation.applies(entryName) && (!signed || resigns(transformation))) {
+                applicable.add(i);
+            }
+        }
+
+        if (applicable.isEmpty()) return contents;
+
+        if (cache != null) return cached(applicable, contents);
+
+        for (final int i : applicable) {
+            contents = transformations.get(i).apply(contents);
+        }
+
+        return contents;
+    }
+
+    private static boolean resigns(final Transformation transformation) {
+        return Signing.isSigning(transformation.getTransformation());
+    }
+
+    /**
+     * The functions only see the content, so the result is identified by
+     * the content, the cache version and which of the rules apply
+     */
+    private byte[] cached(final List<Integer> applicable, byte[] contents) {
+        final StringBuilder rules = new StringBuilder(cacheVersion);
+        for (final int i : applicable) {
+            rules.append(',').append(i);
+        }
+
+        final String key = cache.key(rules.toString(), contents);
+        final byte[] cached = cache.get(key);
+        if (cached != null) return cached;
+
+        for (final int i : applicable) {
+            contents = transformations.get(i).apply(contents);
+        }
+
+        cache.put(key, contents);
+        return contents;
+    }
+
+    /**
+     * Determines if the content of the named entry is replaced outright.
+     * The old content of such entries can be skipped without reading it and
+     * the replacement written in its place.
+     *
+     * @param entryName The name of the entry
+     * @return the replacement, or null if the entry is not replaced or other
+     * transformations need its content
+     */
+    public Transformation.Replacement replacement(final String entryName) {
+        if (skipTransformation(entryName)) return null;
+
+        /*
+         * Only when the replacement is the one rule for the entry.  Rules
+         * before it or after it run in order on the content as usual.
+         */
+        Transformation.Replacement replacement = null;
+        for (final Transformation transformation : transformations) {
+            if (!transformation.applies(entryName)) continue;
+
+            if (replacement != null || !(transformation.getTransformation() instanceof Transformation.Replacement)) {
+                return null;
+            }
+
+            replacement = (Transformation.Replacement) transformation.getTransformation();
+        }
+
+        return replacement;
+    }
+
+    /**
+     * Determines if any transformation may change the content of the named entry.
+     * Entries for which this returns false can be copied as-is without reading them.
+     *
+     * @param entryName The name of the entry
+     * @return false if #apply() is guaranteed to return the content unchanged
+     */
+    public boolean applies(final String entryName) {
+        if (skipTransformation(entryName)) return false;
+
         for (final Transformation transformation : transformations) {
             if (transformation.applies(entryName)) {
-                contents = transformation.apply(contents);
+                return true;
             }
         }
 
-        return contents;
+        return false;
     }
 
     public void afterEntry(final String entryName, final ArchiveOutputStream out) {
@@ -173,8 +290,9 @@ public class Transformations {
 
     /**
      * The goal is to exclude all signed jars because even copying entry by entry will result in a tempered jar. We don't
-     * want to spend ages to verify every single entry. This is useless for what we need. So we only check if there is
-     * at least a single xxx-Digest entry in the manifest.
+     * want to spend ages to verify every single entry. This is useless for what we need. So we only look for the
+     * signature files in META-INF, using the central directory so no entry is inflated.  The answer is remembered
+     * by content hash, so each distinct jar is only checked once.
      *
      * @param name the name of the entry file to process
      * @param content the content of the file
@@ -184,52 +302,9 @@ public class Transformations {
         Objects.requireNonNull(name, "name is required.");
         Objects.requireNonNull(content, "content is required.");
         if (name.endsWith(".jar")) { // don't think we care about ear, war, car, etc
-            try (final JarInputStream jarInputStream = new JarInputStream(new ByteArrayInputStream(content))) {
-                final Manifest manifest = jarInputStream.getManifest();
-                /*
-                 * avoid the stream approach with then a flatMap etc because it will process all the entries while
-                 * we are only interested in finding at least one.
-                 *
-                 * Unfortunately this is not enough to exclude a jar. For sure if there is no digest, this is not a signed
-                 * jar. But some exceptions like ECJ from Eclipse has Digest attributes but is not signed. In this case,
-                 * the only way to know if it's signed is to look at the code signers. But it requires to iterate though
-                 * all JarEntries, so it's time-consuming for big jars or with a lot of entries.
-                 */
-                if (hasDigestEntry(manifest) && hasCodeSigners(jarInputStream)) {
-                    return true;
-                }
-            } catch (final IOException e) {
-                return false; // let's assume it's ok to weave this entry
-            }
-        }
-        return false;
-    }
-
-    private boolean hasCodeSigners(final JarInputStream jarInputStream) throws IOException {
-        JarEntry entry;
-        while ((entry = jarInputStream.getNextJarEntry()) != null) {
-            if (entry.isDirectory()) {
-                continue;
-            }
-            // read only this entry as it might be enough
-            jarInputStream.closeEntry();
-            final CodeSigner[] codeSigners = entry.getCodeSigners();
-            if (codeSigners != null) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private boolean hasDigestEntry(final Manifest manifest) {
-        if (manifest == null) {
-            return false;
-        }
-        for (Map.Entry<String, Attributes> entry : manifest.getEntries().entrySet()) {
-            for (Object attrKey : entry.getValue().keySet()) {
-                if (attrKey instanceof Attributes.Name && attrKey.toString().contains("-Digest"))
-                    return true;
-            }
+            // a weaker hash would let a crafted jar pass for a signed one, or the reverse
+            final JarKey key = new JarKey(Digest.SHA256.digest().digest(content));
+            return signed.computeIfAbsent(key, k -> SignedJars.isSigned(content));
         }
         return false;
     }
@@ -247,6 +322,9 @@ public class Transformations {
 
         protected final List<Consumer<Builder>> builderConsumers = new ArrayList<>();
 
+        private TransformationCache cache;
+        private String cacheVersion;
+
         public Builder add(final String name, final Supplier<byte[]> bytes) {
             after(InsertEntry.builder()
                     .bytes(bytes)
@@ -279,6 +357,31 @@ public class Transformations {
             return this;
         }
 
+        /**
+         * Replaces the content of the entry.  When no other rule applies to
+         * the entry its old content is skipped without being read.
+         */
+        public Builder replace(final String entryName, final String content) {
+            return replace(new Equals(entryName), () -> content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        public Builder replace(final String entryName, final File content) {
+            return replace(new Equals(entryName), content.toPath());
+        }
+
+        public Builder replace(final Predicate<String> entryPredicate, final Supplier<byte[]> content) {
+            transformations.add(new Transformation(entryPredicate, new Transformation.Replacement(content, null)));
+            return this;
+        }
+
+        /**
+         * The new content is streamed from the file when the entry is written
+         */
+        public Builder replace(final Predicate<String> entryPredicate, final Path content) {
+            transformations.add(new Transformation(entryPredicate, new Transformation.Replacement(null, content)));
+            return this;
+        }
+
         public Builder prepend(final String entryName, final String contents) {
             transformations.add(new Transformation(new Equals(entryName), new Prepend(contents)));
             return this;
@@ -328,6 +431,18 @@ public class Transformations {
         }
 
 
+        /**
+         * Keep the results of the transformations in the cache and skip the
+         * functions when the same content has been transformed by the same
+         * rules before.  Change the version whenever any function changes
+         * its behavior, or when rules are added or reordered.
+         */
+        public Builder cache(final TransformationCache cache, final String version) {
+            this.cache = Objects.requireNonNull(cache, "cache is required.");
+            this.cacheVersion = Objects.requireNonNull(version, "version is required.");
+            return this;
+        }
+
         /**
          * TODO Use this to create a class that adds the subscription jar
          * by watching each predicate tested value and can figure out the
@@ -377,7 +492,7 @@ public class Transformations {
 
         public Transformations build() {
             applyBuilderConsumers();
-            return new Transformations(transformations, before, after, beforeEntry, afterEntry, skipEntry, skipTransformation);
+            return new Transformations(transformations, before, after, beforeEntry, afterEntry, skipEntry, skipTransformation, cache, cacheVersion);
         }
 
         public static byte[] readBytes(final File content) {
@@ -442,9 +557,14 @@ public class Transformations {
         }
     }
 
+    @Data
+    private static class JarKey {
+        private final byte[] sha256;
+    }
+
     public static class UnsupportedFileTypeException extends RuntimeException {
         public UnsupportedFileTypeException(final File file) {
-            super(String.format("Unsupported file type '%s'. Supported types are zip, tar.gz, jar, war, ear and rar", file.getName()));
+            super(String.format("Unsupported file type '%s'. Supported types are zip, tar, tar.gz, tar.bz2, tar.lz4, jar, war, ear and rar", file.getName()));
         }
     }
 
@@ -19,6 +19,9 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 public interface Transformer {
     void transform(final InputStream in, final OutputStream out) throws IOException;
@@ -28,4 +31,19 @@ public interface Transformer {
             transform(in, out);
         }
     }
+
+    /**
+     * Runs {@link #transform(File, File)} on the supplied executor.  Cancelling
+     * the returned future interrupts the running transformation.  Transformers
+     * that only implement the stream variant also stop at their next read or
+     * write.  The partially written destination is deleted when the
+     * transformation is cancelled.
+     */
+    default CompletableFuture<TransformationResult> transformAsync(final Path src, final Path dest, final Executor executor) {
+        return transformAsync(src.toFile(), dest.toFile(), executor);
+    }
+
+    default CompletableFuture<TransformationResult> transformAsync(final File src, final File dest, final Executor executor) {
+        return new AsyncTransformation(this, src, dest).submit(executor);
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The pool the parallel gzip and bzip2 streams share by default.  It has
+ * one thread per processor however many streams are open, so nested
+ * archives each opening their own streams do not multiply the threads.
+ * The tasks only compress or decompress and never wait on each other.
+ */
+final class Workers {
+
+    private static final ExecutorService SHARED = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new DaemonThreads("archie-worker-"));
+
+    private Workers() {
+    }
+
+    static Executor shared() {
+        return SHARED;
+    }
+
+    static <T> Future<T> submit(final Executor executor, final Callable<T> task) {
+        final FutureTask<T> future = new FutureTask<>(task);
+        executor.execute(future);
+        return future;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands written data to a thread of its own through a bounded ring of
+ * buffers, so the work done by the destination, typically deflating,
+ * overlaps with the work done by the writer of this stream.
+ *
+ * A failure of the destination is thrown by the next write, flush or
+ * close.  The destination is closed when this stream is closed.
+ */
+public class WriteBehindOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFERS = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static final AtomicInteger count = new AtomicInteger();
+
+    private static final Chunk FLUSH = new Chunk(null, 0);
+    private static final Chunk END = new Chunk(null, -1);
+
+    private final OutputStream out;
+    private final BlockingQueue<byte[]> free;
+    private final BlockingQueue<Chunk> filled;
+    private final Thread thread;
+
+    private volatile Throwable failure;
+
+    private byte[] buffer;
+    private int length;
+    private boolean closed;
+
+    public WriteBehindOutputStream(final OutputStream out) {
+        this(out, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    public WriteBehindOutputStream(final OutputStream out, final int buffers, final int bufferSize) {
+        if (buffers < 1) throw new IllegalArgumentException("buffers must be at least 1: " + buffers);
+        if (bufferSize < 1) throw new IllegalArgumentException("bufferSize must be at least 1: " + bufferSize);
+
+        this.out = out;
+        this.free = new ArrayBlockingQueue<>(buffers);
+        // room for every buffer plus the flush and end markers
+        this.filled = new ArrayBlockingQueue<>(buffers + 2);
+
+        for (int i = 0; i < buffers; i++) {
+            free.add(new byte[bufferSize]);
+        }
+
+        this.thread = new Thread(this::drain, "archie-write-behind-" + count.incrementAndGet());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        buffer()[length++] = (byte) b;
+        if (length == buffer.length) handOff();
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            final byte[] buffer = buffer();
+            final int n = Math.min(len, buffer.length - length);
+            System.arraycopy(b, off, buffer, length, n);
+            length += n;
+            off += n;
+            len -= n;
+
+            if (length == buffer.length) handOff();
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        check();
+        if (length > 0) handOff();
+        put(FLUSH);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            if (failure == null) {
+                if (length > 0) handOff();
+                put(END);
+                join();
+            }
+        } finally {
+            if (thread.isAlive()) {
+                thread.interrupt();
+                join();
+            }
+            out.close();
+        }
+
+        if (failure != null) throw new IOException("Write behind failed", failure);
+    }
+
+    private byte[] buffer() throws IOException {
+        check();
+        if (buffer == null) {
+            buffer = take();
+            length = 0;
+        }
+        return buffer;
+    }
+
+    private void handOff() throws IOException {
+        put(new Chunk(buffer, length));
+        buffer = null;
+        length = 0;
+    }
+
+    private void check() throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (failure != null) throw new IOException("Write behind failed", failure);
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return free.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing behind");
+        }
+    }
+
+    private void put(final Chunk chunk) throws IOException {
+        try {
+            filled.put(chunk);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing behind");
+        }
+    }
+
+    private void join() throws IOException {
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing behind");
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                final Chunk chunk = filled.take();
+
+                if (chunk == END) return;
+
+                // after a failure keep recycling buffers so the writer never blocks
+                if (failure == null) {
+                    try {
+                        if (chunk == FLUSH) {
+                            out.flush();
+                        } else {
+                            out.write(chunk.buffer, 0, chunk.length);
+                        }
+                    } catch (final Throwable t) {
+                        failure = t;
+                    }
+                }
+
+                if (chunk != FLUSH) free.put(chunk.buffer);
+            }
+        } catch (final InterruptedException e) {
+            // closed after a failure
+        }
+    }
+
+    private static class Chunk {
+        private final byte[] buffer;
+        private final int length;
+
+        private Chunk(final byte[] buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
@@ -17,7 +17,7 @@ import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.tomitribe.util.Files;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.tomitribe.util.IO;
 
 import java.io.ByteArrayInputStream;
@@ -27,6 +27,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -58,18 +60,45 @@ public class ZipTransformation implements Transformer, Function<byte[], byte[]>
 
     @Override
     public void transform(final InputStream source, final OutputStream destination) throws IOException {
-        try (final ZipArchiveInputStream in = new ZipArchiveInputStream(new UnclosableInputStream(source));
-             final ZipArchiveOutputStream out = new ZipArchiveOutputStream(new UnclosableOutputStream(destination))) {
+        try (final ZipArchiveInputStream in = new ZipArchiveInputStream(new UnclosableInputStream(source))) {
+            // the old data of replaced entries is skipped by the input when it moves to the next entry
+            transform(in::getNextZipEntry, entry -> new UnclosableInputStream(in), destination);
+        }
+    }
 
-            transformations.beforeArchive(out);
+    /**
+     * Reads the entries through the central directory, so the old data
+     * of a replaced entry is skipped by its compressed size.  The stream
+     * path has to inflate it to find the end of deflated entries written
+     * with a data descriptor.
+     */
+    @Override
+    public void transform(final File src, final File dest) throws IOException {
+        try (final ZipFile zip = new ZipFile(src);
+             final OutputStream out = dest instanceof Binary ? ((Binary) dest).write() : IO.write(dest)) {
+
+            final Iterator<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder()).iterator();
+            transform(() -> entries.hasNext() ? entries.next() : null, zip::getInputStream, out);
+        }
+    }
+
+    private void transform(final Entries entries, final Content content, final OutputStream destination) throws IOException {
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(new UnclosableOutputStream(destination))) {
 
-            final File tmpdir = Files.tmpdir();
+            transformations.beforeArchive(out);
 
             ZipArchiveEntry entry;
-            while ((entry = in.getNextZipEntry()) != null) {
+            while ((entry = entries.next()) != null) {
+                Interruption.check();
 
                 final String name = entry.getName();
 
+                final Transformation.Replacement replacement = entry.isDirectory() ? null : transformations.replacement(name);
+                if (replacement != null) {
+                    JarTransformation.replace(transformations, entry, replacement, out);
+                    continue;
+                }
+
                 transformations.beforeEntry(name, out);
 
                 if (entry.isDirectory()) {
@@ -78,7 +107,10 @@ public class ZipTransformation implements Transformer, Function<byte[], byte[]>
                     out.closeArchiveEntry();
                 } else {
 
-                    final byte[] bytes = transformations.apply(name, IO.readBytes(in));
+                    final byte[] bytes;
+                    try (final InputStream in = content.open(entry)) {
+                        bytes = transformations.apply(name, IO.readBytes(in));
+                    }
 
                     try {
                         final ZipArchiveEntry file = new ZipArchiveEntry(name);
@@ -109,6 +141,14 @@ public class ZipTransformation implements Transformer, Function<byte[], byte[]>
         }
     }
 
+    private interface Entries {
+        ZipArchiveEntry next() throws IOException;
+    }
+
+    private interface Content {
+        InputStream open(ZipArchiveEntry entry) throws IOException;
+    }
+
     public static class Builder {
 
         private Transformations.Builder builder = new Transformations.Builder();
@@ -16,6 +16,8 @@ package org.tomitribe.archie.util;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.tomitribe.archie.ParallelGzipInputStream;
+import org.tomitribe.archie.TarGzIndex;
 import org.tomitribe.util.Files;
 import org.tomitribe.util.IO;
 import org.tomitribe.util.Longs;
@@ -24,6 +26,7 @@ import org.tomitribe.util.hash.XxHash64;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
@@ -106,13 +109,46 @@ public class TarGzs {
         }
     }
 
+    /**
+     * Reads a single entry using the {@link TarGzIndex} sidecar written
+     * next to the archive, inflating only from the nearest checkpoint
+     */
+    public static byte[] read(final File tarGz, final String name) throws IOException {
+        return read(tarGz, TarGzIndex.read(TarGzIndex.file(tarGz)), name);
+    }
+
+    public static byte[] read(final File tarGz, final TarGzIndex index, final String name) throws IOException {
+        final TarGzIndex.Entry entry = index.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(String.format("No entry '%s' in %s", name, tarGz.getName()));
+        }
+
+        try (final TarArchiveInputStream tarIn = new TarArchiveInputStream(index.open(tarGz, entry))) {
+            final TarArchiveEntry found = tarIn.getNextTarEntry();
+            if (found == null || !name.equals(found.getName())) {
+                throw new IOException(String.format("Index of %s is out of date, expected '%s' at offset %s",
+                        tarGz.getName(), name, entry.getHeaderOffset()));
+            }
+            return IO.readBytes(tarIn);
+        }
+    }
 
     public static String list(final File zip) {
-        try (final InputStream in = IO.read(zip)) {
-            return list(in);
+        return list(zip, 1);
+    }
+
+    /**
+     * Lists the archive, decompressing on the specified number of threads
+     * when it has a {@link TarGzIndex} sidecar
+     */
+    public static String list(final File zip, final int threads) {
+        final PrintString out = new PrintString();
+        try (final InputStream in = ParallelGzipInputStream.open(zip, threads)) {
+            listTar(in, "", out);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        return out.toString();
     }
 
     public static String list(final InputStream read) {
@@ -122,7 +158,15 @@ public class TarGzs {
     }
 
     public static void list(final InputStream read, final String parent, final PrintStream out) {
-        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(new GzipCompressorInputStream(read))) {
+        try {
+            listTar(new GzipCompressorInputStream(read), parent, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to untar " + read, e);
+        }
+    }
+
+    private static void listTar(final InputStream read, final String parent, final PrintStream out) {
+        try (TarArchiveInputStream tarIn = new TarArchiveInputStream(read)) {
 
             TarArchiveEntry entry;
             while ((entry = (TarArchiveEntry) tarIn.getNextEntry()) != null) {
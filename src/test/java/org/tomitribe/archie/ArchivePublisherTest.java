@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Test;
+import org.tomitribe.util.Longs;
+import org.tomitribe.util.hash.XxHash64;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ArchivePublisherTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void tarGz() throws Exception {
+        assertEquals("LICENSE  9134608477cbc308\n" +
+                "archive.jar  edebf234f3b1d98b\n" +
+                "com/\n" +
+                "com/example/\n" +
+                "com/example/Blue.class  eede7ddf0e8da147\n" +
+                "com/example/Red.class  5274fcc41680dae1\n" +
+                "com/example/Green.class  5d17a647bf5bc8c0\n", list(ArchiveFormat.TAR_GZ, resources.file("archive.tar.gz")));
+    }
+
+    @Test
+    public void zip() throws Exception {
+        assertEquals("LICENSE  9134608477cbc308\n" +
+                "archive.jar  edebf234f3b1d98b\n" +
+                "com/\n" +
+                "com/example/\n" +
+                "com/example/Blue.class  eede7ddf0e8da147\n" +
+                "com/example/Red.class  5274fcc41680dae1\n" +
+                "com/example/Green.class  5d17a647bf5bc8c0\n", list(ArchiveFormat.ZIP, resources.file("archive.zip")));
+    }
+
+    /**
+     * Nothing past the requested entries should be delivered and
+     * cancelling must close the underlying archive
+     */
+    @Test
+    public void backpressure() throws Exception {
+        final File file = resources.file("archive.zip");
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        final ArchivePublisher publisher = new ArchivePublisher(ArchiveFormat.ZIP, () -> {
+            try {
+                return new FilterInputStream(new FileInputStream(file)) {
+                    @Override
+                    public void close() throws IOException {
+                        closed.set(true);
+                        super.close();
+                    }
+                };
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Runnable::run);
+
+        final List<String> names = new ArrayList<>();
+        final Flow.Subscription[] subscription = new Flow.Subscription[1];
+        final AtomicBoolean completed = new AtomicBoolean();
+
+        publisher.subscribe(new Flow.Subscriber<ArchivePublisher.Item>() {
+            @Override
+            public void onSubscribe(final Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(final ArchivePublisher.Item item) {
+                names.add(item.getName());
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                throw new AssertionError(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                completed.set(true);
+            }
+        });
+
+        assertTrue(names.isEmpty());
+
+        subscription[0].request(2);
+        assertEquals(2, names.size());
+        assertFalse(completed.get());
+        assertFalse(closed.get());
+
+        subscription[0].request(1);
+        assertEquals(3, names.size());
+
+        subscription[0].cancel();
+        assertTrue(closed.get());
+        assertFalse(completed.get());
+
+        subscription[0].request(5);
+        assertEquals(3, names.size());
+    }
+
+    private static String list(final ArchiveFormat format, final File file) throws InterruptedException {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final StringBuilder sb = new StringBuilder();
+            final CountDownLatch done = new CountDownLatch(1);
+            final Throwable[] error = new Throwable[1];
+
+            new ArchivePublisher(format, file, executor).subscribe(new Flow.Subscriber<ArchivePublisher.Item>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(final Flow.Subscription subscription) {
+                    this.subscription = subscription;
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onNext(final ArchivePublisher.Item item) {
+                    if (item.getEntry().isDirectory()) {
+                        sb.append(item.getName()).append("\n");
+                    } else {
+                        try (final InputStream content = item.getContent()) {
+                            sb.append(item.getName()).append("  ").append(Longs.toHex(XxHash64.hash(content))).append("\n");
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(final Throwable throwable) {
+                    error[0] = throwable;
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+
+            assertTrue(done.await(1, TimeUnit.MINUTES));
+            assertNull(error[0]);
+            return sb.toString();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
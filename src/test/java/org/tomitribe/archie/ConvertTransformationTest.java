@@ -0,0 +1,218 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.archie.util.Zips;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConvertTransformationTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void zipToTarGz() throws Exception {
+        final File zip = resources.file("archive.zip");
+        final File tarGz = new File(Files.tmpdir(), "archive.tar.gz");
+
+        ConvertTransformation.builder()
+                .from(ArchiveFormat.ZIP)
+                .to(ArchiveFormat.TAR_GZ)
+                .build()
+                .transform(zip, tarGz);
+
+        assertEquals(Zips.list(zip), TarGzs.list(tarGz));
+
+        final Map<String, TarArchiveEntry> entries = tarEntries(tarGz);
+        assertEquals(0644, entries.get("LICENSE").getMode() & 07777);
+        assertEquals(0755, entries.get("com/example/").getMode() & 07777);
+
+        try (final ZipFile source = new ZipFile(zip)) {
+            assertEquals(source.getEntry("LICENSE").getLastModifiedDate().getTime() / 1000,
+                    entries.get("LICENSE").getModTime().getTime() / 1000);
+        }
+    }
+
+    @Test
+    public void tarGzToZip() throws Exception {
+        final File tarGz = resources.file("permissions.tar.gz");
+        final File zip = new File(Files.tmpdir(), "permissions.zip");
+
+        ConvertTransformation.builder()
+                .from(ArchiveFormat.TAR_GZ)
+                .to(ArchiveFormat.ZIP)
+                .prepend("run.sh", "#!/bin/sh\n")
+                .build()
+                .transform(tarGz, zip);
+
+        final Map<String, TarArchiveEntry> expected = tarEntries(tarGz);
+
+        try (final ZipFile converted = new ZipFile(zip)) {
+            int count = 0;
+            for (final ZipArchiveEntry entry : Collections.list(converted.getEntries())) {
+                count++;
+                assertEquals(entry.getName(), expected.get(entry.getName()).getMode() & 07777, entry.getUnixMode() & 07777);
+            }
+            assertEquals(expected.size(), count);
+
+            try (final InputStream in = converted.getInputStream(converted.getEntry("run.sh"))) {
+                assertTrue(IO.slurp(in).startsWith("#!/bin/sh\n"));
+            }
+        }
+    }
+
+    @Test
+    public void symbolicLinks() throws Exception {
+        final File tarGz = resources.file("sample.tar.gz");
+        final File tmpdir = Files.tmpdir();
+        final File jar = new File(tmpdir, "sample.jar");
+
+        ConvertTransformation.builder()
+                .from(ArchiveFormat.TAR_GZ)
+                .to(ArchiveFormat.JAR)
+                .build()
+                .transform(tarGz, jar);
+
+        try (final ZipFile converted = new ZipFile(jar)) {
+            final ZipArchiveEntry link = converted.getEntry("sample/hello.txt");
+            assertTrue(link.isUnixSymlink());
+            assertEquals("hello.txt.1", converted.getUnixSymlink(link));
+        }
+
+        // and back again
+        final File roundTrip = new File(tmpdir, "roundtrip.tar.gz");
+        ConvertTransformation.builder()
+                .from(ArchiveFormat.JAR)
+                .to(ArchiveFormat.TAR_GZ)
+                .build()
+                .transform(jar, roundTrip);
+
+        final TarArchiveEntry link = tarEntries(roundTrip).get("sample/hello.txt");
+        assertTrue(link.isSymbolicLink());
+        assertEquals("hello.txt.1", link.getLinkName());
+    }
+
+    /**
+     * Entries no rule applies to are streamed when their size is known and
+     * read into memory when it is not, stored entries stay stored
+     */
+    @Test
+    public void untouchedEntries() throws Exception {
+        final File tmpdir = Files.tmpdir();
+        final File zip = new File(tmpdir, "source.zip");
+
+        final byte[] large = ParallelGzipOutputStreamTest.data(2 * 1024 * 1024);
+        final byte[] stored = "stored".getBytes();
+
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(IO.write(zip))) {
+            out.putArchiveEntry(new ZipArchiveEntry("large.txt"));
+            out.write(large);
+            out.closeArchiveEntry();
+
+            final CRC32 crc = new CRC32();
+            crc.update(stored);
+            final ZipArchiveEntry entry = new ZipArchiveEntry("stored.txt");
+            entry.setMethod(ZipMethod.STORED.getCode());
+            entry.setSize(stored.length);
+            entry.setCrc(crc.getValue());
+            out.putArchiveEntry(entry);
+            out.write(stored);
+            out.closeArchiveEntry();
+        }
+
+        final ConvertTransformation toTarGz = ConvertTransformation.builder()
+                .from(ArchiveFormat.ZIP)
+                .to(ArchiveFormat.TAR_GZ)
+                .build();
+
+        // sizes known from the central directory
+        final File fromFile = new File(tmpdir, "file.tar.gz");
+        toTarGz.transform(zip, fromFile);
+
+        // sizes of deflated entries only known after their data
+        final File fromStream = new File(tmpdir, "stream.tar.gz");
+        try (final InputStream in = IO.read(zip); final OutputStream out = IO.write(fromStream)) {
+            toTarGz.transform(in, out);
+        }
+
+        for (final File tarGz : new File[]{fromFile, fromStream}) {
+            final Map<String, byte[]> contents = tarContents(tarGz);
+            assertArrayEquals(large, contents.get("large.txt"));
+            assertArrayEquals(stored, contents.get("stored.txt"));
+        }
+
+        final File copy = new File(tmpdir, "copy.zip");
+        ConvertTransformation.builder()
+                .from(ArchiveFormat.ZIP)
+                .to(ArchiveFormat.ZIP)
+                .build()
+                .transform(zip, copy);
+
+        try (final ZipFile converted = new ZipFile(copy)) {
+            assertEquals(ZipMethod.STORED.getCode(), converted.getEntry("stored.txt").getMethod());
+            assertArrayEquals(stored, IO.readBytes(converted.getInputStream(converted.getEntry("stored.txt"))));
+            assertArrayEquals(large, IO.readBytes(converted.getInputStream(converted.getEntry("large.txt"))));
+        }
+    }
+
+    @Test
+    public void relativize() {
+        assertEquals("hello.txt.1", ConvertTransformation.relativize("sample/hello.txt", "sample/hello.txt.1"));
+        assertEquals("../lib/a.jar", ConvertTransformation.relativize("sample/bin/a.jar", "sample/lib/a.jar"));
+        assertEquals("sample/a.txt", ConvertTransformation.relativize("b.txt", "sample/a.txt"));
+    }
+
+    private static Map<String, byte[]> tarContents(final File file) throws Exception {
+        final Map<String, byte[]> contents = new HashMap<>();
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(IO.read(file)))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                contents.put(entry.getName(), IO.readBytes(in));
+            }
+        }
+        return contents;
+    }
+
+    private static Map<String, TarArchiveEntry> tarEntries(final File file) throws Exception {
+        final Map<String, TarArchiveEntry> entries = new HashMap<>();
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(IO.read(file)))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        return entries;
+    }
+}
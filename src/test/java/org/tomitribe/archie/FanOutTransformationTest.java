@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FanOutTransformationTest {
+
+    private final File tarGz = new Resources().file("archive.tar.gz");
+
+    /**
+     * Each output must match what TarGzTransformation produces
+     * for that variant on its own
+     */
+    @Test
+    public void variants() throws Exception {
+        final Transformations community = Transformations.builder()
+                .prepend("LICENSE", "Community Edition\n")
+                .build();
+
+        final Transformations enterprise = Transformations.builder()
+                .prepend("LICENSE", "Enterprise Edition\n")
+                .before(InsertEntry.builder().name("README.txt").content("Hello, Enterprise!").build())
+                .enhance(name -> name.endsWith("Red.class"), bytes -> {
+                    // modify the array in place, the other variants must not see this
+                    bytes[0] = 0;
+                    return bytes;
+                })
+                .build();
+
+        final Transformations fips = Transformations.builder()
+                .afterEntry("LICENSE", InsertEntry.builder().name("FIPS.txt").content("FIPS 140-3").build())
+                .build();
+
+        final File tmpdir = Files.tmpdir();
+        final File communityOut = new File(tmpdir, "community.tar.gz");
+        final File enterpriseOut = new File(tmpdir, "enterprise.tar.gz");
+        final File fipsOut = new File(tmpdir, "fips.tar.gz");
+
+        FanOutTransformation.builder()
+                .variant(community)
+                .variant(enterprise)
+                .variant(fips)
+                .build()
+                .transform(tarGz, Arrays.asList(communityOut, enterpriseOut, fipsOut));
+
+        assertEquals(expected(community), TarGzs.list(communityOut));
+        assertEquals(expected(enterprise), TarGzs.list(enterpriseOut));
+        assertEquals(expected(fips), TarGzs.list(fipsOut));
+
+        assertNotEquals(TarGzs.list(communityOut), TarGzs.list(enterpriseOut));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void destinationsMustMatchVariants() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        FanOutTransformation.builder()
+                .variant(builder -> builder.prepend("LICENSE", "one"))
+                .variant(builder -> builder.prepend("LICENSE", "two"))
+                .build()
+                .transform(tarGz, Arrays.asList(new File(tmpdir, "one.tar.gz")));
+    }
+
+    /**
+     * Entries read by several variants are spooled rather than held in
+     * memory, replaced and untouched entries pass through, and the
+     * outputs are byte for byte what TarGzTransformation writes
+     */
+    @Test
+    public void largeEntries() throws Exception {
+        final File tmpdir = Files.tmpdir();
+        final File source = new File(tmpdir, "source.tar.gz");
+
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(IO.write(source)))) {
+            put(out, "small.txt", "small\n".getBytes());
+            put(out, "large.bin", ParallelGzipOutputStreamTest.data(3 * 1024 * 1024));
+            put(out, "other.bin", ParallelGzipOutputStreamTest.data(2 * 1024 * 1024 + 7));
+        }
+
+        final List<Transformations> variants = Arrays.asList(
+                Transformations.builder()
+                        .enhance("large.bin", bytes -> {
+                            bytes[0] = 1;
+                            return bytes;
+                        })
+                        .build(),
+                Transformations.builder()
+                        .replace("other.bin", "replaced")
+                        .prepend("small.txt", "very ")
+                        .build(),
+                Transformations.builder().build());
+
+        final List<File> outputs = Arrays.asList(new File(tmpdir, "a.tar.gz"), new File(tmpdir, "b.tar.gz"), new File(tmpdir, "c.tar.gz"));
+
+        FanOutTransformation.builder()
+                .variant(variants.get(0))
+                .variant(variants.get(1))
+                .variant(variants.get(2))
+                .parallelGzip(2)
+                .build()
+                .transform(source, outputs);
+
+        for (int i = 0; i < variants.size(); i++) {
+            assertArrayEquals(tar(expected(source, variants.get(i))), tar(outputs.get(i)));
+        }
+    }
+
+    /**
+     * Sparse entries read by several variants stay sparse in each output
+     */
+    @Test
+    public void sparse() throws Exception {
+        final File source = new Resources(SparseTarTest.class).file("gnu.tar.gz");
+        final File tmpdir = Files.tmpdir();
+
+        final Transformations one = Transformations.builder().prepend("after.txt", "one\n").build();
+        final Transformations two = Transformations.builder().prepend("after.txt", "two\n").build();
+
+        final File oneOut = new File(tmpdir, "one.tar.gz");
+        final File twoOut = new File(tmpdir, "two.tar.gz");
+
+        FanOutTransformation.builder()
+                .variant(one)
+                .variant(two)
+                .build()
+                .transform(source, Arrays.asList(oneOut, twoOut));
+
+        for (final File out : Arrays.asList(oneOut, twoOut)) {
+            try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(IO.read(out)))) {
+                final TarArchiveEntry big = in.getNextTarEntry();
+                assertEquals("big", big.getName());
+                assertTrue(big.isPaxGNU1XSparse());
+                assertTrue(big.getSize() < 16 * 1024);
+            }
+        }
+
+        assertArrayEquals(tar(expected(source, one)), tar(oneOut));
+        assertArrayEquals(tar(expected(source, two)), tar(twoOut));
+    }
+
+    private static void put(final TarArchiveOutputStream out, final String name, final byte[] bytes) throws IOException {
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static byte[] tar(final File tarGz) throws IOException {
+        try (final InputStream in = new GzipCompressorInputStream(IO.read(tarGz))) {
+            return IO.readBytes(in);
+        }
+    }
+
+    private static File expected(final File source, final Transformations transformations) throws Exception {
+        final File file = new File(Files.tmpdir(), "expected.tar.gz");
+        new TarGzTransformation(transformations).transform(source, file);
+        return file;
+    }
+
+    private String expected(final Transformations transformations) throws Exception {
+        final File file = new File(Files.tmpdir(), "expected.tar.gz");
+        new TarGzTransformation(transformations).transform(tarGz, file);
+        return TarGzs.list(file);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Assume;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HardlinkDeduplicationTest {
+
+    private static final int SIZE = 300 * 1024;
+
+    @Test
+    public void duplicatesBecomeLinks() throws Exception {
+        final File before = TarGzIndexTest.tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        final AtomicReference<Deduplication> report = new AtomicReference<>();
+
+        TarGzTransformation.builder()
+                .hardlinkDuplicates(report::set)
+                .build()
+                .transform(before, after);
+
+        final Map<String, TarArchiveEntry> entries = entries(after);
+        assertFalse(entries.get("modules/a/lib/shared.jar").isLink());
+        assertFalse(entries.get("modules/b/lib/other.jar").isLink());
+        assertFalse(entries.get("README.txt").isLink());
+        assertLink("modules/a/lib/shared.jar", entries.get("modules/b/lib/shared.jar"));
+        assertLink("modules/a/lib/shared.jar", entries.get("modules/c/lib/shared.jar"));
+        assertLink("README.txt", entries.get("docs/README.txt"));
+
+        assertTrue(after.length() < before.length());
+
+        final Deduplication deduplication = report.get();
+        assertEquals(6, deduplication.getFilesHashed());
+        assertEquals(4L * SIZE + 2 * "read me\n".length(), deduplication.getBytesHashed());
+        assertEquals(3, deduplication.getDuplicates());
+        assertEquals(2L * SIZE + "read me\n".length(), deduplication.getBytesSaved());
+        assertTrue(deduplication.getHashTime().toNanos() > 0);
+    }
+
+    @Test
+    public void transformedContentIsCompared() throws Exception {
+        final File before = TarGzIndexTest.tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        final AtomicReference<Deduplication> report = new AtomicReference<>();
+
+        TarGzTransformation.builder()
+                .prepend("docs/README.txt", "see also\n")
+                .hardlinkDuplicates(report::set)
+                .build()
+                .transform(before, after);
+
+        final Map<String, TarArchiveEntry> entries = entries(after);
+        assertFalse(entries.get("docs/README.txt").isLink());
+        assertLink("modules/a/lib/shared.jar", entries.get("modules/c/lib/shared.jar"));
+        assertEquals(2, report.get().getDuplicates());
+    }
+
+    /**
+     * The entry callbacks surround the transformation, as in the other engines
+     */
+    @Test
+    public void callbackOrder() throws Exception {
+        final File before = TarGzIndexTest.tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        final List<String> events = new ArrayList<>();
+
+        TarGzTransformation.builder()
+                .beforeEntry("docs/README.txt", out -> events.add("before"))
+                .enhance("docs/README.txt", bytes -> {
+                    events.add("apply");
+                    return bytes;
+                })
+                .afterEntry("docs/README.txt", out -> events.add("after"))
+                .hardlinkDuplicates()
+                .build()
+                .transform(before, after);
+
+        assertEquals(Arrays.asList("before", "apply", "after"), events);
+    }
+
+    @Test
+    public void off() throws Exception {
+        final File before = TarGzIndexTest.tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().build().transform(before, after);
+
+        for (final TarArchiveEntry entry : entries(after).values()) {
+            assertFalse(entry.getName(), entry.isLink());
+        }
+    }
+
+    @Test
+    public void gnuTar() throws Exception {
+        final File tar = new File("/usr/bin/tar");
+        Assume.assumeTrue(tar.exists());
+
+        final Map<String, byte[]> contents = contents();
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        TarGzTransformation.builder()
+                .hardlinkDuplicates()
+                .build()
+                .transform(TarGzIndexTest.tarGz(contents), after);
+
+        final File dir = Files.tmpdir();
+        final Process process = new ProcessBuilder(tar.getAbsolutePath(), "-xzf", after.getAbsolutePath())
+                .directory(dir)
+                .start();
+        assertEquals(0, process.waitFor());
+
+        for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), IO.readBytes(new File(dir, entry.getKey())));
+        }
+    }
+
+    private static void assertLink(final String target, final TarArchiveEntry entry) {
+        assertTrue(entry.getName(), entry.isLink());
+        assertEquals(target, entry.getLinkName());
+        assertEquals(0, entry.getSize());
+    }
+
+    /**
+     * Three copies of one jar, a different jar of the same size,
+     * and two copies of a small text file
+     */
+    private static Map<String, byte[]> contents() {
+        final byte[] data = ParallelGzipOutputStreamTest.data(2 * SIZE);
+        final byte[] shared = new byte[SIZE];
+        final byte[] other = new byte[SIZE];
+        System.arraycopy(data, 0, shared, 0, SIZE);
+        System.arraycopy(data, SIZE, other, 0, SIZE);
+
+        final Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("modules/a/lib/shared.jar", shared);
+        contents.put("README.txt", "read me\n".getBytes());
+        contents.put("modules/b/lib/other.jar", other);
+        contents.put("modules/b/lib/shared.jar", shared);
+        contents.put("docs/README.txt", "read me\n".getBytes());
+        contents.put("modules/c/lib/shared.jar", shared);
+        return contents;
+    }
+
+    private static Map<String, TarArchiveEntry> entries(final File tarGz) throws IOException {
+        final Map<String, TarArchiveEntry> entries = new LinkedHashMap<>();
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(IO.read(tarGz)))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextTarEntry()) != null) {
+                entries.put(entry.getName(), entry);
+            }
+        }
+        assertNull(entries.get(null));
+        return entries;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.zip.JarMarker;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class IncrementalTransformationTest {
+
+    /**
+     * The content of every entry the transformation ran on
+     */
+    private final List<String> transformed = new ArrayList<>();
+
+    @Test
+    public void unchangedEntriesAreReused() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File oldInput = JarMergeTest.jar(new File(tmpdir, "old.war"),
+                "index.html", "<h1>v1</h1>",
+                "WEB-INF/web.xml", "<web-app/>",
+                "WEB-INF/classes/app.properties", "color=red",
+                "WEB-INF/classes/removed.properties", "gone=soon",
+                "images/logo.png", "png");
+
+        final File oldOutput = new File(tmpdir, "old-out.war");
+        transformations().transformer(oldInput).transform(oldInput, oldOutput);
+        assertEquals(Arrays.asList("<h1>v1</h1>", "<web-app/>", "color=red", "gone=soon"), transformed);
+
+        final File newInput = JarMergeTest.jar(new File(tmpdir, "new.war"),
+                "index.html", "<h1>v1</h1>",
+                "WEB-INF/web.xml", "<web-app version=\"2\"/>",
+                "WEB-INF/classes/app.properties", "color=red",
+                "WEB-INF/classes/added.properties", "new=yes",
+                "images/logo.png", "png2");
+
+        transformed.clear();
+        final File newOutput = new File(tmpdir, "new-out.war");
+        IncrementalTransformation.builder()
+                .transformations(transformations())
+                .previous(oldInput, oldOutput)
+                .build()
+                .transform(newInput, newOutput);
+
+        assertEquals(Arrays.asList("<web-app version=\"2\"/>", "new=yes"), transformed);
+
+        final File full = new File(tmpdir, "full.war");
+        transformations().transformer(newInput).transform(newInput, full);
+
+        try (final JarFile expected = new JarFile(full); final JarFile actual = new JarFile(newOutput)) {
+            assertEquals(expected.size(), actual.size());
+            for (final String name : Arrays.asList("index.html", "WEB-INF/web.xml", "WEB-INF/classes/app.properties",
+                    "WEB-INF/classes/added.properties", "images/logo.png")) {
+                assertEquals(name, read(expected, name), read(actual, name));
+            }
+
+            assertEquals("v2\n<h1>v1</h1>", read(actual, "index.html"));
+            assertEquals("png2", read(actual, "images/logo.png"));
+            assertNull(actual.getEntry("WEB-INF/classes/removed.properties"));
+        }
+    }
+
+    @Test
+    public void noPreviousRun() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File input = JarMergeTest.jar(new File(tmpdir, "app.war"),
+                "index.html", "<h1>v1</h1>",
+                "images/logo.png", "png");
+
+        final File output = new File(tmpdir, "app-out.war");
+        IncrementalTransformation.builder()
+                .transformations(transformations())
+                .previous(new File(tmpdir, "missing.war"), new File(tmpdir, "missing-out.war"))
+                .build()
+                .transform(input, output);
+
+        assertEquals(Arrays.asList("<h1>v1</h1>"), transformed);
+
+        try (final JarFile jar = new JarFile(output)) {
+            assertEquals("v2\n<h1>v1</h1>", read(jar, "index.html"));
+            assertEquals("png", read(jar, "images/logo.png"));
+        }
+    }
+
+    /**
+     * A zip stays a plain zip, without the JarMarker extra field jars
+     * get on their first entry
+     */
+    @Test
+    public void zipStaysZip() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File oldInput = zip(new File(tmpdir, "old.zip"),
+                "index.html", "<h1>v1</h1>",
+                "images/logo.png", "png");
+
+        final File oldOutput = new File(tmpdir, "old-out.zip");
+        IncrementalTransformation.builder()
+                .transformations(transformations())
+                .previous(new File(tmpdir, "missing.zip"), new File(tmpdir, "missing-out.zip"))
+                .build()
+                .transform(oldInput, oldOutput);
+
+        final File newInput = zip(new File(tmpdir, "new.zip"),
+                "index.html", "<h1>v2</h1>",
+                "images/logo.png", "png");
+
+        final File newOutput = new File(tmpdir, "new-out.zip");
+        IncrementalTransformation.builder()
+                .transformations(transformations())
+                .previous(oldInput, oldOutput)
+                .build()
+                .transform(newInput, newOutput);
+
+        for (final File output : Arrays.asList(oldOutput, newOutput)) {
+            try (final ZipFile zip = new ZipFile(output)) {
+                for (final ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
+                    assertNull(output.getName() + " " + entry.getName(), entry.getExtraField(JarMarker.getInstance().getHeaderId()));
+                }
+            }
+        }
+
+        try (final ZipFile zip = new ZipFile(newOutput)) {
+            assertEquals("v2\n<h1>v2</h1>", IO.slurp(zip.getInputStream(zip.getEntry("index.html"))));
+        }
+    }
+
+    private static File zip(final File file, final String... entries) throws IOException {
+        try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(IO.write(file))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final byte[] bytes = entries[i + 1].getBytes(StandardCharsets.UTF_8);
+                final ZipArchiveEntry entry = new ZipArchiveEntry(entries[i]);
+                entry.setSize(bytes.length);
+                out.putArchiveEntry(entry);
+                out.write(bytes);
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+
+    private Transformations transformations() {
+        return Transformations.builder()
+                .enhance(name -> !name.endsWith(".png"), bytes -> {
+                    final String content = new String(bytes, StandardCharsets.UTF_8);
+                    transformed.add(content);
+                    return ("v2\n" + content).getBytes(StandardCharsets.UTF_8);
+                })
+                .build();
+    }
+
+    private static String read(final JarFile jar, final String name) throws Exception {
+        return IO.slurp(jar.getInputStream(jar.getEntry(name)));
+    }
+}
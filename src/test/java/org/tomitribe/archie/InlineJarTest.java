@@ -13,7 +13,10 @@
  */
 package org.tomitribe.archie;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
 import org.tomitribe.archie.util.Zips;
 import org.tomitribe.util.Files;
 import org.tomitribe.util.IO;
@@ -21,8 +24,16 @@ import org.tomitribe.util.IO;
 import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class InlineJarTest {
 
@@ -54,4 +65,83 @@ public class InlineJarTest {
                 "META-INF/LICENSE  9134608477cbc308\n", Zips.list(file));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void indexedOnce() throws Exception {
+        final byte[] secondary = IO.readBytes(resources.file("secondary.jar"));
+        final AtomicInteger reads = new AtomicInteger();
+        final InlineJar inline = new InlineJar(() -> {
+            reads.incrementAndGet();
+            return secondary;
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    final File file = new File(Files.tmpdir(), "result.jar");
+                    JarTransformation.builder()
+                            .after(inline)
+                            .build()
+                            .transform(resources.file("primary.jar"), file);
+                    return Zips.list(file);
+                }));
+            }
+
+            for (final Future<String> future : futures) {
+                assertEquals("com/example/Red.class  796ca5773171bbd4\n" +
+                        "com/example/Green.class  9044dda245a8680b\n" +
+                        "com/example/Blue.class  d78e86b7d63d9051\n" +
+                        "META-INF/LICENSE  9134608477cbc308\n" +
+                        "com/example/Magenta.class  ddfe4b20b0b1f275\n" +
+                        "com/example/Cyan.class  97a3ec28180d4904\n" +
+                        "com/example/Yellow.class  d9cea39e8bf2f47b\n" +
+                        "META-INF/LICENSE  9134608477cbc308\n", future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void rawCopy() throws Exception {
+        final File secondary = resources.file("secondary.jar");
+        final File file = new File(Files.tmpdir(), "result.jar");
+
+        JarTransformation.builder()
+                .after(new InlineJar(secondary))
+                .build()
+                .transform(resources.file("primary.jar"), file);
+
+        try (final ZipFile source = new ZipFile(secondary); final ZipFile result = new ZipFile(file)) {
+            for (final ZipArchiveEntry expected : Collections.list(source.getEntries())) {
+                if (expected.isDirectory() || expected.getName().equals("META-INF/LICENSE")) continue;
+
+                final ZipArchiveEntry actual = result.getEntry(expected.getName());
+                assertEquals(expected.getName(), expected.getMethod(), actual.getMethod());
+                assertEquals(expected.getName(), expected.getCompressedSize(), actual.getCompressedSize());
+                assertEquals(expected.getName(), expected.getCrc(), actual.getCrc());
+            }
+        }
+    }
+
+    @Test
+    public void tarGz() throws Exception {
+        final File before = new File(Files.tmpdir(), "before.tar.gz");
+        try (final OutputStream out = IO.write(before)) {
+            new TarGzTransformation(Transformations.builder().build()).transform(IO.read(new Resources().file("archive.tar.gz")), out);
+        }
+
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        TarGzTransformation.builder()
+                .after(new InlineJar(resources.file("secondary.jar")))
+                .build()
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        TarGzs.untargz(after, dir);
+        assertTrue(new File(dir, "com/example/Magenta.class").isFile());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class InsertBundleTest {
+
+    private static final long TIME = 1700000000000L;
+
+    private final Resources resources = new Resources();
+
+    private final AtomicInteger reads = new AtomicInteger();
+    private final byte[] agent = ParallelGzipOutputStreamTest.data(100 * 1024);
+
+    @Test
+    public void zipAndJar() throws Exception {
+        final InsertBundle bundle = bundle();
+
+        for (final String name : Arrays.asList("archive.zip", "archive.jar")) {
+            final File before = resources.file(name);
+            final File after = new File(Files.tmpdir(), name);
+
+            Transformations.builder()
+                    .before(bundle)
+                    .build()
+                    .transformer(before)
+                    .transform(before, after);
+
+            try (final ZipFile zip = new ZipFile(after)) {
+                assertEntry(zip, "LICENSE.txt", "Apache License\n".getBytes(), ZipMethod.STORED);
+                assertEntry(zip, "lib/agent.jar", agent, ZipMethod.DEFLATED);
+                assertEquals(TIME, zip.getEntry("LICENSE.txt").getTime());
+            }
+        }
+
+        // the content is read once, however many archives it goes into
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void tarGz() throws Exception {
+        final InsertBundle bundle = bundle();
+
+        // the header is built once and shared, a pax header for the long name each time
+        final String longName = "docs/" + String.join("/", Collections.nCopies(20, "nested")) + "/README.txt";
+        final InsertBundle docs = InsertBundle.builder()
+                .add(longName, "Read me\n")
+                .build();
+
+        for (int i = 0; i < 2; i++) {
+            final File before = resources.file("archive.tar.gz");
+            final File after = new File(Files.tmpdir(), before.getName());
+
+            Transformations.builder()
+                    .after(bundle)
+                    .after(docs)
+                    .build()
+                    .transformer(before)
+                    .transform(before, after);
+
+            final File dir = Files.tmpdir();
+            TarGzs.untargz(after, dir);
+            assertEquals("Apache License\n", IO.slurp(new File(dir, "LICENSE.txt")));
+            assertArrayEquals(agent, IO.readBytes(new File(dir, "lib/agent.jar")));
+            assertEquals("Read me\n", IO.slurp(new File(dir, longName)));
+        }
+
+        // the content is read once, however many archives it goes into
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void signedJar() throws Exception {
+        final File before = resources.file("archive.jar");
+        final File after = new File(Files.tmpdir(), "signed.jar");
+
+        JarTransformation.builder()
+                .after(bundle())
+                .sign(Signer.of(new Resources(SignerTest.class).file("keystore.p12"), "changeit".toCharArray(), "rsa", "changeit".toCharArray()))
+                .build()
+                .transform(before, after);
+
+        try (final JarFile jar = new JarFile(after, true)) {
+            final JarEntry entry = jar.getJarEntry("lib/agent.jar");
+            try (final InputStream in = jar.getInputStream(entry)) {
+                assertArrayEquals(agent, IO.readBytes(in));
+            }
+            assertNotNull(entry.getCodeSigners());
+        }
+    }
+
+    private InsertBundle bundle() {
+        return InsertBundle.builder()
+                .add("LICENSE.txt", "Apache License\n")
+                .add("lib/agent.jar", () -> {
+                    reads.incrementAndGet();
+                    return agent;
+                })
+                .time(TIME)
+                .build();
+    }
+
+    private static void assertEntry(final ZipFile zip, final String name, final byte[] expected, final ZipMethod method) throws Exception {
+        final ZipArchiveEntry entry = zip.getEntry(name);
+        assertNotNull(name, entry);
+        assertEquals(name, method.getCode(), entry.getMethod());
+        try (final InputStream in = zip.getInputStream(entry)) {
+            assertArrayEquals(name, expected, IO.readBytes(in));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class InsertDirectoryTest {
+
+    private static final long TIME = 1700000000000L;
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void jar() throws Exception {
+        final File tree = tree();
+        final File before = resources.file("archive.jar");
+        final File after = new File(Files.tmpdir(), before.getName());
+
+        Transformations.builder()
+                .after(InsertDirectory.builder().directory(tree).prefix("docs").threads(3).maxBuffered(1024).maxPending(1).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final StringBuilder listing = new StringBuilder();
+        try (final ZipFile zip = new ZipFile(after)) {
+            for (final ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                if (!entry.getName().startsWith("docs/")) continue;
+
+                listing.append(String.format("%s %o%n", entry.getName(), entry.getUnixMode() & 0777));
+                assertEquals(entry.getName(), TIME, entry.getTime());
+
+                if (entry.isDirectory()) continue;
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    assertArrayEquals(entry.getName(), IO.readBytes(new File(tree, entry.getName().substring(5))), IO.readBytes(in));
+                }
+            }
+        }
+
+        assertEquals(expected(), listing.toString());
+    }
+
+    @Test
+    public void tarGz() throws Exception {
+        final File tree = tree();
+        final File before = resources.file("archive.tar.gz");
+        final File after = new File(Files.tmpdir(), before.getName());
+
+        // files are prepared on the executor given, here the calling thread
+        final AtomicInteger tasks = new AtomicInteger();
+        final Executor executor = task -> {
+            tasks.incrementAndGet();
+            task.run();
+        };
+
+        Transformations.builder()
+                .after(InsertDirectory.builder().directory(tree).prefix("/docs/").threads(3).maxBuffered(1024).executor(executor).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final StringBuilder listing = new StringBuilder();
+        try (final TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(IO.read(after)))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (!entry.getName().startsWith("docs/")) continue;
+
+                listing.append(String.format("%s %o%n", entry.getName(), entry.getMode() & 0777));
+                assertEquals(entry.getName(), TIME, entry.getModTime().getTime());
+
+                if (entry.isDirectory()) continue;
+                assertArrayEquals(entry.getName(), IO.readBytes(new File(tree, entry.getName().substring(5))), IO.readBytes(tar));
+            }
+        }
+
+        assertEquals(expected(), listing.toString());
+        assertEquals(expected().split("\n").length, tasks.get());
+    }
+
+    /**
+     * Links are kept as links, a link back up the tree is not followed
+     */
+    @Test
+    public void symbolicLinks() throws Exception {
+        final File tree = Files.tmpdir();
+        final File bin = new File(tree, "bin");
+        Files.mkdir(bin);
+        IO.copy("#!/bin/sh\n".getBytes(), new File(bin, "run.sh"));
+        java.nio.file.Files.createSymbolicLink(new File(tree, "run").toPath(), new File("bin/run.sh").toPath());
+        java.nio.file.Files.createSymbolicLink(new File(bin, "loop").toPath(), new File("..").toPath());
+
+        final File tarGz = new File(Files.tmpdir(), "archive.tar.gz");
+        final File jar = new File(Files.tmpdir(), "archive.jar");
+
+        final Transformations transformations = Transformations.builder()
+                .after(InsertDirectory.builder().directory(tree).build())
+                .build();
+        transformations.transformer(tarGz).transform(resources.file("archive.tar.gz"), tarGz);
+        transformations.transformer(jar).transform(resources.file("archive.jar"), jar);
+
+        final StringBuilder listing = new StringBuilder();
+        try (final TarArchiveInputStream tar = new TarArchiveInputStream(new GZIPInputStream(IO.read(tarGz)))) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (entry.isSymbolicLink()) listing.append(String.format("%s -> %s%n", entry.getName(), entry.getLinkName()));
+            }
+        }
+
+        try (final ZipFile zip = new ZipFile(jar)) {
+            for (final ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                if (!entry.isUnixSymlink()) continue;
+                try (final InputStream in = zip.getInputStream(entry)) {
+                    listing.append(String.format("%s -> %s%n", entry.getName(), IO.slurp(in)));
+                }
+            }
+        }
+
+        assertEquals(String.format("bin/loop -> ..%n" +
+                "run -> bin/run.sh%n" +
+                "bin/loop -> ..%n" +
+                "run -> bin/run.sh%n"), listing.toString());
+    }
+
+    private static String expected() {
+        return String.format("docs/README.txt 644%n" +
+                "docs/api/ 755%n" +
+                "docs/api/big.bin 644%n" +
+                "docs/api/index.html 644%n" +
+                "docs/bin/ 755%n" +
+                "docs/bin/run.sh 755%n" +
+                "docs/zz.txt 600%n");
+    }
+
+    private static File tree() throws Exception {
+        final File dir = Files.tmpdir();
+
+        final File api = new File(dir, "api");
+        final File bin = new File(dir, "bin");
+        Files.mkdir(api);
+        Files.mkdir(bin);
+
+        IO.copy("Read me".getBytes(), new File(dir, "README.txt"));
+        IO.copy("Secret".getBytes(), new File(dir, "zz.txt"));
+        IO.copy("<html/>".getBytes(), new File(api, "index.html"));
+        IO.copy("#!/bin/sh\necho hi\n".getBytes(), new File(bin, "run.sh"));
+
+        final byte[] big = new byte[256 * 1024];
+        new Random(7).nextBytes(big);
+        IO.copy(big, new File(api, "big.bin"));
+
+        permissions(dir, "README.txt", "rw-r--r--");
+        permissions(dir, "zz.txt", "rw-------");
+        permissions(dir, "api/index.html", "rw-r--r--");
+        permissions(dir, "api/big.bin", "rw-r--r--");
+        permissions(dir, "bin/run.sh", "rwxr-xr-x");
+        permissions(dir, "api", "rwxr-xr-x");
+        permissions(dir, "bin", "rwxr-xr-x");
+
+        for (final File file : Files.collect(dir)) {
+            file.setLastModified(TIME);
+        }
+        return dir;
+    }
+
+    private static void permissions(final File dir, final String path, final String permissions) throws Exception {
+        java.nio.file.Files.setPosixFilePermissions(new File(dir, path).toPath(), PosixFilePermissions.fromString(permissions));
+    }
+}
@@ -20,7 +20,12 @@ import org.tomitribe.util.IO;
 import org.tomitribe.util.Zips;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 public class InsertEntryTest {
@@ -86,4 +91,99 @@ public class InsertEntryTest {
         final String actual = IO.slurp(new File(tmpdir, "README.txt"));
         assertEquals("Hello, World!", actual);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void tarGzPath() throws Exception {
+
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = resources.file("archive.tar.gz");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .before(InsertEntry.builder().name("bundle.bin").path(content.toPath()).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        TarGzs.untargz(after, dir);
+
+        assertArrayEquals(IO.readBytes(content), IO.readBytes(new File(dir, "bundle.bin")));
+    }
+
+    @Test
+    public void zipStream() throws Exception {
+
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .before(InsertEntry.builder().name("bundle.bin").stream(() -> read(content), content.length()).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertArrayEquals(IO.readBytes(content), IO.readBytes(new File(dir, "bundle.bin")));
+    }
+
+    @Test
+    public void jarFile() throws Exception {
+
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = resources.file("archive.jar");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .before(InsertEntry.builder().name("bundle.bin").file(content).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertArrayEquals(IO.readBytes(content), IO.readBytes(new File(dir, "bundle.bin")));
+    }
+
+    /**
+     * Which content would win is not obvious, so it is not allowed
+     */
+    @Test(expected = InsertEntry.AmbiguousContentException.class)
+    public void ambiguousContent() throws Exception {
+        final File content = content(Files.tmpdir());
+
+        InsertEntry.builder()
+                .name("bundle.bin")
+                .content("Hello")
+                .file(content)
+                .build();
+    }
+
+    private static File content(final File dir) throws IOException {
+        final Random random = new Random(42);
+        final byte[] bytes = new byte[3 * 1024 * 1024 + 17];
+        random.nextBytes(bytes);
+
+        final File file = new File(dir, "bundle.bin");
+        IO.copy(bytes, file);
+        return file;
+    }
+
+    private static InputStream read(final File file) {
+        try {
+            return IO.read(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.Zips;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JarMergeTest {
+
+    private final Resources resources = new Resources(InlineJarTest.class);
+
+    @Test
+    public void merge() throws Exception {
+        final File primary = resources.file("primary.jar");
+        final File secondary = resources.file("secondary.jar");
+
+        final File merged = new File(Files.tmpdir(), "merged.jar");
+
+        JarMerge.builder()
+                .duplicates(JarMerge.Duplicates.HASH)
+                .build()
+                .merge(Arrays.asList(primary, secondary), merged);
+
+        assertEquals("com/example/Red.class  796ca5773171bbd4\n" +
+                "com/example/Green.class  9044dda245a8680b\n" +
+                "com/example/Blue.class  d78e86b7d63d9051\n" +
+                "META-INF/LICENSE  9134608477cbc308\n" +
+                "com/example/Magenta.class  ddfe4b20b0b1f275\n" +
+                "com/example/Cyan.class  97a3ec28180d4904\n" +
+                "com/example/Yellow.class  d9cea39e8bf2f47b\n", Zips.list(merged));
+    }
+
+    @Test
+    public void transformations() throws Exception {
+        final File primary = resources.file("primary.jar");
+        final File secondary = resources.file("secondary.jar");
+
+        final File merged = new File(Files.tmpdir(), "merged.jar");
+
+        JarMerge.builder()
+                .transformations(Transformations.builder()
+                        .prepend("META-INF/LICENSE", "Merged\n")
+                        .skip(name -> name.endsWith("Cyan.class"))
+                        .build())
+                .build()
+                .merge(Arrays.asList(primary, secondary), merged);
+
+        assertEquals("com/example/Red.class  796ca5773171bbd4\n" +
+                "com/example/Green.class  9044dda245a8680b\n" +
+                "com/example/Blue.class  d78e86b7d63d9051\n" +
+                "META-INF/LICENSE  56933e6065affdb9\n" +
+                "com/example/Magenta.class  ddfe4b20b0b1f275\n" +
+                "com/example/Yellow.class  d9cea39e8bf2f47b\n", Zips.list(merged));
+
+        try (final JarFile jar = new JarFile(merged)) {
+            final String license = IO.slurp(jar.getInputStream(jar.getEntry("META-INF/LICENSE")));
+            assertTrue(license.startsWith("Merged\n"));
+            assertEquals("Merged\n".length() + 19, license.length());
+        }
+    }
+
+    @Test
+    public void servicesAndManifests() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File one = jar(new File(tmpdir, "one.jar"),
+                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: com.example.Red\r\n\r\n",
+                "META-INF/services/java.sql.Driver", "# comment\ncom.example.Red\ncom.example.Green\n",
+                "META-INF/ONE.SF", "signature",
+                "com/example/Red.txt", "red");
+
+        final File two = jar(new File(tmpdir, "two.jar"),
+                "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: com.example.Blue\r\nAutomatic-Module-Name: two\r\n\r\n",
+                "META-INF/services/java.sql.Driver", "com.example.Green\ncom.example.Blue\n",
+                "META-INF/services/javax.script.ScriptEngineFactory", "com.example.Blue\n",
+                "com/example/Blue.txt", "blue");
+
+        final File merged = new File(tmpdir, "merged.jar");
+        JarMerge.builder().build().merge(Arrays.asList(one, two), merged);
+
+        try (final JarFile jar = new JarFile(merged)) {
+            final Manifest manifest = jar.getManifest();
+            assertEquals("com.example.Red", manifest.getMainAttributes().getValue("Main-Class"));
+            assertEquals("two", manifest.getMainAttributes().getValue("Automatic-Module-Name"));
+
+            assertEquals("com.example.Red\ncom.example.Green\ncom.example.Blue\n",
+                    IO.slurp(jar.getInputStream(jar.getEntry("META-INF/services/java.sql.Driver"))));
+            assertEquals("com.example.Blue\n",
+                    IO.slurp(jar.getInputStream(jar.getEntry("META-INF/services/javax.script.ScriptEngineFactory"))));
+            assertNull(jar.getEntry("META-INF/ONE.SF"));
+            assertEquals("red", IO.slurp(jar.getInputStream(jar.getEntry("com/example/Red.txt"))));
+            assertEquals("blue", IO.slurp(jar.getInputStream(jar.getEntry("com/example/Blue.txt"))));
+        }
+    }
+
+    @Test
+    public void duplicates() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File one = jar(new File(tmpdir, "one.jar"), "config.properties", "color=red");
+        final File two = jar(new File(tmpdir, "two.jar"), "config.properties", "color=blue");
+
+        final File merged = new File(tmpdir, "merged.jar");
+        JarMerge.builder()
+                .duplicates(JarMerge.Duplicates.FIRST_WINS)
+                .build()
+                .merge(Arrays.asList(one, two), merged);
+
+        try (final JarFile jar = new JarFile(merged)) {
+            assertEquals("color=red", IO.slurp(jar.getInputStream(jar.getEntry("config.properties"))));
+        }
+
+        try {
+            JarMerge.builder()
+                    .duplicates(JarMerge.Duplicates.HASH)
+                    .build()
+                    .merge(Arrays.asList(one, two), new File(tmpdir, "conflict.jar"));
+            throw new AssertionError("Expected DuplicateEntryException");
+        } catch (final JarMerge.DuplicateEntryException e) {
+            // pass
+        }
+    }
+
+    /**
+     * @param entries alternating entry names and contents
+     */
+    static File jar(final File file, final String... entries) throws IOException {
+        try (final OutputStream write = IO.write(file); final JarArchiveOutputStream out = new JarArchiveOutputStream(write)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final byte[] bytes = entries[i + 1].getBytes(StandardCharsets.UTF_8);
+                final JarArchiveEntry entry = new JarArchiveEntry(entries[i]);
+                entry.setSize(bytes.length);
+                out.putArchiveEntry(entry);
+                out.write(bytes);
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+}
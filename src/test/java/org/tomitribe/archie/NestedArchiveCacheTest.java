@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.Zips;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class NestedArchiveCacheTest {
+
+    private final Resources resources = new Resources(InlineJarTest.class);
+
+    @Test
+    public void repeatsAreFree() throws Exception {
+        final byte[] primary = IO.readBytes(resources.file("primary.jar"));
+        final byte[] secondary = IO.readBytes(resources.file("secondary.jar"));
+
+        final byte[] ear = jar(
+                "one.war", jar("WEB-INF/lib/primary.jar", primary, "WEB-INF/lib/secondary.jar", secondary),
+                "two.war", jar("WEB-INF/lib/primary.jar", primary, "index.html", "two".getBytes()),
+                "lib/primary.jar", primary);
+
+        final AtomicInteger transformed = new AtomicInteger();
+        final Function<byte[], byte[]> enhancer = bytes -> {
+            transformed.incrementAndGet();
+            return bytes;
+        };
+
+        final NestedArchiveCache cache = new NestedArchiveCache(16 * 1024 * 1024);
+        final byte[] memoized = JarTransformation.builder()
+                .enhance(name -> name.endsWith(".war"), JarTransformation.builder()
+                        .enhance(name -> name.endsWith(".jar"), cache.memoize(jars(enhancer)))
+                        .build())
+                .enhance(name -> name.endsWith(".jar"), cache.memoize(jars(enhancer)))
+                .build()
+                .apply(ear);
+
+        // three classes in each jar; primary.jar and secondary.jar once each for the
+        // wars, primary.jar again for the ear's own lib as that is a different rule set
+        assertEquals(9, transformed.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+
+        transformed.set(0);
+        final byte[] plain = JarTransformation.builder()
+                .enhance(name -> name.endsWith(".war"), JarTransformation.builder()
+                        .enhance(name -> name.endsWith(".jar"), jars(enhancer))
+                        .build())
+                .enhance(name -> name.endsWith(".jar"), jars(enhancer))
+                .build()
+                .apply(ear);
+
+        assertEquals(12, transformed.get());
+        assertEquals(Zips.list(IO.read(plain)), Zips.list(IO.read(memoized)));
+    }
+
+    @Test
+    public void leastRecentlyUsedAreDropped() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final NestedArchiveCache cache = new NestedArchiveCache(250);
+        final Function<byte[], byte[]> function = cache.memoize(bytes -> {
+            calls.incrementAndGet();
+            return bytes.clone();
+        });
+
+        final byte[] a = fill('a', 100);
+        final byte[] b = fill('b', 100);
+        final byte[] c = fill('c', 100);
+
+        function.apply(a);
+        function.apply(b);
+        function.apply(a);
+        assertEquals(2, calls.get());
+
+        // b is the least recently used
+        function.apply(c);
+        assertEquals(200, cache.getSize());
+
+        function.apply(a);
+        assertEquals(3, calls.get());
+        function.apply(b);
+        assertEquals(4, calls.get());
+
+        // too big to ever be cached
+        assertArrayEquals(fill('d', 300), function.apply(fill('d', 300)));
+        assertEquals(200, cache.getSize());
+    }
+
+    private static Function<byte[], byte[]> jars(final Function<byte[], byte[]> enhancer) {
+        return JarTransformation.builder()
+                .enhance(name -> name.endsWith(".class"), enhancer)
+                .build();
+    }
+
+    private static byte[] fill(final char c, final int length) {
+        final byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    /**
+     * @param entries alternating entry names and contents
+     */
+    private static byte[] jar(final Object... entries) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final JarArchiveOutputStream out = new JarArchiveOutputStream(bytes)) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final byte[] content = (byte[]) entries[i + 1];
+                final JarArchiveEntry entry = new JarArchiveEntry((String) entries[i]);
+                entry.setSize(content.length);
+                out.putArchiveEntry(entry);
+                out.write(content);
+                out.closeArchiveEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
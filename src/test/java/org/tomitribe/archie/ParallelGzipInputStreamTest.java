@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelGzipInputStreamTest {
+
+    @Test
+    public void identical() throws Exception {
+        final File archive = indexed();
+
+        final byte[] expected = IO.readBytes(new GZIPInputStream(IO.read(archive)));
+
+        try (final InputStream in = ParallelGzipInputStream.open(archive, 4)) {
+            assertTrue(in instanceof ParallelGzipInputStream);
+            assertArrayEquals(expected, IO.readBytes(in));
+        }
+    }
+
+    @Test
+    public void crcMismatch() throws Exception {
+        final File archive = indexed();
+
+        // flip a bit in the stored CRC
+        try (final RandomAccessFile file = new RandomAccessFile(archive, "rw")) {
+            file.seek(file.length() - 8);
+            final int b = file.read();
+            file.seek(file.length() - 8);
+            file.write(b ^ 1);
+        }
+
+        try (final InputStream in = ParallelGzipInputStream.open(archive, 4)) {
+            IO.readBytes(in);
+            fail("IOException expected");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("CRC mismatch in after.tar.gz"));
+        }
+    }
+
+    @Test
+    public void staleIndex() throws Exception {
+        final File archive = indexed();
+        final File other = TarGzIndexTest.tarGz(TarGzIndexTest.contents());
+
+        // an index that belongs to a different archive
+        final TarGzIndex index = TarGzIndex.read(TarGzIndex.file(archive));
+        try (final InputStream in = new ParallelGzipInputStream(other, index, 4)) {
+            IO.readBytes(in);
+            fail("IOException expected");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void sequentialWithoutIndex() throws Exception {
+        final File archive = TarGzIndexTest.tarGz(TarGzIndexTest.contents());
+
+        try (final InputStream in = ParallelGzipInputStream.open(archive, 4)) {
+            assertTrue(in instanceof GzipCompressorInputStream);
+        }
+    }
+
+    @Test
+    public void tarGzTransformation() throws Exception {
+        final File archive = indexed();
+        final File parallel = new File(Files.tmpdir(), "parallel.tar.gz");
+        final File sequential = new File(Files.tmpdir(), "sequential.tar.gz");
+
+        TarGzTransformation.builder()
+                .prepend("file-3.txt", "Hello\n")
+                .parallelGunzip(4)
+                .build()
+                .transform(archive, parallel);
+
+        TarGzTransformation.builder()
+                .prepend("file-3.txt", "Hello\n")
+                .build()
+                .transform(archive, sequential);
+
+        assertEquals(TarGzs.list(sequential), TarGzs.list(parallel));
+        assertEquals(TarGzs.list(archive), TarGzs.list(archive, 4));
+    }
+
+    private static File indexed() throws IOException {
+        final File before = TarGzIndexTest.tarGz(TarGzIndexTest.contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().index().build().transform(before, after);
+        return after;
+    }
+}
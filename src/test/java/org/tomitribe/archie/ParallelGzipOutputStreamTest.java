@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelGzipOutputStreamTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        final byte[] data = data(3 * 1024 * 1024 + 17);
+
+        final byte[] compressed = compress(data, 4, 32 * 1024);
+
+        assertArrayEquals(data, IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+
+        // the dictionary carried across blocks keeps the ratio close to plain gzip
+        final byte[] plain = compress(data);
+        assertTrue(compressed.length + " vs " + plain.length, compressed.length < plain.length * 1.05);
+    }
+
+    @Test
+    public void smallWrites() throws Exception {
+        final byte[] data = data(200 * 1024);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new ParallelGzipOutputStream(bytes, 3, 32 * 1024)) {
+            for (final byte b : data) {
+                out.write(b);
+            }
+        }
+
+        assertArrayEquals(data, IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    /**
+     * The blocks run on the executor given, here the writing thread itself
+     */
+    @Test
+    public void executor() throws Exception {
+        final byte[] data = data(300 * 1024);
+        final AtomicInteger tasks = new AtomicInteger();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new ParallelGzipOutputStream(bytes, 2, 32 * 1024, task -> {
+            tasks.incrementAndGet();
+            task.run();
+        })) {
+            out.write(data);
+        }
+
+        assertEquals(10, tasks.get());
+        assertArrayEquals(data, IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        final byte[] compressed = compress(new byte[0], 2, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+        assertEquals(0, IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(compressed))).length);
+    }
+
+    @Test
+    public void gunzip() throws Exception {
+        final File gzip = new File("/usr/bin/gzip");
+        Assume.assumeTrue(gzip.exists());
+
+        final byte[] data = data(1024 * 1024);
+        final File file = new File(Files.tmpdir(), "data.gz");
+        IO.copy(compress(data, 4, 64 * 1024), file);
+
+        final Process process = new ProcessBuilder(gzip.getAbsolutePath(), "-dc", file.getAbsolutePath()).start();
+        final byte[] actual = IO.readBytes(process.getInputStream());
+        assertEquals(0, process.waitFor());
+        assertArrayEquals(data, actual);
+    }
+
+    @Test
+    public void tarGzTransformation() throws Exception {
+        final File before = new Resources().file("archive.tar.gz");
+        final File after = new File(Files.tmpdir(), "archive.tar.gz");
+
+        TarGzTransformation.builder()
+                .prepend("LICENSE", "Parallel\n")
+                .parallelGzip(4)
+                .build()
+                .transform(before, after);
+
+        final File expected = new File(Files.tmpdir(), "archive.tar.gz");
+        TarGzTransformation.builder()
+                .prepend("LICENSE", "Parallel\n")
+                .build()
+                .transform(before, expected);
+
+        assertEquals(TarGzs.list(expected), TarGzs.list(after));
+    }
+
+    static byte[] compress(final byte[] data, final int threads, final int blockSize) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new ParallelGzipOutputStream(bytes, threads, blockSize)) {
+            // uneven writes so blocks fill across write calls
+            for (int i = 0; i < data.length; i += 10_000) {
+                out.write(data, i, Math.min(10_000, data.length - i));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] compress(final byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Text-like data that compresses but isn't trivially repetitive
+     */
+    static byte[] data(final int size) {
+        final Random random = new Random(42);
+        final String[] words = {"archive", "entry", "tar", "gzip", "deflate", "block", "stream", "jar", "zip", "class"};
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size + 64);
+        while (out.size() < size) {
+            final String word = words[random.nextInt(words.length)] + random.nextInt(1000) + (random.nextInt(10) == 0 ? "\n" : " ");
+            out.write(word.getBytes(), 0, word.length());
+        }
+        final byte[] bytes = out.toByteArray();
+        final byte[] data = new byte[size];
+        System.arraycopy(bytes, 0, data, 0, size);
+        return data;
+    }
+}
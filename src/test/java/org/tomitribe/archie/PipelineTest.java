@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PipelineTest {
+
+    @Test
+    public void readAhead() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(1024 * 1024 + 13);
+
+        try (final InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 3, 4096)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(data[0] & 0xFF, in.read());
+            out.write(data[0]);
+            IO.copy(in, out);
+            assertArrayEquals(data, out.toByteArray());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void readAheadFailure() throws Exception {
+        final InputStream broken = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("broken");
+            }
+        };
+
+        try (final InputStream in = new ReadAheadInputStream(broken)) {
+            in.read();
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            assertEquals("broken", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(1024 * 1024 + 13);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new WriteBehindOutputStream(bytes, 3, 4096)) {
+            out.write(data[0]);
+            out.write(data, 1, 1000);
+            out.flush();
+            out.write(data, 1001, data.length - 1001);
+        }
+
+        assertArrayEquals(data, bytes.toByteArray());
+    }
+
+    @Test
+    public void writeBehindFailure() throws Exception {
+        final OutputStream broken = new OutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+
+        final byte[] data = ParallelGzipOutputStreamTest.data(64 * 1024);
+        try (final OutputStream out = new WriteBehindOutputStream(broken, 2, 1024)) {
+            for (int i = 0; i < 100; i++) {
+                out.write(data);
+            }
+            fail("Expected IOException");
+        } catch (final IOException e) {
+            assertEquals("broken", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void transform() throws Exception {
+        final Map<String, byte[]> contents = TarGzIndexTest.contents();
+        final File before = TarGzIndexTest.tarGz(contents);
+
+        final File plain = new File(Files.tmpdir(), "plain.tar.gz");
+        TarGzTransformation.builder()
+                .prepend("file-3.txt", "first\n")
+                .build()
+                .transform(before, plain);
+
+        final File pipelined = new File(Files.tmpdir(), "pipelined.tar.gz");
+        TarGzTransformation.builder()
+                .prepend("file-3.txt", "first\n")
+                .pipeline()
+                .build()
+                .transform(before, pipelined);
+
+        assertArrayEquals(IO.readBytes(plain), IO.readBytes(pipelined));
+    }
+
+    @Test
+    public void transformStreams() throws Exception {
+        final byte[] before = IO.readBytes(TarGzIndexTest.tarGz(TarGzIndexTest.contents()));
+
+        final TarGzTransformation pipelined = TarGzTransformation.builder()
+                .prepend("file-3.txt", "first\n")
+                .pipeline()
+                .parallelGzip(2)
+                .build();
+
+        final TarGzTransformation parallel = TarGzTransformation.builder()
+                .prepend("file-3.txt", "first\n")
+                .parallelGzip(2)
+                .build();
+
+        assertArrayEquals(parallel.apply(before), pipelined.apply(before));
+    }
+
+    @Test
+    public void index() throws Exception {
+        final Map<String, byte[]> contents = TarGzIndexTest.contents();
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder()
+                .pipeline()
+                .index()
+                .build()
+                .transform(TarGzIndexTest.tarGz(contents), after);
+
+        for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), TarGzs.read(after, entry.getKey()));
+        }
+    }
+}
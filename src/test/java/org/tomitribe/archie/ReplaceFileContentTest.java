@@ -0,0 +1,271 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.jar.JarArchiveEntry;
+import org.apache.commons.compress.archivers.jar.JarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.archivers.zip.ZipMethod;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+import org.tomitribe.util.Zips;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplaceFileContentTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void tarGz() throws Exception {
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = resources.file("archive.tar.gz");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .enhance("archive.jar", ReplaceFileContent.builder().file(content).build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        TarGzs.untargz(after, dir);
+
+        assertArrayEquals(IO.readBytes(content), IO.readBytes(new File(dir, "archive.jar")));
+        assertEquals("Apache License v2.0", IO.slurp(new File(dir, "LICENSE")).trim());
+    }
+
+    @Test
+    public void zip() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .enhance("LICENSE", ReplaceFileContent.builder().content("Public Domain").build())
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertEquals("Public Domain", IO.slurp(new File(dir, "LICENSE")));
+        assertEquals(537, new File(dir, "com/example/Blue.class").length());
+    }
+
+    @Test
+    public void jar() throws Exception {
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = resources.file("archive.jar");
+        final File after = new File(tmpdir, before.getName());
+
+        Transformations.builder()
+                .replace("META-INF/LICENSE", content)
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertArrayEquals(IO.readBytes(content), IO.readBytes(new File(dir, "META-INF/LICENSE")));
+        assertEquals(534, new File(dir, "com/example/Red.class").length());
+    }
+
+    /**
+     * Rules that need the content still see it, the replaced content
+     */
+    @Test
+    public void otherRules() throws Exception {
+        final Transformations transformations = Transformations.builder()
+                .replace("LICENSE", "Public Domain")
+                .prepend("LICENSE", "Notice: ")
+                .replace("README.txt", "Read me")
+                .build();
+
+        assertNull(transformations.replacement("LICENSE"));
+        assertNotNull(transformations.replacement("README.txt"));
+        assertNull(transformations.replacement("NOTICE"));
+
+        final File tmpdir = Files.tmpdir();
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        transformations.transformer(before).transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertEquals("Notice: Public Domain", IO.slurp(new File(dir, "LICENSE")));
+    }
+
+    /**
+     * Rules before a replacement are overwritten by it, as when they all
+     * ran in order on the content
+     */
+    @Test
+    public void order() throws Exception {
+        final Transformations transformations = Transformations.builder()
+                .prepend("LICENSE", "Notice: ")
+                .enhance("LICENSE", ReplaceFileContent.builder().content("Public Domain").build())
+                .build();
+
+        assertNull(transformations.replacement("LICENSE"));
+        assertEquals("Public Domain", new String(transformations.apply("LICENSE", "Apache".getBytes())));
+
+        final File tmpdir = Files.tmpdir();
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        transformations.transformer(before).transform(before, after);
+
+        final File dir = Files.tmpdir();
+        Zips.unzip(after, dir);
+
+        assertEquals("Public Domain", IO.slurp(new File(dir, "LICENSE")));
+    }
+
+    /**
+     * Stored entries, like nested jars or an EPUB mimetype, stay stored
+     */
+    @Test
+    public void stored() throws Exception {
+        final File tmpdir = Files.tmpdir();
+        final File content = content(tmpdir);
+
+        final File before = new File(tmpdir, "stored.jar");
+        try (final JarArchiveOutputStream out = new JarArchiveOutputStream(IO.write(before))) {
+            stored(out, "mimetype", "application/epub+zip".getBytes());
+            stored(out, "BOOT-INF/lib/nested.jar", "not really a jar".getBytes());
+            out.putArchiveEntry(new JarArchiveEntry("README.txt"));
+            out.write("Read me".getBytes());
+            out.closeArchiveEntry();
+        }
+
+        final File after = new File(Files.tmpdir(), "stored.jar");
+        Transformations.builder()
+                .replace("mimetype", "application/oebps-package+xml")
+                .replace(name -> name.endsWith(".jar"), content.toPath())
+                .replace("README.txt", "Read me again")
+                .build()
+                .transformer(before)
+                .transform(before, after);
+
+        try (final ZipFile zip = new ZipFile(after)) {
+            assertEquals(ZipMethod.STORED.getCode(), zip.getEntry("mimetype").getMethod());
+            assertEquals(ZipMethod.STORED.getCode(), zip.getEntry("BOOT-INF/lib/nested.jar").getMethod());
+            assertEquals(ZipMethod.DEFLATED.getCode(), zip.getEntry("README.txt").getMethod());
+
+            assertEquals("application/oebps-package+xml", IO.slurp(zip.getInputStream(zip.getEntry("mimetype"))));
+            assertArrayEquals(IO.readBytes(content), IO.readBytes(zip.getInputStream(zip.getEntry("BOOT-INF/lib/nested.jar"))));
+            assertEquals("Read me again", IO.slurp(zip.getInputStream(zip.getEntry("README.txt"))));
+        }
+    }
+
+    /**
+     * The old data of a deflated entry written with a data descriptor is
+     * skipped by its compressed size, never inflated.  The data below is
+     * not valid deflate data and fails as soon as it is read.
+     */
+    @Test
+    public void neverInflated() throws Exception {
+        for (final String name : new String[]{"corrupt.zip", "corrupt.jar"}) {
+            final File before = new File(Files.tmpdir(), name);
+            try (final ZipArchiveOutputStream out = new ZipArchiveOutputStream(IO.write(before))) {
+                out.putArchiveEntry(new ZipArchiveEntry("big.bin"));
+                out.write(new byte[1024 * 1024]);
+                out.closeArchiveEntry();
+                out.putArchiveEntry(new ZipArchiveEntry("README.txt"));
+                out.write("Read me".getBytes());
+                out.closeArchiveEntry();
+            }
+
+            try (final ZipFile zip = new ZipFile(before);
+                 final RandomAccessFile raf = new RandomAccessFile(before, "rw")) {
+                final ZipArchiveEntry big = zip.getEntry("big.bin");
+                assertTrue(big.getGeneralPurposeBit().usesDataDescriptor());
+
+                final byte[] garbage = new byte[(int) big.getCompressedSize()];
+                Arrays.fill(garbage, (byte) 0xFF);
+                raf.seek(big.getDataOffset());
+                raf.write(garbage);
+            }
+
+            final Transformer transformer = Transformations.builder()
+                    .replace("big.bin", "small")
+                    .build()
+                    .transformer(before);
+
+            try {
+                transformer.transform(IO.read(before), new ByteArrayOutputStream());
+                fail("the stream path must inflate the old data");
+            } catch (final IOException e) {
+                // expected
+            }
+
+            final File after = new File(Files.tmpdir(), name);
+            transformer.transform(before, after);
+
+            try (final ZipFile zip = new ZipFile(after)) {
+                assertEquals("small", IO.slurp(zip.getInputStream(zip.getEntry("big.bin"))));
+                assertEquals("Read me", IO.slurp(zip.getInputStream(zip.getEntry("README.txt"))));
+            }
+        }
+    }
+
+    private static void stored(final JarArchiveOutputStream out, final String name, final byte[] bytes) throws Exception {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        final JarArchiveEntry entry = new JarArchiveEntry(name);
+        entry.setMethod(ZipMethod.STORED.getCode());
+        entry.setSize(bytes.length);
+        entry.setCrc(crc.getValue());
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static File content(final File dir) throws Exception {
+        final byte[] bytes = new byte[2 * 1024 * 1024];
+        new Random(11).nextBytes(bytes);
+
+        final File file = new File(dir, "replacement.bin");
+        IO.copy(bytes, file);
+        return file;
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Test;
+import org.tomitribe.util.IO;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fixtures are primary.jar signed with jarsigner using an RSA and an
+ * EC key, and the RSA signed jar with its signature files removed, which
+ * leaves a manifest with digests like the ECJ jar has
+ */
+public class SignedJarsTest {
+
+    private final Resources resources = new Resources(SignedJarsTest.class);
+
+    @Test
+    public void signed() throws Exception {
+        assertTrue(SignedJars.isSigned(IO.readBytes(resources.file("signed-rsa.jar"))));
+        assertTrue(SignedJars.isSigned(IO.readBytes(resources.file("signed-ec.jar"))));
+    }
+
+    @Test
+    public void unsigned() throws Exception {
+        assertFalse(SignedJars.isSigned(IO.readBytes(resources.file("digests-only.jar"))));
+        assertFalse(SignedJars.isSigned(IO.readBytes(new Resources(InlineJarTest.class).file("primary.jar"))));
+        assertFalse(SignedJars.isSigned("not a jar".getBytes()));
+    }
+
+    @Test
+    public void noCentralDirectory() throws Exception {
+        final byte[] jar = IO.readBytes(resources.file("signed-rsa.jar"));
+        final byte[] truncated = Arrays.copyOf(jar, jar.length - 30);
+
+        assertTrue(SignedJars.isSigned(truncated));
+    }
+
+    @Test
+    public void signedJarsAreNotTransformed() throws Exception {
+        final Transformations transformations = Transformations.builder()
+                .enhance(name -> name.endsWith(".jar"), bytes -> "changed".getBytes())
+                .build();
+
+        final byte[] signed = IO.readBytes(resources.file("signed-rsa.jar"));
+        assertArrayEquals(signed, transformations.apply("lib/signed.jar", signed));
+        assertArrayEquals(signed, transformations.apply("lib/copy.jar", signed));
+
+        final byte[] unsigned = IO.readBytes(resources.file("digests-only.jar"));
+        assertArrayEquals("changed".getBytes(), transformations.apply("lib/unsigned.jar", unsigned));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Random;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * keystore.p12 holds an RSA key under "rsa" and an EC key under "ec",
+ * both with the password "changeit"
+ */
+public class SignerTest {
+
+    private static final String LICENSE = "META-INF/LICENSE";
+
+    private final Resources resources = new Resources(SignerTest.class);
+
+    @Test
+    public void sign() throws Exception {
+        final File after = new File(Files.tmpdir(), "signed.jar");
+        transform(new Resources(InlineJarTest.class).file("primary.jar"), after, JarTransformation.builder()
+                .prepend(LICENSE, "Signed\n")
+                .sign(signer("rsa"))
+                .build());
+
+        assertSigned(after, "META-INF/RSA.SF", "META-INF/RSA.RSA");
+        assertTrue(read(after, LICENSE).startsWith("Signed\n"));
+    }
+
+    @Test
+    public void resign() throws Exception {
+        final File before = new Resources(SignedJarsTest.class).file("signed-rsa.jar");
+        final File after = new File(Files.tmpdir(), "resigned.jar");
+        transform(before, after, JarTransformation.builder()
+                .prepend(LICENSE, "Signed\n")
+                .sign(signer("ec"))
+                .build());
+
+        assertSigned(after, "META-INF/EC.SF", "META-INF/EC.EC");
+
+        try (final JarFile jar = new JarFile(after)) {
+            assertNull(jar.getEntry("META-INF/RSA.SF"));
+            assertNull(jar.getEntry("META-INF/RSA.RSA"));
+            assertEquals("1.0", jar.getManifest().getMainAttributes().getValue("Manifest-Version"));
+        }
+    }
+
+    @Test
+    public void nestedSignedJars() throws Exception {
+        final byte[] signed = IO.readBytes(new Resources(SignedJarsTest.class).file("signed-rsa.jar"));
+
+        final byte[] untouched = Transformations.builder()
+                .enhance(name -> name.endsWith(".jar"), JarTransformation.builder()
+                        .prepend(LICENSE, "Signed\n")
+                        .build())
+                .build()
+                .apply("lib/signed.jar", signed);
+
+        assertArrayEquals(signed, untouched);
+
+        final byte[] resigned = Transformations.builder()
+                .enhance(name -> name.endsWith(".jar"), JarTransformation.builder()
+                        .prepend(LICENSE, "Signed\n")
+                        .sign(signer("ec"))
+                        .build())
+                .build()
+                .apply("lib/signed.jar", signed);
+
+        final File jar = new File(Files.tmpdir(), "nested.jar");
+        IO.copy(resigned, jar);
+        assertSigned(jar, "META-INF/EC.SF", "META-INF/EC.EC");
+        assertTrue(read(jar, LICENSE).startsWith("Signed\n"));
+    }
+
+    /**
+     * Wrapping the signing transformation does not hide that it signs
+     */
+    @Test
+    public void memoizedSignedJars() throws Exception {
+        final byte[] signed = IO.readBytes(new Resources(SignedJarsTest.class).file("signed-rsa.jar"));
+
+        final NestedArchiveCache cache = new NestedArchiveCache(1024 * 1024);
+        final byte[] resigned = Transformations.builder()
+                .enhance(name -> name.endsWith(".jar"), cache.memoize(JarTransformation.builder()
+                        .prepend(LICENSE, "Signed\n")
+                        .sign(signer("ec"))
+                        .build()))
+                .build()
+                .apply("lib/signed.jar", signed);
+
+        final File jar = new File(Files.tmpdir(), "nested.jar");
+        IO.copy(resigned, jar);
+        assertSigned(jar, "META-INF/EC.SF", "META-INF/EC.EC");
+        assertTrue(read(jar, LICENSE).startsWith("Signed\n"));
+    }
+
+    /**
+     * Inserted jars and bundles are copied as raw compressed entries and
+     * must still be digested
+     */
+    @Test
+    public void rawEntries() throws Exception {
+        final Resources inline = new Resources(InlineJarTest.class);
+
+        // random bytes do not deflate, so they are inserted stored
+        final File docs = Files.tmpdir();
+        final byte[] random = new byte[4096];
+        new Random(3).nextBytes(random);
+        IO.copy(random, new File(docs, "random.bin"));
+
+        final File after = new File(Files.tmpdir(), "signed.jar");
+        transform(inline.file("primary.jar"), after, JarTransformation.builder()
+                .after(new InlineJar(inline.file("secondary.jar")))
+                .after(InsertBundle.builder().add("config/app.properties", "color=red\n").build())
+                .after(InsertDirectory.builder().directory(docs).prefix("docs").build())
+                .sign(signer("rsa"))
+                .build());
+
+        assertSigned(after, "META-INF/RSA.SF", "META-INF/RSA.RSA");
+        assertEquals("color=red\n", read(after, "config/app.properties"));
+
+        try (final JarFile jar = new JarFile(after, true)) {
+            assertNotNull(jar.getEntry("com/example/Magenta.class"));
+            assertNotNull(jar.getManifest().getAttributes("com/example/Magenta.class"));
+            assertNotNull(jar.getManifest().getAttributes("docs/random.bin"));
+        }
+    }
+
+    @Test
+    public void tamperingIsDetected() throws Exception {
+        final File signed = new File(Files.tmpdir(), "signed.jar");
+        transform(new Resources(InlineJarTest.class).file("primary.jar"), signed, JarTransformation.builder()
+                .sign(signer("rsa"))
+                .build());
+
+        final File tampered = new File(Files.tmpdir(), "tampered.jar");
+        transform(signed, tampered, JarTransformation.builder()
+                .prepend(LICENSE, "Tampered\n")
+                .build());
+
+        try {
+            read(tampered, LICENSE);
+            fail("Expected SecurityException");
+        } catch (final SecurityException e) {
+            // pass
+        }
+    }
+
+    @Test
+    public void jarsigner() throws Exception {
+        final File jarsigner = new File(System.getProperty("java.home"), "bin/jarsigner");
+        Assume.assumeTrue(jarsigner.exists());
+
+        final File after = new File(Files.tmpdir(), "signed.jar");
+        transform(new Resources(InlineJarTest.class).file("primary.jar"), after, JarTransformation.builder()
+                .prepend(LICENSE, "Signed\n")
+                .sign(signer("rsa"))
+                .build());
+
+        final Process process = new ProcessBuilder(jarsigner.getAbsolutePath(), "-verify", after.getAbsolutePath())
+                .redirectErrorStream(true)
+                .start();
+        final String output = IO.slurp(process.getInputStream());
+
+        assertEquals(output, 0, process.waitFor());
+        assertTrue(output, output.contains("jar verified."));
+    }
+
+    private Signer signer(final String alias) {
+        return Signer.of(resources.file("keystore.p12"), "changeit".toCharArray(), alias, "changeit".toCharArray());
+    }
+
+    private static void transform(final File before, final File after, final JarTransformation transformation) throws Exception {
+        transformation.transform(before, after);
+    }
+
+    private static String read(final File file, final String name) throws Exception {
+        try (final JarFile jar = new JarFile(file)) {
+            return IO.slurp(jar.getInputStream(jar.getEntry(name)));
+        }
+    }
+
+    /**
+     * Reads every entry with verification on and checks all files are covered
+     */
+    private static void assertSigned(final File file, final String signatureFile, final String signatureBlock) throws Exception {
+        try (final JarFile jar = new JarFile(file, true)) {
+            assertNotNull(jar.getEntry(signatureFile));
+            assertNotNull(jar.getEntry(signatureBlock));
+
+            int files = 0;
+            for (final JarEntry entry : Collections.list(jar.entries())) {
+                try (final InputStream in = jar.getInputStream(entry)) {
+                    IO.copy(in, OutputStream.nullOutputStream());
+                }
+
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/MANIFEST") || entry.getName().equals(signatureFile) || entry.getName().equals(signatureBlock)) {
+                    continue;
+                }
+
+                assertNotNull(entry.getName(), entry.getCodeSigners());
+                files++;
+            }
+            assertTrue(files > 0);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.junit.Assume;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fixtures were made with GNU tar from a 5 MB file holding "hello"
+ * at 1 MB and "world" at 3 MB, in the old GNU, PAX 0.1 and PAX 1.0 sparse
+ * formats, followed by a small after.txt
+ */
+public class SparseTarTest {
+
+    private static final int REAL_SIZE = 5 * 1024 * 1024;
+
+    private final Resources resources = new Resources(SparseTarTest.class);
+
+    @Test
+    public void gnu() throws Exception {
+        assertTarGz("gnu.tar.gz");
+        assertTar("gnu.tar.gz");
+    }
+
+    @Test
+    public void pax01() throws Exception {
+        assertTarGz("pax01.tar.gz");
+        assertTar("pax01.tar.gz");
+    }
+
+    @Test
+    public void pax1() throws Exception {
+        assertTarGz("pax1.tar.gz");
+        assertTar("pax1.tar.gz");
+    }
+
+    @Test
+    public void index() throws Exception {
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        TarGzTransformation.builder()
+                .index()
+                .build()
+                .transform(resources.file("gnu.tar.gz"), after);
+
+        assertSparse(TarGzs.read(after, "big"));
+        assertEquals("after\n", new String(TarGzs.read(after, "after.txt")));
+    }
+
+    @Test
+    public void gnuTar() throws Exception {
+        final File tar = new File("/usr/bin/tar");
+        Assume.assumeTrue(tar.exists());
+
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        TarGzTransformation.builder().build().transform(resources.file("pax01.tar.gz"), after);
+
+        final File dir = Files.tmpdir();
+        final Process process = new ProcessBuilder(tar.getAbsolutePath(), "-xzf", after.getAbsolutePath())
+                .directory(dir)
+                .start();
+        assertEquals(0, process.waitFor());
+
+        assertSparse(IO.readBytes(new File(dir, "big")));
+        assertEquals("after\n", IO.slurp(new File(dir, "after.txt")));
+    }
+
+    private void assertTarGz(final String name) throws IOException {
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+        TarGzTransformation.builder()
+                .prepend("after.txt", "before\n")
+                .build()
+                .transform(resources.file(name), after);
+
+        try (final InputStream in = new GzipCompressorInputStream(IO.read(after))) {
+            assertSparse(in);
+        }
+    }
+
+    private void assertTar(final String name) throws IOException {
+        final File before = new File(Files.tmpdir(), "before.tar");
+        try (final InputStream in = new GzipCompressorInputStream(resources.read(name))) {
+            IO.copy(in, before);
+        }
+
+        final File after = new File(Files.tmpdir(), "after.tar");
+        TarTransformation.builder()
+                .prepend("after.txt", "before\n")
+                .build()
+                .transform(before, after);
+
+        // the holes are not written out
+        assertTrue(after.length() < 64 * 1024);
+
+        try (final InputStream in = IO.read(after)) {
+            assertSparse(in);
+        }
+    }
+
+    private static void assertSparse(final InputStream tar) throws IOException {
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(tar)) {
+            final TarArchiveEntry big = in.getNextTarEntry();
+            assertEquals("big", big.getName());
+            assertTrue(big.isPaxGNU1XSparse());
+            assertEquals(REAL_SIZE, big.getRealSize());
+            assertTrue(big.getSize() < 16 * 1024);
+            assertSparse(IO.readBytes(in));
+
+            final TarArchiveEntry after = in.getNextTarEntry();
+            assertEquals("after.txt", after.getName());
+            assertEquals("before\nafter\n", new String(IO.readBytes(in)));
+
+            assertNull(in.getNextTarEntry());
+        }
+    }
+
+    private static void assertSparse(final byte[] bytes) {
+        assertEquals(REAL_SIZE, bytes.length);
+        assertEquals("hello", new String(bytes, 1024 * 1024, 5));
+        assertEquals("world", new String(bytes, 3 * 1024 * 1024, 5));
+
+        int nonZero = 0;
+        for (final byte b : bytes) {
+            if (b != 0) nonZero++;
+        }
+        assertEquals(10, nonZero);
+    }
+}
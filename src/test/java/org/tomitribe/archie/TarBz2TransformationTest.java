@@ -0,0 +1,235 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Assume;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+import org.tomitribe.util.Longs;
+import org.tomitribe.util.hash.XxHash64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TarBz2TransformationTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void parallelCompression() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(750 * 1024);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new ParallelBZip2OutputStream(bytes, 3, 1)) {
+            out.write(data);
+        }
+
+        assertArrayEquals(data, IO.readBytes(new BZip2CompressorInputStream(new ByteArrayInputStream(bytes.toByteArray()), true)));
+        assertArrayEquals(data, IO.readBytes(new ParallelBZip2InputStream(new ByteArrayInputStream(bytes.toByteArray()), 3)));
+    }
+
+    /**
+     * Runs of four grow by a quarter in the first run-length encoding, a
+     * chunk of raw block size would overflow into a second block
+     */
+    @Test
+    public void oneBlockPerChunk() throws Exception {
+        final byte[] data = new byte[600 * 1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 5 == 4 ? 'b' + i / 5 % 7 : 'a');
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new ParallelBZip2OutputStream(bytes, 3, 1)) {
+            out.write(data);
+        }
+
+        final byte[] compressed = bytes.toByteArray();
+        assertTrue(streams(compressed) > 1);
+        assertEquals(streams(compressed), blocks(compressed));
+        assertArrayEquals(data, IO.readBytes(new BZip2CompressorInputStream(new ByteArrayInputStream(compressed), true)));
+    }
+
+    /**
+     * One stream of many blocks, the blocks start at arbitrary bit offsets
+     */
+    @Test
+    public void parallelDecompressionOfSingleStream() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(750 * 1024);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final OutputStream out = new BZip2CompressorOutputStream(bytes, 1)) {
+            out.write(data);
+        }
+
+        try (final InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bytes.toByteArray()), 3)) {
+            assertArrayEquals(data, IO.readBytes(in));
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ParallelBZip2OutputStream(bytes, 2).close();
+
+        assertEquals(0, IO.readBytes(new BZip2CompressorInputStream(new ByteArrayInputStream(bytes.toByteArray()), true)).length);
+        assertEquals(0, IO.readBytes(new ParallelBZip2InputStream(new ByteArrayInputStream(bytes.toByteArray()), 2)).length);
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(300 * 1024);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final OutputStream bzip2 = new BZip2CompressorOutputStream(out, 1)) {
+            bzip2.write(data);
+        }
+
+        final byte[] bytes = out.toByteArray();
+        bytes[bytes.length / 2] ^= 0x10;
+
+        try (final InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bytes), 2)) {
+            IO.readBytes(in);
+            fail("IOException expected");
+        } catch (final IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Found by the scanner thread, reported to the reader
+     */
+    @Test
+    public void truncated() throws Exception {
+        final byte[] data = ParallelGzipOutputStreamTest.data(300 * 1024);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final OutputStream bzip2 = new BZip2CompressorOutputStream(out, 1)) {
+            bzip2.write(data);
+        }
+
+        final byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() / 2);
+
+        try (final InputStream in = new ParallelBZip2InputStream(new ByteArrayInputStream(bytes), 2)) {
+            IO.readBytes(in);
+            fail("EOFException expected");
+        } catch (final EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void bunzip2() throws Exception {
+        final File bzip2 = new File("/usr/bin/bzip2");
+        Assume.assumeTrue(bzip2.exists());
+
+        final byte[] data = ParallelGzipOutputStreamTest.data(500 * 1024);
+        final File file = new File(Files.tmpdir(), "data.bz2");
+        try (final OutputStream out = new ParallelBZip2OutputStream(IO.write(file), 4, 1)) {
+            out.write(data);
+        }
+
+        final Process process = new ProcessBuilder(bzip2.getAbsolutePath(), "-dc", file.getAbsolutePath()).start();
+        final byte[] actual = IO.readBytes(process.getInputStream());
+        assertEquals(0, process.waitFor());
+        assertArrayEquals(data, actual);
+    }
+
+    @Test
+    public void transform() throws Exception {
+        final File before = new File(Files.tmpdir(), "archive.tar.bz2");
+        new ConvertTransformation(ArchiveFormat.TAR_GZ, ArchiveFormat.TAR_BZ2, Transformations.builder().build())
+                .transform(resources.file("archive.tar.gz"), before);
+
+        final Transformer transformer = Transformations.builder()
+                .prepend("LICENSE", "Copyright Acme Corporation. 2025\n\n")
+                .build()
+                .transformer(before);
+        assertTrue(transformer instanceof TarBz2Transformation);
+
+        final File sequential = new File(Files.tmpdir(), "archive.tar.bz2");
+        transformer.transform(before, sequential);
+
+        final File parallel = new File(Files.tmpdir(), "archive.tar.bz2");
+        TarBz2Transformation.builder()
+                .prepend("LICENSE", "Copyright Acme Corporation. 2025\n\n")
+                .parallelBzip2(4)
+                .build()
+                .transform(before, parallel);
+
+        final String expected = list(sequential);
+        assertTrue(expected, expected.contains("LICENSE  "));
+        assertTrue(!expected.equals(list(before)));
+        assertEquals(expected, list(parallel));
+    }
+
+    /**
+     * Block magic numbers at any bit offset
+     */
+    private static int blocks(final byte[] bytes) {
+        long register = 0;
+        int count = 0;
+        for (int i = 0; i < bytes.length * 8; i++) {
+            register = (register << 1 | (bytes[i >>> 3] >>> (7 - (i & 7))) & 1) & 0xffffffffffffL;
+            if (register == 0x314159265359L) count++;
+        }
+        return count;
+    }
+
+    /**
+     * Stream headers, which are followed by the first block on a byte boundary
+     */
+    private static int streams(final byte[] bytes) {
+        final byte[] header = {'B', 'Z', 'h', '1', 0x31, 0x41, 0x59, 0x26, 0x53, 0x59};
+
+        int count = 0;
+        for (int i = 0; i + header.length <= bytes.length; i++) {
+            if (Arrays.equals(bytes, i, i + header.length, header, 0, header.length)) count++;
+        }
+        return count;
+    }
+
+    private static String list(final File file) throws IOException {
+        return list(ArchiveFormat.TAR_BZ2, file);
+    }
+
+    static String list(final ArchiveFormat format, final File file) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        try (final ArchiveInputStream in = format.read(IO.read(file))) {
+            ArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                sb.append(entry.getName());
+                if (!entry.isDirectory()) sb.append("  ").append(Longs.toHex(XxHash64.hash(IO.read(IO.readBytes(in)))));
+                sb.append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TarGzIndexTest {
+
+    private static final String LONG_NAME = "very/deeply/nested/directory/structure/that/goes/on/and/on/and/on/" +
+            "well/past/the/hundred/character/limit/of/the/ustar/header.txt";
+
+    @Test
+    public void readEntries() throws Exception {
+        final Map<String, byte[]> contents = contents();
+        final File before = tarGz(contents);
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder()
+                .prepend("file-0.txt", "prepended\n")
+                .index()
+                .build()
+                .transform(before, after);
+
+        final File idx = TarGzIndex.file(after);
+        assertTrue(idx.exists());
+
+        final TarGzIndex index = TarGzIndex.read(idx);
+        assertTrue(index.getCheckpoints().size() > 4);
+        assertEquals(contents.size(), index.getEntries().size());
+
+        for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            final byte[] expected = entry.getKey().equals("file-0.txt")
+                    ? concat("prepended\n".getBytes(), entry.getValue())
+                    : entry.getValue();
+
+            assertArrayEquals(entry.getKey(), expected, TarGzs.read(after, entry.getKey()));
+        }
+
+        // the last entry is reached from a checkpoint well into the archive
+        final TarGzIndex.Entry last = index.getEntry("file-39.txt");
+        assertTrue(index.checkpoint(last.getHeaderOffset()).getUncompressedOffset() > 0);
+        assertEquals(last.getHeaderOffset() + 512, last.getDataOffset());
+
+        // pax headers for long names are part of the entry
+        final TarGzIndex.Entry longName = index.getEntry(LONG_NAME);
+        assertNotNull(longName);
+        assertTrue(longName.getDataOffset() - longName.getHeaderOffset() > 512);
+
+        // the archive is still an ordinary tar.gz
+        assertEquals(TarGzs.list(before).replaceAll("file-0.txt  [0-9a-f]+", ""),
+                TarGzs.list(after).replaceAll("file-0.txt  [0-9a-f]+", ""));
+    }
+
+    @Test
+    public void streams() throws Exception {
+        final Map<String, byte[]> contents = contents();
+        final File before = tarGz(contents);
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        final ByteArrayOutputStream index = new ByteArrayOutputStream();
+        try (final OutputStream out = IO.write(after)) {
+            TarGzTransformation.builder()
+                    .parallelGzip(3)
+                    .build()
+                    .transform(IO.read(before), out, index);
+        }
+
+        final TarGzIndex read = TarGzIndex.read(new ByteArrayInputStream(index.toByteArray()));
+        assertArrayEquals(contents.get("file-27.txt"), TarGzs.read(after, read, "file-27.txt"));
+        assertArrayEquals(contents.get(LONG_NAME), TarGzs.read(after, read, LONG_NAME));
+    }
+
+    @Test
+    public void missingEntry() throws Exception {
+        final File before = tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().index().build().transform(before, after);
+
+        try {
+            TarGzs.read(after, "nope.txt");
+            fail("FileNotFoundException expected");
+        } catch (final FileNotFoundException e) {
+            assertEquals("No entry 'nope.txt' in after.tar.gz", e.getMessage());
+        }
+    }
+
+    /**
+     * A failed transform leaves no index, neither a partial one nor the one
+     * of the archive it overwrote
+     */
+    @Test
+    public void noIndexOnFailure() throws Exception {
+        final File before = tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().index().build().transform(before, after);
+        assertTrue(TarGzIndex.file(after).exists());
+
+        try {
+            TarGzTransformation.builder()
+                    .enhance("file-30.txt", bytes -> {
+                        throw new IllegalStateException("failed");
+                    })
+                    .index()
+                    .build()
+                    .transform(before, after);
+            fail("IllegalStateException expected");
+        } catch (final IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+
+        assertTrue(!TarGzIndex.file(after).exists());
+        assertEquals(0, after.getParentFile().listFiles((dir, name) -> name.endsWith(".tmp")).length);
+    }
+
+    @Test
+    public void noIndexByDefault() throws Exception {
+        final File before = tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().build().transform(before, after);
+
+        assertTrue(after.exists());
+        assertTrue(!TarGzIndex.file(after).exists());
+    }
+
+    /**
+     * Overwriting an indexed archive without an index must not leave the
+     * old index pointing into the new archive
+     */
+    @Test
+    public void staleIndexDeleted() throws Exception {
+        final File before = tarGz(contents());
+        final File after = new File(Files.tmpdir(), "after.tar.gz");
+
+        TarGzTransformation.builder().index().build().transform(before, after);
+        assertTrue(TarGzIndex.file(after).exists());
+
+        TarGzTransformation.builder().build().transform(before, after);
+
+        assertTrue(after.exists());
+        assertTrue(!TarGzIndex.file(after).exists());
+    }
+
+    private static final Map<String, byte[]> CONTENTS = new LinkedHashMap<>();
+
+    static {
+        final byte[] data = ParallelGzipOutputStreamTest.data(240 * 1024);
+        for (int i = 0; i < 40; i++) {
+            final byte[] bytes = new byte[200 * 1024 + i];
+            System.arraycopy(data, i * 1000, bytes, 0, bytes.length);
+            CONTENTS.put("file-" + i + ".txt", bytes);
+            if (i == 20) CONTENTS.put(LONG_NAME, "long name\n".getBytes());
+        }
+    }
+
+    static Map<String, byte[]> contents() {
+        return CONTENTS;
+    }
+
+    static File tarGz(final Map<String, byte[]> contents) throws IOException {
+        final File file = new File(Files.tmpdir(), "before.tar.gz");
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(IO.write(file)))) {
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (final Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                final TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getKey());
+                tarEntry.setSize(entry.getValue().length);
+                out.putArchiveEntry(tarEntry);
+                out.write(entry.getValue());
+                out.closeArchiveEntry();
+            }
+        }
+        return file;
+    }
+
+    private static byte[] concat(final byte[] a, final byte[] b) {
+        final byte[] bytes = new byte[a.length + b.length];
+        System.arraycopy(a, 0, bytes, 0, a.length);
+        System.arraycopy(b, 0, bytes, a.length, b.length);
+        return bytes;
+    }
+}
@@ -15,12 +15,15 @@ package org.tomitribe.archie;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
 import org.junit.Assert;
 import org.junit.Test;
 import org.tomitribe.util.IO;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
@@ -48,4 +51,43 @@ public class TarGzTransformationTest {
         Assert.assertNotNull(links.get("sample/hello.txt"));
         Assert.assertEquals("hello.txt.1", links.get("sample/hello.txt"));
     }
-}
\ No newline at end of file
+
+    /**
+     * Entries no rule applies to are streamed through with their original header
+     */
+    @Test
+    public void untouchedEntriesKeepTheirHeader() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(bytes))) {
+            for (final String name : new String[]{"untouched.txt", "changed.txt"}) {
+                final byte[] content = (name + "\n").getBytes();
+                final TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(content.length);
+                entry.setUserId(1001);
+                entry.setUserName("duke");
+                out.putArchiveEntry(entry);
+                out.write(content);
+                out.closeArchiveEntry();
+            }
+        }
+
+        final byte[] converted = TarGzTransformation.builder()
+                .prepend("changed.txt", "prepended\n")
+                .build()
+                .apply(bytes.toByteArray());
+
+        try (final TarArchiveInputStream in = new TarArchiveInputStream(new GzipCompressorInputStream(new ByteArrayInputStream(converted)))) {
+            final TarArchiveEntry untouched = in.getNextTarEntry();
+            Assert.assertEquals("untouched.txt", untouched.getName());
+            Assert.assertEquals(1001, untouched.getLongUserId());
+            Assert.assertEquals("duke", untouched.getUserName());
+            Assert.assertEquals("untouched.txt\n", new String(IO.readBytes(in)));
+
+            final TarArchiveEntry changed = in.getNextTarEntry();
+            Assert.assertEquals("changed.txt", changed.getName());
+            Assert.assertEquals("prepended\nchanged.txt\n", new String(IO.readBytes(in)));
+
+            Assert.assertNull(in.getNextTarEntry());
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Test;
+import org.tomitribe.archie.util.TarGzs;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TarLz4TransformationTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void transform() throws Exception {
+        final File archive = resources.file("archive.tar.gz");
+
+        final File before = new File(Files.tmpdir(), "archive.tar.lz4");
+        new ConvertTransformation(ArchiveFormat.TAR_GZ, ArchiveFormat.TAR_LZ4, Transformations.builder().build())
+                .transform(archive, before);
+
+        final Transformer transformer = Transformations.builder()
+                .prepend("LICENSE", "Copyright Acme Corporation. 2025\n\n")
+                .build()
+                .transformer(before);
+        assertTrue(transformer instanceof TarLz4Transformation);
+
+        final File after = new File(Files.tmpdir(), "archive.tar.lz4");
+        transformer.transform(before, after);
+
+        // same result as the tar.gz transformation, converted back
+        final File expected = new File(Files.tmpdir(), "archive.tar.gz");
+        TarGzTransformation.builder()
+                .prepend("LICENSE", "Copyright Acme Corporation. 2025\n\n")
+                .build()
+                .transform(archive, expected);
+
+        final File converted = new File(Files.tmpdir(), "archive.tar.gz");
+        new ConvertTransformation(ArchiveFormat.TAR_LZ4, ArchiveFormat.TAR_GZ, Transformations.builder().build())
+                .transform(after, converted);
+
+        assertEquals(TarGzs.list(expected), TarGzs.list(converted));
+    }
+
+    @Test
+    public void apply() throws Exception {
+        final File before = new File(Files.tmpdir(), "archive.tar.lz4");
+        new ConvertTransformation(ArchiveFormat.TAR_GZ, ArchiveFormat.TAR_LZ4, Transformations.builder().build())
+                .transform(resources.file("archive.tar.gz"), before);
+
+        final byte[] bytes = TarLz4Transformation.builder()
+                .prepend("LICENSE", "Hello\n")
+                .build()
+                .apply(IO.readBytes(before));
+
+        final File after = new File(Files.tmpdir(), "archive.tar.lz4");
+        IO.copy(bytes, after);
+
+        final String listing = TarBz2TransformationTest.list(ArchiveFormat.TAR_LZ4, after);
+        assertTrue(listing, listing.contains("LICENSE  "));
+        assertTrue(!listing.equals(TarBz2TransformationTest.list(ArchiveFormat.TAR_LZ4, before)));
+    }
+}
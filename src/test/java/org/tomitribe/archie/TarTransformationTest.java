@@ -0,0 +1,170 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TarTransformationTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void fileAndStreamAgree() throws Exception {
+        final File before = tar();
+
+        final Transformer transformer = Transformations.builder()
+                .prepend("LICENSE", "Copyright Acme Corporation. 2025\n\n")
+                .before(InsertEntry.builder().name("README.txt").content("Hello, World!").build())
+                .build()
+                .transformer(before);
+        assertTrue(transformer instanceof TarTransformation);
+
+        final File file = new File(Files.tmpdir(), "archive.tar");
+        transformer.transform(before, file);
+
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try (final InputStream in = IO.read(before)) {
+            transformer.transform(in, stream);
+        }
+        final File streamed = new File(Files.tmpdir(), "archive.tar");
+        IO.copy(stream.toByteArray(), streamed);
+
+        final String listing = TarBz2TransformationTest.list(ArchiveFormat.TAR, file);
+        assertEquals(listing, TarBz2TransformationTest.list(ArchiveFormat.TAR, streamed));
+        assertTrue(listing, listing.startsWith("README.txt  "));
+        assertTrue(!listing.equals(TarBz2TransformationTest.list(ArchiveFormat.TAR, before)));
+    }
+
+    /**
+     * Untouched entries keep their original headers, including
+     * pax headers for long names and owner details
+     */
+    @Test
+    public void untouchedEntriesAreCopied() throws Exception {
+        final String longName = "a/very/long/path/that/needs/a/pax/header/because/it/is/well/beyond/" +
+                "the/one/hundred/characters/ustar/allows/Untouched.txt";
+
+        final File before = new File(Files.tmpdir(), "before.tar");
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(IO.write(before))) {
+            out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            add(out, longName, "untouched\n", 1234);
+            add(out, "Changed.txt", "changed\n", 1234);
+            add(out, "Also-untouched.txt", "also untouched\n", 1234);
+        }
+
+        final File after = new File(Files.tmpdir(), "after.tar");
+        TarTransformation.builder()
+                .prepend("Changed.txt", "prepended\n")
+                .build()
+                .transform(before, after);
+
+        try (final TarFile tar = new TarFile(after)) {
+            assertEquals(3, tar.getEntries().size());
+
+            final TarArchiveEntry untouched = tar.getEntries().get(0);
+            assertEquals(longName, untouched.getName());
+            assertEquals(1234, untouched.getLongUserId());
+            assertEquals("untouched\n", content(tar, untouched));
+
+            final TarArchiveEntry changed = tar.getEntries().get(1);
+            assertEquals("Changed.txt", changed.getName());
+            assertEquals("prepended\nchanged\n", content(tar, changed));
+
+            final TarArchiveEntry also = tar.getEntries().get(2);
+            assertEquals(1234, also.getLongUserId());
+            assertEquals("also untouched\n", content(tar, also));
+        }
+    }
+
+    /**
+     * A global pax header applies to every entry after it, the untouched
+     * ones still see it when the entry it precedes is rewritten
+     */
+    @Test
+    public void globalPaxHeaders() throws Exception {
+        final File before = new File(Files.tmpdir(), "before.tar");
+        try (final OutputStream file = IO.write(before);
+             final TarArchiveOutputStream out = new TarArchiveOutputStream(file)) {
+
+            // TarArchiveOutputStream has no way to write one, so the records are written by hand
+            final byte[] global = "14 uname=acme\n".getBytes();
+            final TarArchiveEntry entry = new TarArchiveEntry("pax_global_header", TarConstants.LF_PAX_GLOBAL_EXTENDED_HEADER);
+            entry.setSize(global.length);
+
+            final byte[] records = new byte[2 * TarConstants.DEFAULT_RCDSIZE];
+            entry.writeEntryHeader(records);
+            System.arraycopy(global, 0, records, TarConstants.DEFAULT_RCDSIZE, global.length);
+            file.write(records);
+
+            add(out, "Changed.txt", "changed\n", 1234);
+            add(out, "Untouched.txt", "untouched\n", 1234);
+        }
+
+        final File after = new File(Files.tmpdir(), "after.tar");
+        TarTransformation.builder()
+                .prepend("Changed.txt", "prepended\n")
+                .build()
+                .transform(before, after);
+
+        try (final TarFile tar = new TarFile(after)) {
+            assertEquals(2, tar.getEntries().size());
+
+            final TarArchiveEntry changed = tar.getEntries().get(0);
+            assertEquals("prepended\nchanged\n", content(tar, changed));
+
+            final TarArchiveEntry untouched = tar.getEntries().get(1);
+            assertEquals("acme", untouched.getUserName());
+            assertEquals(1234, untouched.getLongUserId());
+            assertEquals("untouched\n", content(tar, untouched));
+        }
+    }
+
+    private File tar() throws IOException {
+        final File tar = new File(Files.tmpdir(), "archive.tar");
+        new ConvertTransformation(ArchiveFormat.TAR_GZ, ArchiveFormat.TAR, Transformations.builder().build())
+                .transform(resources.file("archive.tar.gz"), tar);
+        return tar;
+    }
+
+    private static void add(final TarArchiveOutputStream out, final String name, final String content, final int uid) throws IOException {
+        final byte[] bytes = content.getBytes();
+        final TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        entry.setUserId(uid);
+        out.putArchiveEntry(entry);
+        out.write(bytes);
+        out.closeArchiveEntry();
+    }
+
+    private static String content(final TarFile tar, final TarArchiveEntry entry) throws IOException {
+        try (final InputStream in = tar.getInputStream(entry)) {
+            return new String(IO.readBytes(in));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Test;
+import org.tomitribe.util.Files;
+import org.tomitribe.util.IO;
+import org.tomitribe.util.Zips;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransformAsyncTest {
+
+    private final Resources resources = new Resources();
+
+    @Test
+    public void transform() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TransformationResult result = Transformations.builder()
+                    .before(InsertEntry.builder().name("README.txt").content("Hello, World!").build())
+                    .build()
+                    .transformer(before)
+                    .transformAsync(before.toPath(), after.toPath(), executor)
+                    .get(1, TimeUnit.MINUTES);
+
+            assertEquals(before.length(), result.getBytesRead());
+            assertEquals(after.length(), result.getBytesWritten());
+            assertEquals(after.toPath(), result.getDestination());
+        } finally {
+            executor.shutdown();
+        }
+
+        Zips.unzip(after, tmpdir);
+
+        assertEquals("Hello, World!", IO.slurp(new File(tmpdir, "README.txt")));
+    }
+
+    /**
+     * Engines that write more than the destination stream, like the
+     * tar.gz index, do so when run asynchronously too
+     */
+    @Test
+    public void index() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File before = resources.file("archive.tar.gz");
+        final File after = new File(tmpdir, before.getName());
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final TransformationResult result = TarGzTransformation.builder()
+                    .before(InsertEntry.builder().name("README.txt").content("Hello, World!").build())
+                    .index()
+                    .build()
+                    .transformAsync(before.toPath(), after.toPath(), executor)
+                    .get(1, TimeUnit.MINUTES);
+
+            assertEquals(before.length(), result.getBytesRead());
+            assertEquals(after.length(), result.getBytesWritten());
+        } finally {
+            executor.shutdown();
+        }
+
+        final TarGzIndex index = TarGzIndex.read(TarGzIndex.file(after));
+        assertNotNull(index.getEntry("README.txt"));
+        assertNotNull(index.getEntry("LICENSE"));
+    }
+
+    /**
+     * The transformer below never ends on its own.  Cancelling the
+     * future must break it out of the write loop.
+     */
+    @Test
+    public void cancel() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File before = resources.file("archive.zip");
+        final File after = new File(tmpdir, before.getName());
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final Transformer endless = (in, out) -> {
+            started.countDown();
+            try {
+                while (true) {
+                    out.write(new byte[1024]);
+                }
+            } catch (final IOException e) {
+                failure.set(e);
+                throw e;
+            } finally {
+                stopped.countDown();
+            }
+        };
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CompletableFuture<TransformationResult> future = endless.transformAsync(before.toPath(), after.toPath(), executor);
+
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+            assertTrue(future.cancel(true));
+            assertTrue(stopped.await(1, TimeUnit.MINUTES));
+            assertTrue(future.isCancelled());
+            assertTrue(failure.get() instanceof IOException);
+
+            // the pool thread must be reusable and not left interrupted
+            assertFalse(executor.submit(() -> Thread.currentThread().isInterrupted()).get(1, TimeUnit.MINUTES));
+            assertFalse(after.exists());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Engines that open the files themselves must stop on cancel too.  The
+     * enhancer below ignores interrupts and would keep the thread busy for
+     * ten seconds if the engine went on to the end of the archive.
+     */
+    @Test
+    public void cancelFileAware() throws Exception {
+        final File tmpdir = Files.tmpdir();
+
+        final File before = new File(tmpdir, "before.tar.gz");
+        final File after = new File(tmpdir, "after.tar.gz");
+
+        try (final TarArchiveOutputStream out = new TarArchiveOutputStream(new GzipCompressorOutputStream(IO.write(before)))) {
+            for (int i = 0; i < 200; i++) {
+                final byte[] bytes = ("entry " + i).getBytes();
+                final TarArchiveEntry entry = new TarArchiveEntry("file-" + i + ".txt");
+                entry.setSize(bytes.length);
+                out.putArchiveEntry(entry);
+                out.write(bytes);
+                out.closeArchiveEntry();
+            }
+        }
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        final TarGzTransformation busy = TarGzTransformation.builder()
+                .enhance(name -> true, bytes -> {
+                    started.countDown();
+                    final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+                    while (System.nanoTime() < end) {
+                        Thread.onSpinWait();
+                    }
+                    return bytes;
+                })
+                .build();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CompletableFuture<TransformationResult> future = busy.transformAsync(before.toPath(), after.toPath(), executor);
+
+            assertTrue(started.await(1, TimeUnit.MINUTES));
+            assertTrue(future.cancel(true));
+
+            try {
+                assertFalse(executor.submit(() -> Thread.currentThread().isInterrupted()).get(2, TimeUnit.SECONDS));
+            } catch (final TimeoutException e) {
+                fail("Transformation still running after cancel");
+            }
+
+            assertTrue(future.isCancelled());
+            assertFalse(after.exists());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
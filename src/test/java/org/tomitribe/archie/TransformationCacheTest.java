@@ -0,0 +1,208 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tomitribe.archie;
+
+import org.junit.Test;
+import org.tomitribe.util.Files;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransformationCacheTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    public void hitsSkipTheFunction() throws Exception {
+        final File dir = Files.tmpdir();
+
+        final Transformations transformations = transformations(new TransformationCache(dir, 1024 * 1024), "1");
+
+        assertEquals("enhanced red", apply(transformations, "Red.class", "red"));
+        assertEquals("enhanced red", apply(transformations, "Other.class", "red"));
+        assertEquals("enhanced blue", apply(transformations, "Blue.class", "blue"));
+        assertEquals(2, calls.get());
+
+        // a new cache instance on the same directory, as another JVM would have
+        final TransformationCache cache = new TransformationCache(dir, 1024 * 1024);
+        assertEquals("enhanced red", apply(transformations(cache, "1"), "Red.class", "red"));
+        assertEquals(2, calls.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void rulesArePartOfTheKey() throws Exception {
+        final TransformationCache cache = new TransformationCache(Files.tmpdir(), 1024 * 1024);
+
+        assertEquals("enhanced red", apply(transformations(cache, "1"), "Red.class", "red"));
+        assertEquals("enhanced red", apply(transformations(cache, "2"), "Red.class", "red"));
+        assertEquals(2, calls.get());
+
+        // a second rule applies to this name
+        assertEquals("enhanced red!", apply(transformations(cache, "1"), "Red.txt.class", "red"));
+        assertEquals(3, calls.get());
+
+        // no rule applies, nothing is cached
+        assertEquals("red", apply(transformations(cache, "1"), "Red.png", "red"));
+        assertEquals(3, calls.get());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() throws Exception {
+        final TransformationCache cache = new TransformationCache(Files.tmpdir(), 10_000);
+
+        final byte[] bytes = new byte[1000];
+        final List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 9; i++) {
+            final String key = cache.key("1", ("content " + i).getBytes());
+            cache.put(key, bytes);
+            keys.add(key);
+            age(cache, key, 100 - i);
+        }
+
+        // use the oldest
+        assertNotNull(cache.get(keys.get(0)));
+
+        // over the maximum, evicted back to 9000
+        cache.put(cache.key("1", "content 9".getBytes()), bytes);
+        cache.put(cache.key("1", "content 10".getBytes()), bytes);
+
+        assertNotNull(cache.get(keys.get(0)));
+        assertNull(cache.get(keys.get(1)));
+        assertNull(cache.get(keys.get(2)));
+        assertNotNull(cache.get(keys.get(3)));
+        assertTrue(size(cache.getDirectory()) <= 9000);
+    }
+
+    /**
+     * Each cache only counts its own puts, the rescan finds the rest
+     */
+    @Test
+    public void otherProcessesPuts() throws Exception {
+        final File dir = Files.tmpdir();
+        final TransformationCache other = new TransformationCache(dir, 10_000);
+        final TransformationCache cache = new TransformationCache(dir, 10_000);
+
+        final byte[] bytes = new byte[1000];
+        for (int i = 0; i < 9; i++) {
+            other.put(other.key("1", ("other " + i).getBytes()), bytes);
+        }
+        for (int i = 0; i < 3; i++) {
+            cache.put(cache.key("1", ("content " + i).getBytes()), bytes);
+        }
+
+        assertTrue(size(dir) <= 10_000);
+    }
+
+    /**
+     * Left behind by a process that died while writing
+     */
+    @Test
+    public void staleTemporaryFiles() throws Exception {
+        final TransformationCache cache = new TransformationCache(Files.tmpdir(), 10_000);
+        final String key = cache.key("1", "content".getBytes());
+        cache.put(key, new byte[100]);
+
+        final File dir = new File(cache.getDirectory(), key.substring(0, 2));
+        final File stale = new File(dir, key + "1234.tmp");
+        final File fresh = new File(dir, key + "5678.tmp");
+        assertTrue(stale.createNewFile());
+        assertTrue(fresh.createNewFile());
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - 2 * 60 * 60 * 1000L));
+
+        cache.evict();
+
+        assertTrue(!stale.exists());
+        assertTrue(fresh.exists());
+        assertNotNull(cache.get(key));
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        final File dir = Files.tmpdir();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final TransformationCache cache = new TransformationCache(dir, 50_000);
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 100; j++) {
+                        final byte[] content = ("content " + (j % 20)).getBytes();
+                        final String key = cache.key("1", content);
+                        final byte[] cached = cache.get(key);
+                        if (cached != null) {
+                            assertArrayEquals(expected(content), cached);
+                        } else {
+                            cache.put(key, expected(content));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static byte[] expected(final byte[] content) {
+        final byte[] bytes = new byte[1000];
+        System.arraycopy(content, 0, bytes, 0, content.length);
+        return bytes;
+    }
+
+    private Transformations transformations(final TransformationCache cache, final String version) {
+        return Transformations.builder()
+                .enhance(name -> name.endsWith(".class"), bytes -> {
+                    calls.incrementAndGet();
+                    return ("enhanced " + new String(bytes, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+                })
+                .enhance(name -> name.contains(".txt"), bytes -> (new String(bytes, StandardCharsets.UTF_8) + "!").getBytes(StandardCharsets.UTF_8))
+                .cache(cache, version)
+                .build();
+    }
+
+    private static String apply(final Transformations transformations, final String name, final String content) {
+        return new String(transformations.apply(name, content.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    private static void age(final TransformationCache cache, final String key, final int seconds) {
+        final File file = new File(new File(cache.getDirectory(), key.substring(0, 2)), key);
+        assertTrue(file.setLastModified(System.currentTimeMillis() - seconds * 1000L));
+    }
+
+    private static long size(final File dir) {
+        long size = 0;
+        for (final File file : Files.collect(dir)) {
+            if (file.isFile() && !file.getName().startsWith(".")) size += file.length();
+        }
+        return size;
+    }
+}